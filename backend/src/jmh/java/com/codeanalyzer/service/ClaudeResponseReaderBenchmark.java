@@ -0,0 +1,116 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.dto.AnalysisResponse;
+import com.codeanalyzer.dto.Finding;
+import com.codeanalyzer.model.Severity;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading an analysis answer with a large improvedCode: {@link ClaudeResponseReader} against the
+ * tree-based path it replaced (readTree of the envelope, extractJson on the text, readTree of the
+ * answer, then field-by-field mapping).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClaudeResponseReaderBenchmark {
+
+    @Param({"100", "400"})
+    private int improvedCodeKb;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ClaudeResponseReader responseReader = new ClaudeResponseReader(objectMapper);
+    private String responseBody;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; code.length() < improvedCodeKb * 1024; i++) {
+            code.append("    public String method").append(i).append("(String value) {\n")
+                    .append("        return \"value: \" + value.replace(\"\\t\", \"  \"); // line ").append(i).append('\n')
+                    .append("    }\n\n");
+        }
+        List<Map<String, Object>> findings = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> finding = new LinkedHashMap<>();
+            finding.put("severity", i % 3 == 0 ? "critical" : "warning");
+            finding.put("line", i * 10 + 1);
+            finding.put("issue", "Issue " + i);
+            finding.put("explanation", "Why issue " + i + " matters, in a sentence or two.");
+            finding.put("suggestion", "How to fix issue " + i + ".");
+            findings.add(finding);
+        }
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("score", 62);
+        answer.put("summary", "Generally sound, with a few unchecked inputs.");
+        answer.put("findings", findings);
+        answer.put("improvedCode", code.toString());
+
+        String text = "```json\n" + objectMapper.writeValueAsString(answer) + "\n```";
+        responseBody = objectMapper.writeValueAsString(Map.of(
+                "id", "msg_01",
+                "type", "message",
+                "role", "assistant",
+                "content", List.of(Map.of("type", "text", "text", text)),
+                "stop_reason", "end_turn",
+                "usage", Map.of("input_tokens", 1200, "output_tokens", 90000)));
+    }
+
+    @Benchmark
+    public AnalysisResponse responseReader() throws IOException {
+        AnalysisResponse defaults = AnalysisResponse.builder()
+                .score(50)
+                .summary("")
+                .findings(List.of())
+                .improvedCode("")
+                .build();
+        return responseReader.readMessage(responseBody, defaults).value();
+    }
+
+    @Benchmark
+    public AnalysisResponse treeModel() throws IOException {
+        JsonNode root = objectMapper.readTree(responseBody);
+        String text = root.path("content").get(0).path("text").asText();
+        JsonNode analysisNode = objectMapper.readTree(extractJson(text));
+
+        List<Finding> findings = new ArrayList<>();
+        for (JsonNode findingNode : analysisNode.path("findings")) {
+            findings.add(Finding.builder()
+                    .severity(Severity.valueOf(findingNode.path("severity").asText().toUpperCase()))
+                    .line(findingNode.has("line") && !findingNode.path("line").isNull()
+                            ? findingNode.path("line").asInt() : null)
+                    .issue(findingNode.path("issue").asText())
+                    .explanation(findingNode.path("explanation").asText())
+                    .suggestion(findingNode.path("suggestion").asText())
+                    .build());
+        }
+        return AnalysisResponse.builder()
+                .score(analysisNode.path("score").asInt(50))
+                .summary(analysisNode.path("summary").asText())
+                .findings(findings)
+                .improvedCode(analysisNode.path("improvedCode").asText())
+                .build();
+    }
+
+    private static String extractJson(String text) {
+        String cleaned = text.trim();
+        if (cleaned.startsWith("```json")) {
+            cleaned = cleaned.substring(7);
+        } else if (cleaned.startsWith("```")) {
+            cleaned = cleaned.substring(3);
+        }
+        if (cleaned.endsWith("```")) {
+            cleaned = cleaned.substring(0, cleaned.length() - 3);
+        }
+        return cleaned.trim();
+    }
+}
@@ -0,0 +1,54 @@
+package com.codeanalyzer.config;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.Data;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * The {@code /api/admin} endpoints (cache, limiter, circuit breaker, hedge, usage) exist only
+ * when {@code enabled}, and then answer only requests carrying {@code token} in the
+ * {@value #TOKEN_HEADER} header. Without a token configured every admin request is refused.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "admin")
+@Data
+public class AdminConfig {
+
+    public static final String TOKEN_HEADER = "X-Admin-Token";
+
+    private boolean enabled = false;
+    private String token = "";
+
+    @Bean
+    @ConditionalOnProperty(prefix = "admin", name = "enabled", havingValue = "true")
+    public FilterRegistrationBean<OncePerRequestFilter> adminTokenFilter() {
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+                    throws ServletException, IOException {
+                String presented = request.getHeader(TOKEN_HEADER);
+                if (token == null || token.isBlank() || presented == null
+                        || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                        presented.getBytes(StandardCharsets.UTF_8))) {
+                    response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Missing or invalid " + TOKEN_HEADER);
+                    return;
+                }
+                chain.doFilter(request, response);
+            }
+        });
+        registration.addUrlPatterns("/api/admin/*");
+        return registration;
+    }
+}
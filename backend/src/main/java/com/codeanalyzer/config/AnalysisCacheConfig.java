@@ -0,0 +1,59 @@
+package com.codeanalyzer.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.cache")
+@Data
+public class AnalysisCacheConfig {
+
+    private boolean enabled = true;
+    private long maximumWeight = 64L * 1024 * 1024; // bytes of serialized results
+    private Duration ttl = Duration.ofHours(24);
+    private long staleMaximumWeight = 128L * 1024 * 1024;
+    private Duration staleTtl = Duration.ofDays(7);
+
+    /**
+     * Size-bounded result cache. Caffeine evicts with W-TinyLFU, each entry weighted
+     * by the size of its serialized JSON so a few huge responses can't starve the rest.
+     */
+    @Bean
+    public Cache<String, Object> analysisResultCache(ObjectMapper objectMapper) {
+        return Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String key, Object value) -> key.length() + serializedSize(objectMapper, value))
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Last known good result per key, kept well past {@link #ttl}. Only read when the
+     * upstream is unavailable, to answer with a result marked stale instead of a 503.
+     */
+    @Bean
+    public Cache<String, Object> staleResultCache(ObjectMapper objectMapper) {
+        return Caffeine.newBuilder()
+                .maximumWeight(staleMaximumWeight)
+                .weigher((String key, Object value) -> key.length() + serializedSize(objectMapper, value))
+                .expireAfterWrite(staleTtl)
+                .build();
+    }
+
+    private static int serializedSize(ObjectMapper objectMapper, Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value).length;
+        } catch (JsonProcessingException e) {
+            return 1;
+        }
+    }
+}
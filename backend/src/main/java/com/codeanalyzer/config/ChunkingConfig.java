@@ -0,0 +1,15 @@
+package com.codeanalyzer.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.chunking")
+@Data
+public class ChunkingConfig {
+
+    private int chunkSize = 40000; // characters per window; code up to this size is analyzed in one call
+    private int overlap = 2000; // characters each window repeats from the previous one
+    private int concurrency = 8; // windows analyzed at the same time
+}
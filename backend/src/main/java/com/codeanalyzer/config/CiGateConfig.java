@@ -0,0 +1,14 @@
+package com.codeanalyzer.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.ci-gate")
+@Data
+public class CiGateConfig {
+
+    private int maxTokens = 1024;
+    private int maxCriticalFindings = 5;
+}
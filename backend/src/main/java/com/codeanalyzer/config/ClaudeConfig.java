@@ -9,10 +9,13 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 import java.time.Duration;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 @Configuration
 @ConfigurationProperties(prefix = "anthropic.api")
@@ -23,19 +26,184 @@ public class ClaudeConfig {
     private String url;
     private String model;
     private int maxTokens;
+    private Pool pool = new Pool();
+    private Limiter limiter = new Limiter();
+    private Retry retry = new Retry();
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private Hedge hedge = new Hedge();
+    private Continuation continuation = new Continuation();
+    private PromptCaching promptCaching = new PromptCaching();
+    private OutputSizing outputSizing = new OutputSizing();
+    private Pricing pricing = new Pricing();
+
+    @Data
+    public static class Pool {
+        private int maxConnections = 100;
+        private int pendingAcquireMaxCount = 500;
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(45);
+        private Duration maxIdleTime = Duration.ofSeconds(50);
+        private Duration maxLifeTime = Duration.ofMinutes(10);
+        private Duration evictInBackground = Duration.ofSeconds(30);
+        private boolean http2 = false; // negotiated via ALPN, falls back to HTTP/1.1
+        private boolean metrics = true;
+        private int prewarmConnections = 4; // 0 disables pre-warming
+        private Duration keepWarmInterval = Duration.ofSeconds(30); // 0 disables keep-warm
+    }
+
+    /**
+     * AIMD concurrency limit for upstream calls: grows by ~1 per limit-worth of fast
+     * successes, shrinks multiplicatively on throttling (429/529/503), timeouts or slow calls.
+     */
+    @Data
+    public static class Limiter {
+        private boolean enabled = true;
+        private int initialLimit = 20;
+        private int minLimit = 2;
+        private int maxLimit = 100;
+        private double backoffRatio = 0.7;
+        private Duration slowCallThreshold = Duration.ofSeconds(90);
+        private int maxQueueSize = 100;
+        private Duration maxQueueWait = Duration.ofSeconds(30);
+    }
+
+    /**
+     * Retries for transient upstream failures (429, 5xx, connection resets). The budget
+     * earns {@code budgetRatio} tokens per request (capped at {@code budgetCapacity}) and
+     * each retry spends one, so retries stay a bounded fraction of traffic during an outage.
+     */
+    @Data
+    public static class Retry {
+        private boolean enabled = true;
+        private int maxRetries = 3;
+        private Duration initialBackoff = Duration.ofSeconds(1);
+        private Duration maxBackoff = Duration.ofSeconds(20);
+        private Duration maxRetryAfter = Duration.ofSeconds(60); // longer server hints are not waited out
+        private double budgetRatio = 0.1;
+        private double budgetCapacity = 10;
+    }
+
+    /**
+     * Count-based circuit breaker over the last {@code slidingWindowSize} upstream attempts.
+     * Opens when the failure rate or the slow-call rate crosses its threshold, fails fast
+     * for {@code openDuration}, then lets {@code halfOpenPermittedCalls} trial calls through.
+     */
+    @Data
+    public static class CircuitBreaker {
+        private boolean enabled = true;
+        private int slidingWindowSize = 20;
+        private int minimumCalls = 10;
+        private int failureRateThreshold = 50; // percent
+        private int slowCallRateThreshold = 80; // percent
+        private Duration slowCallDuration = Duration.ofSeconds(60);
+        private Duration openDuration = Duration.ofSeconds(30);
+        private int halfOpenPermittedCalls = 3;
+    }
+
+    /**
+     * Hedged requests for latency-sensitive callers: when the first attempt has no response
+     * by the live {@code percentile} of time-to-first-byte, an identical second request is sent
+     * and the first to answer wins. Hedges spend a budget that earns {@code budgetRatio}
+     * tokens per hedgeable request, so they add at most that fraction of traffic.
+     */
+    @Data
+    public static class Hedge {
+        private boolean enabled = true;
+        private double percentile = 0.9;
+        private int sampleWindow = 200;
+        private int minSamples = 20; // below this the delay is maxDelay
+        private Duration minDelay = Duration.ofSeconds(2);
+        private Duration maxDelay = Duration.ofSeconds(60);
+        private double budgetRatio = 0.1;
+        private double budgetCapacity = 5;
+    }
+
+    /**
+     * Output cut off at max_tokens is resumed with up to {@code maxContinuations} follow-up
+     * requests that prefill the partial answer; if that's off or fails, the complete part is kept.
+     */
+    @Data
+    public static class Continuation {
+        private boolean enabled = true;
+        private int maxContinuations = 1;
+    }
+
+    /**
+     * Marks the static part of system prompts with {@code cache_control}, so repeat calls read
+     * it from the upstream prompt cache instead of processing it again.
+     */
+    @Data
+    public static class PromptCaching {
+        private boolean enabled = true;
+    }
+
+    /**
+     * Per-request max_tokens: the {@code percentile} of the output sizes recently seen for the same
+     * endpoint and variant, times {@code headroom}, clamped to [{@code minOutputTokens},
+     * {@code maxOutputTokens}] and to what the context window leaves after the estimated input.
+     * Until {@code minSamples} are in, or when disabled, the endpoint's default is used. Requests
+     * whose input leaves less than {@code minOutputTokens} of the context window are refused either way.
+     */
+    @Data
+    public static class OutputSizing {
+        private boolean enabled = true;
+        private int contextWindow = 200000;
+        private int minOutputTokens = 1024;
+        private int maxOutputTokens = 64000;
+        private double percentile = 0.95;
+        private double headroom = 1.25;
+        private int sampleWindow = 200;
+        private int minSamples = 20;
+    }
+
+    /**
+     * USD per million tokens of {@link #model}, for the cost predicted before dispatch.
+     */
+    @Data
+    public static class Pricing {
+        private double inputPerMillion = 3.0;
+        private double outputPerMillion = 15.0;
+    }
+
+    /**
+     * Dedicated pool for the Anthropic API. LIFO acquisition keeps reusing the most
+     * recently used (hot) connections so idle eviction can retire the cold ones.
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider claudeConnectionProvider() {
+        return ConnectionProvider.builder("claude-api")
+                .maxConnections(pool.getMaxConnections())
+                .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(pool.getPendingAcquireTimeout())
+                .maxIdleTime(pool.getMaxIdleTime())
+                .maxLifeTime(pool.getMaxLifeTime())
+                .evictInBackground(pool.getEvictInBackground())
+                .metrics(pool.isMetrics())
+                .lifo()
+                .build();
+    }
 
     @Bean
-    public WebClient claudeWebClient() {
-        HttpClient httpClient = HttpClient.create()
+    public HttpClient claudeHttpClient(ConnectionProvider claudeConnectionProvider) {
+        HttpClient httpClient = HttpClient.create(claudeConnectionProvider)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
                 .responseTimeout(Duration.ofSeconds(180))
+                .metrics(pool.isMetrics(), Function.identity())
                 .doOnConnected(conn -> conn
                         .addHandlerLast(new ReadTimeoutHandler(180, TimeUnit.SECONDS))
                         .addHandlerLast(new WriteTimeoutHandler(60, TimeUnit.SECONDS)));
 
+        if (pool.isHttp2()) {
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+        }
+        return httpClient;
+    }
+
+    @Bean
+    public WebClient claudeWebClient(HttpClient claudeHttpClient) {
         return WebClient.builder()
                 .baseUrl(url)
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .clientConnector(new ReactorClientHttpConnector(claudeHttpClient))
                 .defaultHeader("x-api-key", key)
                 .defaultHeader("anthropic-version", "2023-06-01")
                 .defaultHeader("content-type", "application/json")
@@ -0,0 +1,70 @@
+package com.codeanalyzer.config;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.time.Duration;
+
+/**
+ * Opens connections to the Anthropic API at startup (TCP + TLS handshakes off the
+ * critical path) and periodically touches them so they don't hit the idle timeout.
+ * Uses cheap HEAD requests; the status code is irrelevant, only the connection matters.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ClaudeConnectionPrewarmer {
+
+    private final HttpClient claudeHttpClient;
+    private final ClaudeConfig claudeConfig;
+
+    private Disposable keepWarm;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void prewarm() {
+        int connections = claudeConfig.getPool().getPrewarmConnections();
+        if (connections <= 0) {
+            return;
+        }
+
+        claudeHttpClient.warmup()
+                .then(openConnections(connections))
+                .subscribe(count -> log.info("Pre-warmed {} connections to the Claude API", count));
+
+        Duration interval = claudeConfig.getPool().getKeepWarmInterval();
+        if (!interval.isZero() && !interval.isNegative()) {
+            keepWarm = Flux.interval(interval, interval)
+                    .onBackpressureDrop()
+                    .concatMap(tick -> openConnections(connections))
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (keepWarm != null) {
+            keepWarm.dispose();
+        }
+    }
+
+    private Mono<Long> openConnections(int connections) {
+        return Flux.range(0, connections)
+                .flatMap(i -> claudeHttpClient.head()
+                        .uri(claudeConfig.getUrl())
+                        .response()
+                        .timeout(Duration.ofSeconds(10))
+                        .onErrorResume(e -> {
+                            log.debug("Connection pre-warm failed: {}", e.getMessage());
+                            return Mono.empty();
+                        }), connections)
+                .count();
+    }
+}
@@ -0,0 +1,14 @@
+package com.codeanalyzer.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.diff-review")
+@Data
+public class DiffReviewConfig {
+
+    private int contextLines = 3; // post-image lines sent around each change, unless the request asks otherwise
+    private int maxTokens = 4096;
+}
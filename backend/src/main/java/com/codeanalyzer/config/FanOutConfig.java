@@ -0,0 +1,24 @@
+package com.codeanalyzer.config;
+
+import com.codeanalyzer.model.EnhancedSection;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.List;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.fan-out")
+@Data
+public class FanOutConfig {
+
+    private boolean enabled = false;
+    // Upstream calls made in parallel; the first group is the core result, requested sections in no group join it
+    private List<List<EnhancedSection>> groups = List.of(
+            List.of(EnhancedSection.FINDINGS, EnhancedSection.SHIP_IT, EnhancedSection.ROAST),
+            List.of(EnhancedSection.INCIDENTS, EnhancedSection.PRE_MORTEM, EnhancedSection.COST),
+            List.of(EnhancedSection.FAMOUS_BUGS, EnhancedSection.KARMA, EnhancedSection.ON_CALL,
+                    EnhancedSection.ACHIEVEMENTS));
+    private Duration sectionTimeout = Duration.ofSeconds(20); // for the other groups; their sections are left empty
+}
@@ -0,0 +1,16 @@
+package com.codeanalyzer.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.map-reduce")
+@Data
+public class MapReduceConfig {
+
+    private boolean enabled = false;
+    private int concurrency = 8; // files analyzed at the same time
+    private int fileMaxTokens = 4096; // per-file call, unless learned output sizes say otherwise
+    private int reduceMaxTokens = 4096; // cross-file call over the file summaries
+}
@@ -0,0 +1,25 @@
+package com.codeanalyzer.config;
+
+import com.codeanalyzer.model.OutputMode;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.output")
+@Data
+public class OutputModeConfig {
+
+    private OutputMode defaultMode = OutputMode.JSON;
+    private Map<String, OutputMode> endpoints = new HashMap<>(); // analyze, enhanced, multi
+    private Set<String> compactEndpoints = new HashSet<>(); // endpoints with a compact wire format: enhanced
+
+    public OutputMode modeFor(String endpoint) {
+        return endpoints.getOrDefault(endpoint, defaultMode);
+    }
+}
@@ -0,0 +1,19 @@
+package com.codeanalyzer.config;
+
+import com.codeanalyzer.model.Language;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+@Configuration
+@ConfigurationProperties(prefix = "analysis.prompt-compression")
+@Data
+public class PromptCompressionConfig {
+
+    private boolean enabled = false;
+    // Languages whose code is sent without comments, blank lines and deep indentation
+    private Set<Language> languages = EnumSet.allOf(Language.class);
+}
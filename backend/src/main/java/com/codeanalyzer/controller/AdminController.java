@@ -0,0 +1,61 @@
+package com.codeanalyzer.controller;
+
+import com.codeanalyzer.service.AdaptiveConcurrencyLimiter;
+import com.codeanalyzer.service.AnalysisCache;
+import com.codeanalyzer.service.UpstreamCircuitBreaker;
+import com.codeanalyzer.service.UpstreamHedgePolicy;
+import com.codeanalyzer.service.UsageAccounting;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Off unless admin.enabled; requests then need the admin token (see {@link com.codeanalyzer.config.AdminConfig}).
+ */
+@RestController
+@ConditionalOnProperty(prefix = "admin", name = "enabled", havingValue = "true")
+@RequestMapping("/api/admin")
+@RequiredArgsConstructor
+public class AdminController {
+
+    private final AnalysisCache analysisCache;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final UpstreamCircuitBreaker circuitBreaker;
+    private final UpstreamHedgePolicy hedgePolicy;
+    private final UsageAccounting usageAccounting;
+
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, Object>> cacheStats() {
+        return ResponseEntity.ok(analysisCache.stats());
+    }
+
+    @DeleteMapping("/cache")
+    public ResponseEntity<Void> clearCache() {
+        analysisCache.invalidateAll();
+        return ResponseEntity.noContent().build();
+    }
+
+    @GetMapping("/limiter")
+    public ResponseEntity<AdaptiveConcurrencyLimiter.Snapshot> limiterState() {
+        return ResponseEntity.ok(concurrencyLimiter.snapshot());
+    }
+
+    @GetMapping("/circuit-breaker")
+    public ResponseEntity<UpstreamCircuitBreaker.Snapshot> circuitBreakerState() {
+        return ResponseEntity.ok(circuitBreaker.snapshot());
+    }
+
+    @GetMapping("/hedge")
+    public ResponseEntity<UpstreamHedgePolicy.Snapshot> hedgeState() {
+        return ResponseEntity.ok(hedgePolicy.snapshot());
+    }
+
+    @GetMapping("/usage")
+    public ResponseEntity<List<UsageAccounting.Snapshot>> usage() {
+        return ResponseEntity.ok(usageAccounting.snapshot());
+    }
+}
@@ -1,17 +1,29 @@
 package com.codeanalyzer.controller;
 
 import com.codeanalyzer.dto.*;
+import com.codeanalyzer.model.EnhancedSection;
+import com.codeanalyzer.service.ChunkedAnalysisService;
+import com.codeanalyzer.service.CiGateService;
 import com.codeanalyzer.service.ClaudeService;
+import com.codeanalyzer.service.DiffReviewService;
 import com.codeanalyzer.service.EnhancedAnalysisService;
+import com.codeanalyzer.service.ImprovedCodeService;
+import com.codeanalyzer.service.IncrementalAnalysisService;
 import com.codeanalyzer.service.MultiFileAnalysisService;
 import com.codeanalyzer.service.UltraAnalysisService;
+import com.codeanalyzer.service.UsageAccounting;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -22,10 +34,17 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class AnalysisController {
 
+    private static final String USAGE_HEADER = "X-Claude-Usage";
+
     private final ClaudeService claudeService;
     private final MultiFileAnalysisService multiFileAnalysisService;
     private final EnhancedAnalysisService enhancedAnalysisService;
     private final UltraAnalysisService ultraAnalysisService;
+    private final CiGateService ciGateService;
+    private final ImprovedCodeService improvedCodeService;
+    private final ChunkedAnalysisService chunkedAnalysisService;
+    private final IncrementalAnalysisService incrementalAnalysisService;
+    private final DiffReviewService diffReviewService;
 
     // Simple in-memory store for shared analyses (in production: use Redis/DB)
     private final Map<String, EnhancedAnalysisResponse> analysisStore = new ConcurrentHashMap<>();
@@ -35,24 +54,101 @@ public class AnalysisController {
         log.info("Received analysis request for {} code with {} persona",
                 request.getLanguage(), request.getPersona());
 
-        return claudeService.analyzeCode(
+        return withUsage(claudeService.analyzeCode(
+                        request.getCode(),
+                        request.getLanguage(),
+                        request.getContext(),
+                        request.getPersona())
+                .map(ResponseEntity::ok));
+    }
+
+    /**
+     * Same as /analyze for files of up to 1,000,000 characters: large files are analyzed as
+     * overlapping windows in parallel and merged into one result
+     */
+    @PostMapping("/analyze/chunked")
+    public Mono<ResponseEntity<AnalysisResponse>> analyzeChunked(@Valid @RequestBody ChunkedAnalysisRequest request) {
+        log.info("Received chunked analysis request for {} characters of {} code",
+                request.getCode().length(), request.getLanguage());
+
+        return withUsage(chunkedAnalysisService.analyze(
+                        request.getCode(),
+                        request.getLanguage(),
+                        request.getContext(),
+                        request.getPersona())
+                .map(ResponseEntity::ok));
+    }
+
+    /**
+     * Same as /analyze/chunked, but code units (classes, methods, functions) that were analyzed
+     * before are not sent again: only changed units are analyzed, and earlier findings are reused
+     * for the rest
+     */
+    @PostMapping("/analyze/incremental")
+    public Mono<ResponseEntity<AnalysisResponse>> analyzeIncremental(@Valid @RequestBody ChunkedAnalysisRequest request) {
+        log.info("Received incremental analysis request for {} characters of {} code",
+                request.getCode().length(), request.getLanguage());
+
+        return withUsage(incrementalAnalysisService.analyze(
                         request.getCode(),
                         request.getLanguage(),
                         request.getContext(),
                         request.getPersona())
-                .map(ResponseEntity::ok);
+                .map(ResponseEntity::ok));
     }
 
+    /**
+     * Enhanced analysis. {@code fields} (e.g. {@code ?fields=findings,shipIt}) limits which sections
+     * are generated; score and summary always are.
+     */
     @PostMapping("/analyze/enhanced")
-    public Mono<ResponseEntity<EnhancedAnalysisResponse>> analyzeEnhanced(@Valid @RequestBody AnalysisRequest request) {
+    public Mono<ResponseEntity<EnhancedAnalysisResponse>> analyzeEnhanced(
+            @Valid @RequestBody AnalysisRequest request,
+            @RequestParam(required = false) List<String> fields) {
         log.info("Enhanced analysis for {} code with {} persona", request.getLanguage(), request.getPersona());
 
-        return enhancedAnalysisService.analyzeEnhanced(
+        return withUsage(enhancedAnalysisService.analyzeEnhanced(
+                        request.getCode(),
+                        request.getLanguage(),
+                        request.getContext(),
+                        request.getPersona(),
+                        EnhancedSection.parse(fields),
+                        null)
+                .map(ResponseEntity::ok));
+    }
+
+    /**
+     * Streaming analysis - findings are pushed as server-sent events while the model is
+     * still writing, then a final "result" event carries the complete response.
+     */
+    @PostMapping(value = "/analyze/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamAnalysis(@Valid @RequestBody AnalysisRequest request) {
+        log.info("Streaming analysis for {} code with {} persona", request.getLanguage(), request.getPersona());
+
+        return claudeService.streamAnalysis(
                         request.getCode(),
                         request.getLanguage(),
                         request.getContext(),
                         request.getPersona())
-                .map(ResponseEntity::ok);
+                .map(this::toServerSentEvent);
+    }
+
+    /**
+     * Streaming enhanced analysis - emits "finding" and "incident" events, then "result"
+     */
+    @PostMapping(value = "/analyze/enhanced/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamEnhanced(
+            @Valid @RequestBody AnalysisRequest request,
+            @RequestParam(required = false) List<String> fields) {
+        log.info("Streaming enhanced analysis for {} code with {} persona", request.getLanguage(), request.getPersona());
+
+        return enhancedAnalysisService.streamEnhanced(
+                        request.getCode(),
+                        request.getLanguage(),
+                        request.getContext(),
+                        request.getPersona(),
+                        EnhancedSection.parse(fields))
+                .map(this::toServerSentEvent);
     }
 
     /**
@@ -63,12 +159,12 @@ public class AnalysisController {
     public Mono<ResponseEntity<UltraAnalysisResponse>> analyzeUltra(@Valid @RequestBody AnalysisRequest request) {
         log.info("ULTRA analysis for {} code - full viral mode activated", request.getLanguage());
 
-        return ultraAnalysisService.analyzeUltra(
+        return withUsage(ultraAnalysisService.analyzeUltra(
                         request.getCode(),
                         request.getLanguage(),
                         request.getContext(),
                         request.getPersona())
-                .map(ResponseEntity::ok);
+                .map(ResponseEntity::ok));
     }
 
     @PostMapping("/analyze/multi")
@@ -76,8 +172,83 @@ public class AnalysisController {
             @Valid @RequestBody MultiFileAnalysisRequest request) {
         log.info("Received multi-file analysis request for {} files", request.getFiles().size());
 
-        return multiFileAnalysisService.analyzeMultipleFiles(request)
-                .map(ResponseEntity::ok);
+        return withUsage(multiFileAnalysisService.analyzeMultipleFiles(request)
+                .map(ResponseEntity::ok));
+    }
+
+    /**
+     * Streaming multi-file analysis - a "file" event per file as soon as its findings are known,
+     * then "cross-file" and "architecture" events, then "result"
+     */
+    @PostMapping(value = "/analyze/multi/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamMultipleFiles(@Valid @RequestBody MultiFileAnalysisRequest request) {
+        log.info("Streaming multi-file analysis for {} files", request.getFiles().size());
+
+        return multiFileAnalysisService.streamMultipleFiles(request)
+                .map(this::toServerSentEvent);
+    }
+
+    /**
+     * Same events as newline-delimited JSON, one object per line; also what clients sending no
+     * Accept header or {@code *}{@code /*} get. Clients accepting only application/json get the
+     * events as one JSON array once the analysis is done, rather than a 406.
+     */
+    @PostMapping(value = "/analyze/multi/stream",
+            produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public Flux<AnalysisStreamEvent> streamMultipleFilesNdjson(@Valid @RequestBody MultiFileAnalysisRequest request) {
+        log.info("Streaming multi-file analysis for {} files as NDJSON", request.getFiles().size());
+
+        return multiFileAnalysisService.streamMultipleFiles(request);
+    }
+
+    // ============ ESTIMATES (nothing is sent upstream) ============
+
+    /**
+     * Input tokens, max_tokens, and once enough calls have been seen, expected output, latency and cost
+     */
+    @PostMapping("/analyze/estimate")
+    public ResponseEntity<TokenEstimate> estimateAnalysis(@Valid @RequestBody AnalysisRequest request) {
+        return ResponseEntity.ok(claudeService.estimate(
+                request.getCode(),
+                request.getLanguage(),
+                request.getContext(),
+                request.getPersona()));
+    }
+
+    @PostMapping("/analyze/enhanced/estimate")
+    public ResponseEntity<TokenEstimate> estimateEnhanced(
+            @Valid @RequestBody AnalysisRequest request,
+            @RequestParam(required = false) List<String> fields) {
+        return ResponseEntity.ok(enhancedAnalysisService.estimate(
+                request.getCode(),
+                request.getLanguage(),
+                request.getContext(),
+                request.getPersona(),
+                EnhancedSection.parse(fields)));
+    }
+
+    @PostMapping("/analyze/multi/estimate")
+    public ResponseEntity<TokenEstimate> estimateMultipleFiles(@Valid @RequestBody MultiFileAnalysisRequest request) {
+        return ResponseEntity.ok(multiFileAnalysisService.estimate(request));
+    }
+
+    /**
+     * Improved version of an analyzed file as a unified diff, generated on first request.
+     * Ask for text/event-stream to receive the code as it is written, then the diff.
+     */
+    @GetMapping("/analyses/{id}/improved-code")
+    public Mono<ResponseEntity<ImprovedCodeResponse>> getImprovedCode(@PathVariable String id) {
+        return withUsage(improvedCodeService.improvedCode(id)
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.notFound().build()));
+    }
+
+    @GetMapping(value = "/analyses/{id}/improved-code", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<Flux<ServerSentEvent<Object>>> streamImprovedCode(@PathVariable String id) {
+        if (!improvedCodeService.isKnown(id)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(improvedCodeService.streamImprovedCode(id).map(this::toServerSentEvent));
     }
 
     @GetMapping("/health")
@@ -172,49 +343,61 @@ public class AnalysisController {
      * CI/CD Gate endpoint - returns pass/fail for pipeline integration
      * Use in GitHub Actions, GitLab CI, Jenkins, etc.
      * Exit code 0 = pass, Exit code 1 = fail
+     * Uses the fail-fast gate prompt: generation stops once the verdict is known.
      */
     @PostMapping("/ci/gate")
     public Mono<ResponseEntity<Map<String, Object>>> ciGate(@Valid @RequestBody AnalysisRequest request) {
         log.info("CI Gate check for {} code", request.getLanguage());
 
-        return enhancedAnalysisService.analyzeEnhanced(
+        return withUsage(ciGateService.evaluate(
                 request.getCode(),
                 request.getLanguage(),
-                request.getContext(),
-                "brutal"
-        ).map(analysis -> {
-            String verdict = analysis.getShipItScore() != null
-                ? analysis.getShipItScore().getVerdict() : "UNKNOWN";
+                request.getContext()
+        ).map(gate -> {
+            String verdict = gate.getVerdict();
             boolean passed = verdict.contains("SHIP IT") || verdict.contains("MAYBE");
-            int criticalCount = (int) analysis.getFindings().stream()
-                .filter(f -> f.getSeverity().name().equals("CRITICAL")).count();
 
-            Map<String, Object> response = Map.of(
-                "passed", passed,
-                "verdict", verdict,
-                "score", analysis.getScore(),
-                "criticalIssues", criticalCount,
-                "incidentCount", analysis.getPredictedIncidents().size(),
-                "karmaScore", analysis.getCodeKarma() != null ? analysis.getCodeKarma().getKarmaScore() : 0,
-                "recommendation", passed ? "Safe to merge" : "BLOCK: Fix critical issues before merging",
-                "analysisId", analysis.getId()
-            );
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("passed", passed);
+            response.put("verdict", verdict);
+            response.put("score", gate.getScore());
+            response.put("criticalIssues", gate.getCriticalFindings().size());
+            response.put("criticalFindings", gate.getCriticalFindings());
+            response.put("riskBreakdown", gate.getRiskBreakdown());
+            response.put("complete", gate.isComplete());
+            response.put("recommendation", passed ? "Safe to merge" : "BLOCK: Fix critical issues before merging");
+            response.put("analysisId", gate.getId());
 
             return passed ? ResponseEntity.ok(response)
                 : ResponseEntity.status(422).body(response);
-        });
+        }));
     }
 
     /**
-     * Quick verdict - minimal response for CLI tools
+     * Pull request review from a unified diff (e.g. {@code git diff}): only the changed hunks and
+     * a few lines around them are sent. Findings are on post-image lines. Optional post-image
+     * files give more context than the diff has.
+     */
+    @PostMapping("/ci/review")
+    public Mono<ResponseEntity<DiffReviewResponse>> reviewDiff(@Valid @RequestBody DiffReviewRequest request) {
+        log.info("Diff review of {} characters", request.getDiff().length());
+
+        return withUsage(diffReviewService.review(request).map(ResponseEntity::ok));
+    }
+
+    /**
+     * Quick verdict - minimal response for CLI tools. Hedged, since pre-push hooks block on it.
+     * Only the ship-it section is generated, since the response has nothing else.
      */
     @PostMapping("/ci/quick")
     public Mono<ResponseEntity<Map<String, Object>>> quickVerdict(@Valid @RequestBody AnalysisRequest request) {
-        return enhancedAnalysisService.analyzeEnhanced(
+        return withUsage(enhancedAnalysisService.analyzeEnhanced(
                 request.getCode(),
                 request.getLanguage(),
                 request.getContext(),
-                "brutal"
+                "brutal",
+                EnumSet.of(EnhancedSection.SHIP_IT),
+                "ci-quick"
         ).map(analysis -> {
             String verdict = analysis.getShipItScore() != null
                 ? analysis.getShipItScore().getVerdict() : "UNKNOWN";
@@ -227,21 +410,25 @@ public class AnalysisController {
                 "score", analysis.getScore(),
                 "tldr", analysis.getShipItScore() != null ? analysis.getShipItScore().getTldr() : "Analysis failed"
             ));
-        });
+        }));
     }
 
     // ============ SHAREABLE ANALYSIS ENDPOINTS ============
 
     /**
-     * Store analysis for sharing
+     * Store analysis for sharing; {@code fields} limits the generated sections as for /analyze/enhanced
      */
     @PostMapping("/share")
-    public Mono<ResponseEntity<Map<String, String>>> shareAnalysis(@Valid @RequestBody AnalysisRequest request) {
-        return enhancedAnalysisService.analyzeEnhanced(
+    public Mono<ResponseEntity<Map<String, String>>> shareAnalysis(
+            @Valid @RequestBody AnalysisRequest request,
+            @RequestParam(required = false) List<String> fields) {
+        return withUsage(enhancedAnalysisService.analyzeEnhanced(
                 request.getCode(),
                 request.getLanguage(),
                 request.getContext(),
-                request.getPersona()
+                request.getPersona(),
+                EnhancedSection.parse(fields),
+                null
         ).map(analysis -> {
             analysisStore.put(analysis.getId(), analysis);
             return ResponseEntity.ok(Map.of(
@@ -249,7 +436,7 @@ public class AnalysisController {
                 "shareUrl", "/share/" + analysis.getId(),
                 "expiresIn", "24 hours"
             ));
-        });
+        }));
     }
 
     /**
@@ -305,4 +492,23 @@ public class AnalysisController {
             .header("Content-Type", "image/svg+xml")
             .body(svg);
     }
+
+    /**
+     * Adds what the request's upstream calls consumed as the X-Claude-Usage header.
+     */
+    private <T> Mono<ResponseEntity<T>> withUsage(Mono<ResponseEntity<T>> response) {
+        UsageAccounting.RequestUsage usage = new UsageAccounting.RequestUsage();
+        return response
+                .map(entity -> ResponseEntity.status(entity.getStatusCode())
+                        .headers(entity.getHeaders())
+                        .header(USAGE_HEADER, usage.toHeaderValue())
+                        .body(entity.getBody()))
+                .contextWrite(usage::attach);
+    }
+
+    private ServerSentEvent<Object> toServerSentEvent(AnalysisStreamEvent event) {
+        return ServerSentEvent.builder(event.getData())
+                .event(event.getType())
+                .build();
+    }
 }
@@ -11,11 +11,12 @@ import java.util.List;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-public class AnalysisResponse {
+public class AnalysisResponse implements StaleMarkable {
     private String id;
     private int score;
     private List<Finding> findings;
     private String improvedCode;
     private String summary;
     private long analyzedAt;
+    private boolean stale;
 }
@@ -0,0 +1,19 @@
+package com.codeanalyzer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AnalysisStreamEvent {
+    private String type; // "finding", "incident", "result", "error"
+    private Object data;
+
+    public static AnalysisStreamEvent of(String type, Object data) {
+        return new AnalysisStreamEvent(type, data);
+    }
+}
@@ -0,0 +1,23 @@
+package com.codeanalyzer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CiGateResult implements StaleMarkable {
+    private String id;
+    private String verdict; // "SHIP IT", "MAYBE", "NOPE", "ARE YOU SERIOUS?" or "UNKNOWN"
+    private int score;
+    private ShipItScore.RiskBreakdown riskBreakdown;
+    private List<Finding> criticalFindings;
+    private boolean complete; // false when generation was cut short once the verdict was known
+    private long analyzedAt;
+    private boolean stale;
+}
@@ -0,0 +1,41 @@
+package com.codeanalyzer.dto;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * A pull request as a unified diff. {@code files} optionally holds full post-image files
+ * (matched to the diff by path), which lets the review show more context than the diff has.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DiffReviewRequest {
+
+    @NotBlank(message = "Diff is required")
+    @Size(max = 1000000, message = "Diff must not exceed 1000000 characters")
+    private String diff;
+
+    @Size(max = 50, message = "Maximum 50 files allowed")
+    private List<FileContent> files;
+
+    @Min(value = 0, message = "Context lines must not be negative")
+    @Max(value = 50, message = "Context lines must not exceed 50")
+    private Integer contextLines;
+
+    @Size(max = 1000, message = "Context must not exceed 1000 characters")
+    private String context;
+
+    @Pattern(regexp = "^(brutal|mentor|edge-hunter)$", message = "Invalid persona")
+    private String persona;
+}
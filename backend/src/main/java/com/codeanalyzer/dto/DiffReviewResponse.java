@@ -0,0 +1,29 @@
+package com.codeanalyzer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Findings of a diff review, per file, on post-image line numbers.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DiffReviewResponse implements StaleMarkable {
+    private String id;
+    private int score;
+    private String summary;
+    private List<FileFinding> fileFindings;
+    private int filesReviewed;
+    private int linesAdded;
+    private int linesRemoved;
+    private int linesSent; // code lines in the prompt, changed and context
+    private int totalFindings;
+    private long analyzedAt;
+    private boolean stale;
+}
@@ -8,10 +8,10 @@ import lombok.NoArgsConstructor;
 import java.util.List;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
-public class EnhancedAnalysisResponse {
+public class EnhancedAnalysisResponse implements StaleMarkable {
     // Original fields
     private String id;
     private int score;
@@ -19,6 +19,8 @@ public class EnhancedAnalysisResponse {
     private String improvedCode;
     private String summary;
     private long analyzedAt;
+    private boolean stale;
+    private List<String> incompleteSections; // fan-out sections that timed out or failed; null otherwise
 
     // NEW: Production Incident Simulation
     private List<ProductionIncident> predictedIncidents;
@@ -0,0 +1,19 @@
+package com.codeanalyzer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImprovedCodeResponse implements StaleMarkable {
+    private String diff; // unified diff against the analyzed code, empty when nothing changed
+    private int linesAdded;
+    private int linesRemoved;
+    private boolean complete; // false when generation stopped early; the diff then covers only the generated part
+    private long generatedAt;
+    private boolean stale;
+}
@@ -1,6 +1,7 @@
 package com.codeanalyzer.dto;
 
 import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Size;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -22,6 +23,7 @@ public class MultiFileAnalysisRequest {
     @Size(max = 1000, message = "Context must not exceed 1000 characters")
     private String context;
 
+    @Pattern(regexp = "^(brutal|mentor|edge-hunter)$", message = "Invalid persona")
     private String persona;
 
     private String projectName;
@@ -11,7 +11,7 @@ import java.util.List;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-public class MultiFileAnalysisResponse {
+public class MultiFileAnalysisResponse implements StaleMarkable {
     private String id;
     private int overallScore;
     private String summary;
@@ -21,6 +21,7 @@ public class MultiFileAnalysisResponse {
     private long analyzedAt;
     private int totalFiles;
     private int totalFindings;
+    private boolean stale;
 
     @Data
     @Builder
@@ -0,0 +1,11 @@
+package com.codeanalyzer.dto;
+
+/**
+ * A result that can be served from the last-known-good cache while the upstream is down.
+ */
+public interface StaleMarkable {
+
+    boolean isStale();
+
+    void setStale(boolean stale);
+}
@@ -0,0 +1,21 @@
+package com.codeanalyzer.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TokenEstimate {
+    private int calls; // upstream calls the request makes (more than one with fan-out)
+    private int inputTokens; // local estimate, before prompt caching
+    private int maxTokens; // max_tokens the calls would be sent with
+    private boolean fits; // false: the request would be refused as too large
+    private Integer expectedOutputTokens; // median of recent calls; null until enough have been seen
+    private Long expectedLatencyMillis; // null until enough calls have been seen
+    private Double expectedCostUsd; // null until enough calls have been seen
+    private double maxCostUsd; // if every call used all of max_tokens
+}
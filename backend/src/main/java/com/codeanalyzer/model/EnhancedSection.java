@@ -0,0 +1,76 @@
+package com.codeanalyzer.model;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The optional sections of an enhanced analysis; score and summary are always produced.
+ * Callers pick sections with {@code fields=}, by name or by response field name.
+ */
+public enum EnhancedSection {
+    FINDINGS("findings", "findings", "f"),
+    IMPROVED_CODE("improvedCode", "improvedCode", "code"),
+    INCIDENTS("incidents", "predictedIncidents", "inc"),
+    SHIP_IT("shipIt", "shipItScore", "ship"),
+    COST("cost", "costAnalysis", "cost"),
+    ACHIEVEMENTS("achievements", "achievements", "ach"),
+    FAMOUS_BUGS("famousBugs", "famousBugMatches", "fb"),
+    PRE_MORTEM("preMortem", "preMortem", "pm"),
+    ON_CALL("onCall", "onCallForecast", "oc"),
+    KARMA("karma", "codeKarma", "k"),
+    ROAST("roast", "roast", "r");
+
+    private final String value;
+    private final String field;
+    private final String compactField;
+
+    EnhancedSection(String value, String field, String compactField) {
+        this.value = value;
+        this.field = field;
+        this.compactField = compactField;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /** The property holding the section in the JSON response. */
+    public String getField() {
+        return field;
+    }
+
+    /** The property holding the section in the compact wire format. */
+    public String getCompactField() {
+        return compactField;
+    }
+
+    public static EnhancedSection fromValue(String value) {
+        for (EnhancedSection section : values()) {
+            if (section.value.equalsIgnoreCase(value.trim()) || section.field.equalsIgnoreCase(value.trim())) {
+                return section;
+            }
+        }
+        throw new IllegalArgumentException("Unknown section: " + value);
+    }
+
+    /**
+     * Every section except {@link #IMPROVED_CODE}, which is generated on demand instead
+     * (see {@code /api/analyses/{id}/improved-code}) unless explicitly selected.
+     */
+    public static Set<EnhancedSection> defaults() {
+        return EnumSet.complementOf(EnumSet.of(IMPROVED_CODE));
+    }
+
+    /**
+     * Parses a {@code fields=} selection; no selection means {@link #defaults()}.
+     */
+    public static Set<EnhancedSection> parse(Collection<String> values) {
+        if (values == null || values.stream().allMatch(String::isBlank)) {
+            return defaults();
+        }
+        EnumSet<EnhancedSection> sections = EnumSet.noneOf(EnhancedSection.class);
+        values.stream().filter(value -> !value.isBlank()).map(EnhancedSection::fromValue).forEach(sections::add);
+        return sections;
+    }
+}
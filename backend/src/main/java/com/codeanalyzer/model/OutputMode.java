@@ -0,0 +1,21 @@
+package com.codeanalyzer.model;
+
+/**
+ * How the model is asked to return its structured answer.
+ */
+public enum OutputMode {
+    /** JSON described in the prompt, written as text. */
+    JSON("json"),
+    /** The response schema declared as a forced tool; the answer is the tool call's input. */
+    TOOL("tool");
+
+    private final String value;
+
+    OutputMode(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -1,5 +1,6 @@
 package com.codeanalyzer.model;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 
 public enum Severity {
@@ -17,4 +18,19 @@ public enum Severity {
     public String getValue() {
         return value;
     }
+
+    /**
+     * Lenient on input: anything that isn't critical or warning counts as a suggestion.
+     */
+    @JsonCreator
+    public static Severity fromValue(String value) {
+        if (value == null) {
+            return SUGGESTION;
+        }
+        return switch (value.trim().toLowerCase()) {
+            case "critical" -> CRITICAL;
+            case "warning" -> WARNING;
+            default -> SUGGESTION;
+        };
+    }
 }
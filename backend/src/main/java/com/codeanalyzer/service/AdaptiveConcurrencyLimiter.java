@@ -0,0 +1,181 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AIMD limiter for concurrent upstream calls.
+ * <p>
+ * The limit grows additively (+1/limit per fast success) and shrinks multiplicatively
+ * when the upstream throttles (429/529/503), times out, or answers slower than the
+ * configured threshold. Work over the limit waits in a bounded FIFO queue for at most
+ * {@code maxQueueWait}; when the queue is full, callers are rejected immediately with
+ * {@link UpstreamUnavailableException}.
+ */
+@Component
+@Slf4j
+public class AdaptiveConcurrencyLimiter implements MeterBinder {
+
+    public enum Outcome {
+        SUCCESS,
+        THROTTLED,
+        IGNORED
+    }
+
+    private final ClaudeConfig.Limiter config;
+    private final Counter rejectedCounter;
+
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+    private double averageLatencySeconds = 30;
+
+    public AdaptiveConcurrencyLimiter(ClaudeConfig claudeConfig, MeterRegistry meterRegistry) {
+        this.config = claudeConfig.getLimiter();
+        this.limit = config.getInitialLimit();
+        this.rejectedCounter = meterRegistry.counter("claude.limiter.rejected");
+    }
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        Gauge.builder("claude.limiter.limit", this, l -> l.snapshot().limit()).register(meterRegistry);
+        Gauge.builder("claude.limiter.inflight", this, l -> l.snapshot().inFlight()).register(meterRegistry);
+        Gauge.builder("claude.limiter.queued", this, l -> l.snapshot().queued()).register(meterRegistry);
+    }
+
+    public record Snapshot(int limit, int inFlight, int queued) {
+    }
+
+    /**
+     * A granted slot. Must be released exactly once; later calls are ignored. Permits handed
+     * out while the limiter is disabled hold no slot, so releasing them changes nothing.
+     */
+    public final class Permit {
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final boolean limited;
+
+        private Permit(boolean limited) {
+            this.limited = limited;
+        }
+
+        public void release(Outcome outcome, boolean measureLatency) {
+            if (released.compareAndSet(false, true) && limited) {
+                onRelease(outcome, measureLatency ? System.nanoTime() - startNanos : -1);
+            }
+        }
+    }
+
+    private final class Waiter {
+        private final MonoSink<Permit> sink;
+        private Permit permit;
+
+        private Waiter(MonoSink<Permit> sink) {
+            this.sink = sink;
+        }
+    }
+
+    public Mono<Permit> acquire() {
+        if (!config.isEnabled()) {
+            return Mono.fromSupplier(() -> new Permit(false));
+        }
+        return Mono.<Permit>create(sink -> {
+                    Waiter waiter;
+                    synchronized (this) {
+                        if (inFlight < currentLimit()) {
+                            inFlight++;
+                            sink.success(new Permit(true));
+                            return;
+                        }
+                        if (queue.size() >= config.getMaxQueueSize()) {
+                            rejectedCounter.increment();
+                            sink.error(overloaded("Upstream concurrency limit reached and queue is full"));
+                            return;
+                        }
+                        waiter = new Waiter(sink);
+                        queue.addLast(waiter);
+                    }
+                    sink.onCancel(() -> abandon(waiter));
+                })
+                .timeout(config.getMaxQueueWait(), Mono.defer(() -> {
+                    rejectedCounter.increment();
+                    return Mono.error(overloaded("Timed out waiting for an upstream slot"));
+                }));
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(currentLimit(), inFlight, queue.size());
+    }
+
+    private void abandon(Waiter waiter) {
+        Permit granted;
+        synchronized (this) {
+            if (queue.remove(waiter)) {
+                return;
+            }
+            granted = waiter.permit;
+        }
+        // Granted concurrently with the cancel: hand the slot back
+        if (granted != null) {
+            granted.release(Outcome.IGNORED, false);
+        }
+    }
+
+    private void onRelease(Outcome outcome, long latencyNanos) {
+        List<Waiter> toGrant = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            adjustLimit(outcome, latencyNanos);
+            while (inFlight < currentLimit() && !queue.isEmpty()) {
+                Waiter waiter = queue.pollFirst();
+                waiter.permit = new Permit(true);
+                inFlight++;
+                toGrant.add(waiter);
+            }
+        }
+        toGrant.forEach(waiter -> waiter.sink.success(waiter.permit));
+    }
+
+    private void adjustLimit(Outcome outcome, long latencyNanos) {
+        if (latencyNanos >= 0) {
+            averageLatencySeconds = 0.9 * averageLatencySeconds + 0.1 * (latencyNanos / 1e9);
+        }
+        boolean slow = latencyNanos > config.getSlowCallThreshold().toNanos();
+        if (outcome == Outcome.THROTTLED || (outcome == Outcome.SUCCESS && slow)) {
+            // One decrease per in-flight generation; a burst of 429s shouldn't collapse the limit to the floor
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos > Duration.ofSeconds(1).toNanos()) {
+                lastDecreaseNanos = now;
+                limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+                log.info("Upstream {}: concurrency limit decreased to {}",
+                        outcome == Outcome.THROTTLED ? "throttling" : "slow call", currentLimit());
+            }
+        } else if (outcome == Outcome.SUCCESS) {
+            limit = Math.min(config.getMaxLimit(), limit + 1.0 / limit);
+        }
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+    private UpstreamUnavailableException overloaded(String message) {
+        long retryAfterSeconds;
+        synchronized (this) {
+            retryAfterSeconds = Math.max(1, Math.round(averageLatencySeconds * (queue.size() + 1) / Math.max(1, currentLimit())));
+        }
+        return new UpstreamUnavailableException(message, Duration.ofSeconds(retryAfterSeconds));
+    }
+}
@@ -0,0 +1,161 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.AnalysisCacheConfig;
+import com.codeanalyzer.dto.StaleMarkable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Content-addressed cache for analysis results.
+ * Keys are SHA-256 hashes of everything that shapes the model's answer, so identical
+ * submissions (e.g. CI re-sending unchanged files) are answered without an upstream call.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class AnalysisCache {
+
+    private final Cache<String, Object> analysisResultCache;
+    private final Cache<String, Object> staleResultCache;
+    private final AnalysisCacheConfig cacheConfig;
+    private final SingleFlight singleFlight;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Returns the cached result for the key, or subscribes to the loader and caches
+     * its value when the predicate accepts it (error responses are never cached).
+     * Concurrent misses for the same key share a single loader call. When the upstream
+     * is unavailable, the last known good result is returned marked stale, if there is one.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> getOrLoad(String key, Supplier<Mono<T>> loader, Predicate<T> cacheable) {
+        return Mono.defer(() -> {
+            if (cacheConfig.isEnabled()) {
+                Object cached = analysisResultCache.getIfPresent(key);
+                if (cached != null) {
+                    log.debug("Analysis cache hit for {}", key);
+                    return Mono.just((T) cached);
+                }
+            }
+            return singleFlight.execute(key, () -> loader.get()
+                    .doOnNext(value -> {
+                        if (cacheable.test(value)) {
+                            put(key, value);
+                        }
+                    }))
+                    .onErrorResume(UpstreamUnavailableException.class,
+                            e -> Mono.justOrEmpty(this.<T>stale(key)).switchIfEmpty(Mono.error(e)));
+        });
+    }
+
+    /**
+     * Copy of the last known good result for the key, marked stale. The copy keeps
+     * the stale flag out of the shared cached instance.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Optional<T> stale(String key) {
+        if (!cacheConfig.isEnabled()) {
+            return Optional.empty();
+        }
+        Object value = staleResultCache.getIfPresent(key);
+        if (!(value instanceof StaleMarkable)) {
+            return Optional.empty();
+        }
+        StaleMarkable copy = objectMapper.convertValue(value, (Class<? extends StaleMarkable>) value.getClass());
+        copy.setStale(true);
+        log.info("Upstream unavailable, serving stale result for {}", key);
+        return Optional.of((T) copy);
+    }
+
+    /**
+     * Cached value for the key, if any. Used by streaming endpoints that can't go
+     * through {@link #getOrLoad}.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Optional<T> peek(String key) {
+        if (!cacheConfig.isEnabled()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable((T) analysisResultCache.getIfPresent(key));
+    }
+
+    public void put(String key, Object value) {
+        if (cacheConfig.isEnabled()) {
+            analysisResultCache.put(key, value);
+            staleResultCache.put(key, value);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = analysisResultCache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", cacheConfig.isEnabled());
+        result.put("entries", analysisResultCache.estimatedSize());
+        result.put("weightedSizeBytes", analysisResultCache.policy().eviction()
+                .flatMap(eviction -> eviction.weightedSize().stream().boxed().findFirst())
+                .orElse(0L));
+        result.put("maximumWeightBytes", cacheConfig.getMaximumWeight());
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictionCount", stats.evictionCount());
+        result.put("staleEntries", staleResultCache.estimatedSize());
+        result.put("inFlight", singleFlight.inFlightCount());
+        result.put("coalescedRequests", singleFlight.coalescedCount());
+        return result;
+    }
+
+    public void invalidateAll() {
+        analysisResultCache.invalidateAll();
+        staleResultCache.invalidateAll();
+    }
+
+    /**
+     * Builds a cache key from a namespace and the inputs of one analysis
+     * (model, system prompt as the prompt version, normalized code, language, context...).
+     */
+    public static String key(String namespace, String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(namespace.getBytes(StandardCharsets.UTF_8));
+            for (String part : parts) {
+                digest.update((byte) 0);
+                if (part != null) {
+                    digest.update(part.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return namespace + ":" + HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Normalizes line endings and trailing whitespace so cosmetic differences
+     * don't defeat the cache. Line numbers are preserved.
+     */
+    public static String normalizeCode(String code) {
+        if (code == null) {
+            return "";
+        }
+        return code.replace("\r\n", "\n")
+                .replace('\r', '\n')
+                .replaceAll("[ \\t]+\n", "\n")
+                .stripTrailing();
+    }
+}
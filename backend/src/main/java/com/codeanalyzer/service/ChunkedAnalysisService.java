@@ -0,0 +1,196 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ChunkingConfig;
+import com.codeanalyzer.dto.AnalysisResponse;
+import com.codeanalyzer.dto.Finding;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+/**
+ * Analyzes files too large for one call as overlapping windows (see {@link CodeChunker}), in
+ * parallel, and merges the results into one {@link AnalysisResponse}.
+ * <p>
+ * Finding lines are shifted from window-relative to file lines. A finding reported by two
+ * windows in their overlap is kept once, the more severe one, or the one from the window whose
+ * core owns the line. The score is the average of the window scores weighted by core size.
+ * The merged result's improved code covers the whole file.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkedAnalysisService {
+
+    private static final String FAILURE_PREFIX = "Analysis failed: ";
+    private static final int DUPLICATE_LINE_DISTANCE = 3;
+    private static final double DUPLICATE_SIMILARITY = 0.5;
+
+    private final ClaudeService claudeService;
+    private final ImprovedCodeService improvedCodeService;
+    private final ChunkingConfig chunkingConfig;
+
+    private record Part(CodeChunker.Chunk chunk, AnalysisResponse response) {
+    }
+
+    private record Located(Finding finding, CodeChunker.Chunk chunk) {
+
+        boolean owned() {
+            Integer line = finding.getLine();
+            return line != null && line >= chunk.coreStartLine() && line <= chunk.coreEndLine();
+        }
+    }
+
+    public Mono<AnalysisResponse> analyze(String code, String language, String context, String persona) {
+        List<String> lines = CodeChunker.lines(code);
+        List<CodeChunker.Chunk> chunks = CodeChunker.split(lines, "python".equalsIgnoreCase(language),
+                chunkingConfig.getChunkSize(), chunkingConfig.getOverlap());
+        if (chunks.size() == 1) {
+            return claudeService.analyzeCode(code, language, context, persona);
+        }
+
+        log.info("Chunked analysis of {} lines in {} windows", lines.size(), chunks.size());
+        return Flux.fromIterable(chunks)
+                .flatMapSequential(chunk -> claudeService.analyzeCode(chunk.text(), language,
+                                chunkContext(chunk, chunks.size(), lines.size(), context), persona)
+                        .map(response -> new Part(chunk, response)), chunkingConfig.getConcurrency())
+                .collectList()
+                .map(parts -> merge(parts, lines))
+                .doOnNext(response -> register(response, code, language));
+    }
+
+    /**
+     * The windows' own results are never returned, so the improved code is generated for the
+     * whole file under the merged result's id.
+     */
+    private void register(AnalysisResponse response, String code, String language) {
+        if (!response.getSummary().startsWith(FAILURE_PREFIX)) {
+            improvedCodeService.register(response.getId(), code, language, response.getFindings());
+        }
+    }
+
+    private static String chunkContext(CodeChunker.Chunk chunk, int chunkCount, int lineCount, String context) {
+        String part = "This is part " + (chunk.index() + 1) + " of " + chunkCount + " of a larger file (lines "
+                + chunk.startLine() + "-" + chunk.endLine() + " of " + lineCount + "). Report line numbers relative"
+                + " to this part. Code it references may be defined in other parts; don't report it as missing.";
+        return context == null || context.isBlank() ? part : context + "\n" + part;
+    }
+
+    private AnalysisResponse merge(List<Part> parts, List<String> lines) {
+        List<Part> analyzed = parts.stream()
+                .filter(part -> !part.response().getSummary().startsWith(FAILURE_PREFIX))
+                .toList();
+        if (analyzed.isEmpty()) {
+            return parts.get(0).response();
+        }
+
+        List<Located> located = new ArrayList<>();
+        long weightedScore = 0;
+        long weight = 0;
+        StringBuilder summary = new StringBuilder("Analyzed in ").append(parts.size()).append(" overlapping parts.");
+        for (Part part : parts) {
+            CodeChunker.Chunk chunk = part.chunk();
+            summary.append("\nLines ").append(chunk.startLine()).append('-').append(chunk.endLine()).append(": ");
+            if (!analyzed.contains(part)) {
+                summary.append("could not be analyzed.");
+                continue;
+            }
+            summary.append(part.response().getSummary());
+            int coreChars = chunk.coreChars(lines);
+            weightedScore += (long) part.response().getScore() * coreChars;
+            weight += coreChars;
+            for (Finding finding : part.response().getFindings()) {
+                // Responses may be shared cache entries, so shift a copy
+                located.add(new Located(Finding.builder()
+                        .severity(finding.getSeverity())
+                        .line(finding.getLine() == null ? null : finding.getLine() + chunk.startLine() - 1)
+                        .issue(finding.getIssue())
+                        .explanation(finding.getExplanation())
+                        .suggestion(finding.getSuggestion())
+                        .build(), chunk));
+            }
+        }
+
+        return AnalysisResponse.builder()
+                .id(UUID.randomUUID().toString())
+                .score((int) Math.round((double) weightedScore / Math.max(1, weight)))
+                .findings(deduplicate(located))
+                .improvedCode("")
+                .summary(summary.toString())
+                .analyzedAt(System.currentTimeMillis())
+                .stale(analyzed.stream().anyMatch(part -> part.response().isStale()))
+                .build();
+    }
+
+    /**
+     * Most severe first, and among equals the owning window first, so the kept copy of a duplicate is the best one.
+     */
+    private static List<Finding> deduplicate(List<Located> located) {
+        List<Located> candidates = new ArrayList<>(located);
+        candidates.sort(Comparator.comparing((Located l) -> l.finding().getSeverity())
+                .thenComparing(l -> !l.owned()));
+        List<Located> kept = new ArrayList<>();
+        for (Located candidate : candidates) {
+            if (kept.stream().noneMatch(other -> isDuplicate(candidate, other))) {
+                kept.add(candidate);
+            }
+        }
+        return kept.stream()
+                .map(Located::finding)
+                .sorted(Comparator.comparing(Finding::getLine, Comparator.nullsLast(Comparator.naturalOrder())))
+                .toList();
+    }
+
+    /**
+     * The same issue seen by two windows: near the same line (which both windows contain) and similarly worded.
+     */
+    private static boolean isDuplicate(Located a, Located b) {
+        if (a.chunk() == b.chunk()) {
+            return false;
+        }
+        Integer lineA = a.finding().getLine();
+        Integer lineB = b.finding().getLine();
+        if ((lineA == null) != (lineB == null)) {
+            return false;
+        }
+        if (lineA != null && (Math.abs(lineA - lineB) > DUPLICATE_LINE_DISTANCE
+                || !inWindow(lineA, b.chunk()) || !inWindow(lineB, a.chunk()))) {
+            return false;
+        }
+        return similarity(a.finding().getIssue(), b.finding().getIssue()) >= DUPLICATE_SIMILARITY;
+    }
+
+    private static boolean inWindow(int line, CodeChunker.Chunk chunk) {
+        return line >= chunk.startLine() && line <= chunk.endLine();
+    }
+
+    /**
+     * Jaccard similarity of the words of two issue titles.
+     */
+    private static double similarity(String a, String b) {
+        Set<String> wordsA = words(a);
+        Set<String> wordsB = words(b);
+        if (wordsA.isEmpty() || wordsB.isEmpty()) {
+            return wordsA.equals(wordsB) ? 1 : 0;
+        }
+        Set<String> common = new HashSet<>(wordsA);
+        common.retainAll(wordsB);
+        return (double) common.size() / (wordsA.size() + wordsB.size() - common.size());
+    }
+
+    private static Set<String> words(String text) {
+        if (text == null) {
+            return Set.of();
+        }
+        Set<String> words = new HashSet<>();
+        for (String word : text.toLowerCase().split("[^a-z0-9]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,186 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.CiGateConfig;
+import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.dto.CiGateResult;
+import com.codeanalyzer.dto.Finding;
+import com.codeanalyzer.dto.ShipItScore;
+import com.codeanalyzer.model.Severity;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+/**
+ * Fail-fast merge gate. Uses a minimal prompt/schema instead of the full enhanced
+ * analysis, streams the answer, and cancels the upstream request as soon as the
+ * verdict and the first critical finding are known.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CiGateService {
+
+    private final ClaudeApiClient claudeApiClient;
+    private final ClaudeConfig claudeConfig;
+    private final CiGateConfig ciGateConfig;
+    private final ObjectMapper objectMapper;
+    private final AnalysisCache analysisCache;
+    private final PromptCompressor promptCompressor;
+
+    private static final String UNKNOWN_VERDICT = "UNKNOWN";
+
+    private static final String GATE_SYSTEM_PROMPT = """
+        You are a strict senior engineer deciding whether this code may be merged.
+        Assume every bug WILL happen in production. No optimism allowed.
+
+        RESPOND WITH ONLY THIS JSON, fields in EXACTLY this order, no prose:
+        {
+            "verdict": "<SHIP IT|MAYBE|NOPE|ARE YOU SERIOUS?>",
+            "score": <0-100, higher = more bugs>,
+            "riskBreakdown": {"securityRisk": <0-100>, "stabilityRisk": <0-100>, "performanceRisk": <0-100>, "maintainabilityRisk": <0-100>, "dataLossRisk": <0-100>},
+            "criticalFindings": [{"line": <number or null>, "issue": "<title>", "explanation": "<one sentence>", "suggestion": "<one sentence>"}]
+        }
+
+        List ONLY critical findings (will definitely cause bugs, crashes, security issues or data loss),
+        most severe first, at most %d. Use an empty array if there are none.
+        """;
+
+    public Mono<CiGateResult> evaluate(String code, String language, String context) {
+        String systemPrompt = String.format(GATE_SYSTEM_PROMPT, ciGateConfig.getMaxCriticalFindings());
+        PromptCompressor.Compressed compressed = promptCompressor.compress(code, language);
+        Map<String, Object> request = buildRequest(systemPrompt, buildUserPrompt(compressed, language, context));
+
+        String cacheKey = AnalysisCache.key("ci-gate", claudeConfig.getModel(), systemPrompt,
+                AnalysisCache.normalizeCode(code), language, context);
+
+        return analysisCache.getOrLoad(cacheKey, () -> streamVerdict(request, compressed.lineMap()),
+                        result -> !UNKNOWN_VERDICT.equals(result.getVerdict()))
+                .doOnError(e -> log.error("CI gate error: {}", e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException), e -> Mono.just(createUnknownResult()))
+                .contextWrite(UsageAccounting.tag("ci-gate", null, language));
+    }
+
+    private Mono<CiGateResult> streamVerdict(Map<String, Object> request, LineMap lineMap) {
+        return Mono.defer(() -> {
+            IncrementalJsonScanner scanner = new IncrementalJsonScanner();
+            GateAccumulator accumulator = new GateAccumulator(lineMap);
+
+            log.info("CI gate: streaming verdict (max_tokens={})", ciGateConfig.getMaxTokens());
+            return claudeApiClient.streamText(request)
+                    .concatMapIterable(scanner::feed)
+                    .doOnNext(accumulator::accept)
+                    // Cancelling here closes the upstream connection, which stops generation
+                    .takeUntil(fragment -> accumulator.isDecided())
+                    .then(Mono.fromCallable(() -> accumulator.toResult(scanner.isFinished())));
+        });
+    }
+
+    private Map<String, Object> buildRequest(String systemPrompt, String userPrompt) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("model", claudeConfig.getModel());
+        request.put("max_tokens", ciGateConfig.getMaxTokens());
+        request.put("system", systemPrompt);
+        request.put("messages", List.of(Map.of("role", "user", "content", userPrompt)));
+        return request;
+    }
+
+    private String buildUserPrompt(PromptCompressor.Compressed code, String language, String context) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Gate this ").append(language.toUpperCase()).append(" code:\n\n");
+        prompt.append("```").append(language).append("\n").append(code.code()).append("\n```\n\n");
+        if (code.stripped()) {
+            prompt.append(PromptCompressor.NOTE);
+        }
+        if (context != null && !context.isBlank()) {
+            prompt.append("Context: ").append(context).append("\n\n");
+        }
+        prompt.append("Give your verdict.");
+        return prompt.toString();
+    }
+
+    private CiGateResult createUnknownResult() {
+        return CiGateResult.builder()
+                .id(UUID.randomUUID().toString())
+                .verdict(UNKNOWN_VERDICT)
+                .criticalFindings(List.of())
+                .analyzedAt(System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * Collects the streamed gate fields. Not thread-safe; one per request.
+     */
+    private class GateAccumulator {
+        private String verdict;
+        private int score;
+        private ShipItScore.RiskBreakdown riskBreakdown;
+        private final List<Finding> criticalFindings = new ArrayList<>();
+        private final LineMap lineMap;
+        private boolean findingsClosed;
+
+        GateAccumulator(LineMap lineMap) {
+            this.lineMap = lineMap;
+        }
+
+        void accept(IncrementalJsonScanner.Fragment fragment) {
+            try {
+                switch (fragment.kind()) {
+                    case VALUE -> {
+                        JsonNode value = objectMapper.readTree(fragment.json());
+                        switch (fragment.field()) {
+                            case "verdict" -> verdict = value.asText();
+                            case "score" -> score = value.asInt();
+                            case "riskBreakdown" -> riskBreakdown =
+                                    objectMapper.treeToValue(value, ShipItScore.RiskBreakdown.class);
+                            default -> { }
+                        }
+                    }
+                    case ELEMENT -> {
+                        if ("criticalFindings".equals(fragment.field())) {
+                            JsonNode f = objectMapper.readTree(fragment.json());
+                            criticalFindings.add(Finding.builder()
+                                    .severity(Severity.CRITICAL)
+                                    .line(lineMap.toOriginal(f.hasNonNull("line") ? f.path("line").asInt() : null))
+                                    .issue(f.path("issue").asText())
+                                    .explanation(f.path("explanation").asText())
+                                    .suggestion(f.path("suggestion").asText())
+                                    .build());
+                        }
+                    }
+                    case ARRAY_END -> {
+                        if ("criticalFindings".equals(fragment.field())) {
+                            findingsClosed = true;
+                        }
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                log.warn("Skipping malformed gate field {}: {}", fragment.field(), e.getMessage());
+            }
+        }
+
+        boolean isDecided() {
+            return verdict != null && (!criticalFindings.isEmpty() || findingsClosed);
+        }
+
+        CiGateResult toResult(boolean complete) {
+            if (verdict == null) {
+                return createUnknownResult();
+            }
+            return CiGateResult.builder()
+                    .id(UUID.randomUUID().toString())
+                    .verdict(verdict)
+                    .score(score)
+                    .riskBreakdown(riskBreakdown)
+                    .criticalFindings(List.copyOf(criticalFindings))
+                    .complete(complete)
+                    .analyzedAt(System.currentTimeMillis())
+                    .build();
+        }
+    }
+}
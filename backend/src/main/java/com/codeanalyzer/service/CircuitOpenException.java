@@ -0,0 +1,15 @@
+package com.codeanalyzer.service;
+
+import java.time.Duration;
+
+/**
+ * Rejected without calling upstream because the circuit breaker is open.
+ */
+public class CircuitOpenException extends UpstreamUnavailableException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(Duration retryAfter) {
+        super("Upstream API circuit breaker is open", retryAfter);
+    }
+}
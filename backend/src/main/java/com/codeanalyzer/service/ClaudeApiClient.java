@@ -0,0 +1,274 @@
+package com.codeanalyzer.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.handler.timeout.ReadTimeoutException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.ContextView;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single entry point for calls to the Anthropic Messages API, so every service
+ * talks to the upstream the same way.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ClaudeApiClient {
+
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SSE_TYPE =
+            new ParameterizedTypeReference<>() {};
+
+    private final WebClient claudeWebClient;
+    private final ObjectMapper objectMapper;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final UpstreamRetryPolicy retryPolicy;
+    private final UpstreamCircuitBreaker circuitBreaker;
+    private final UpstreamHedgePolicy hedgePolicy;
+    private final ClaudeResponseReader responseReader;
+    private final UsageAccounting usageAccounting;
+
+    /**
+     * Sends a request and returns the raw (non-streamed) response body.
+     * Each retry attempt re-acquires a limiter slot, so backoff doesn't hold one.
+     */
+    public Mono<String> send(Map<String, Object> requestBody) {
+        return send(requestBody, null);
+    }
+
+    /**
+     * @param hedgeClass when set and no response has started arriving after that class's hedge
+     *                   delay, a second identical request races the first; the loser is cancelled.
+     *                   Calls of one class should have comparable latency (see {@link UpstreamHedgePolicy}).
+     */
+    public Mono<String> send(Map<String, Object> requestBody, String hedgeClass) {
+        return Mono.defer(() -> {
+            retryPolicy.recordRequest();
+            AtomicBoolean firstByte = new AtomicBoolean();
+            if (hedgeClass == null || !hedgePolicy.isEnabled()) {
+                return attempts(requestBody, null, firstByte);
+            }
+            hedgePolicy.recordRequest();
+            // A hedge that fails or isn't sent never signals, so the primary decides the outcome
+            Mono<String> hedge = Mono.delay(hedgePolicy.hedgeDelay(hedgeClass))
+                    .filter(tick -> !firstByte.get() && hedgePolicy.tryHedge())
+                    .flatMap(tick -> attempts(requestBody, hedgeClass, new AtomicBoolean()))
+                    .doOnNext(body -> hedgePolicy.recordHedgeWon())
+                    .onErrorResume(e -> {
+                        log.debug("Hedged request failed: {}", e.getMessage());
+                        return Mono.never();
+                    })
+                    .switchIfEmpty(Mono.never());
+            return Mono.firstWithSignal(attempts(requestBody, hedgeClass, firstByte), hedge);
+        });
+    }
+
+    private Mono<String> attempts(Map<String, Object> requestBody, String hedgeClass, AtomicBoolean firstByte) {
+        return circuitBreaker.protect(Mono.usingWhen(concurrencyLimiter.acquire(),
+                        permit -> exchange(requestBody, hedgeClass, firstByte),
+                        permit -> release(permit, AdaptiveConcurrencyLimiter.Outcome.SUCCESS, true),
+                        (permit, error) -> release(permit, classify(error), true),
+                        permit -> release(permit, AdaptiveConcurrencyLimiter.Outcome.IGNORED, false)), true)
+                .retryWhen(retryPolicy.spec());
+    }
+
+    private Mono<String> exchange(Map<String, Object> requestBody, String hedgeClass, AtomicBoolean firstByte) {
+        return Mono.deferContextual(context -> {
+            long start = System.nanoTime();
+            AtomicLong ttfb = new AtomicLong();
+            return claudeWebClient.post()
+                    .bodyValue(requestBody)
+                    .exchangeToMono(response -> {
+                        firstByte.set(true);
+                        ttfb.set(System.nanoTime() - start);
+                        if (hedgeClass != null) {
+                            hedgePolicy.recordFirstByte(hedgeClass, ttfb.get());
+                        }
+                        return response.statusCode().isError()
+                                ? response.<String>createError()
+                                : response.bodyToMono(String.class);
+                    })
+                    .doOnNext(body -> recordUsage(context, requestBody, body, start, ttfb.get()));
+        });
+    }
+
+    private void recordUsage(ContextView context, Map<String, Object> requestBody, String body,
+                             long startNanos, long ttfbNanos) {
+        try {
+            ClaudeResponseReader.Message<Void> metadata = responseReader.readMetadata(body);
+            usageAccounting.record(context, (String) requestBody.get("model"), metadata.usage(),
+                    metadata.stopReason(), Duration.ofNanos(System.nanoTime() - startNanos), Duration.ofNanos(ttfbNanos));
+        } catch (IOException e) {
+            log.warn("Cannot read usage from response: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the request with {@code stream: true} and emits the text deltas
+     * (or tool input JSON deltas) as the model produces them.
+     */
+    public Flux<String> streamText(Map<String, Object> requestBody) {
+        return streamText(requestBody, stopReason -> {
+        });
+    }
+
+    /**
+     * @param onStop receives the stream's stop_reason just before it completes, so a caller can
+     *               tell an answer cut off at max_tokens from a finished one
+     */
+    public Flux<String> streamText(Map<String, Object> requestBody, Consumer<String> onStop) {
+        Map<String, Object> streamingBody = new HashMap<>(requestBody);
+        streamingBody.put("stream", true);
+
+        return Flux.deferContextual(context -> {
+            retryPolicy.recordRequest();
+            AtomicBoolean received = new AtomicBoolean();
+            // Stream duration depends on output length, so only throttling feeds the limiter here
+            return circuitBreaker.protect(Flux.usingWhen(concurrencyLimiter.acquire(),
+                            permit -> Flux.defer(() -> {
+                                StreamUsage usage = new StreamUsage(System.nanoTime());
+                                return claudeWebClient.post()
+                                        .accept(MediaType.TEXT_EVENT_STREAM)
+                                        .bodyValue(streamingBody)
+                                        .retrieve()
+                                        .bodyToFlux(SSE_TYPE)
+                                        .takeUntil(event -> "message_stop".equals(event.event()))
+                                        .concatMap(event -> textDelta(event, usage))
+                                        .doOnComplete(() -> onStop.accept(usage.stopReason))
+                                        // Streams the caller stops early (fail-fast CI gate) are recorded too; their
+                                        // output tokens are never reported, so they count as 0
+                                        .doFinally(signal -> {
+                                            if (signal != SignalType.ON_ERROR && usage.startUsage != null) {
+                                                usageAccounting.record(context, (String) streamingBody.get("model"),
+                                                        usage.usage(),
+                                                        signal == SignalType.CANCEL ? "cancelled" : usage.stopReason,
+                                                        Duration.ofNanos(System.nanoTime() - usage.startNanos),
+                                                        Duration.ofNanos(usage.ttfbNanos));
+                                            }
+                                        });
+                            }),
+                            permit -> release(permit, AdaptiveConcurrencyLimiter.Outcome.SUCCESS, false),
+                            (permit, error) -> release(permit, classify(error), false),
+                            permit -> release(permit, AdaptiveConcurrencyLimiter.Outcome.IGNORED, false)))
+                    .doOnNext(text -> received.set(true))
+                    // Once text has been emitted a retry would duplicate it downstream
+                    .retryWhen(retryPolicy.spec(() -> !received.get()));
+        });
+    }
+
+    private Mono<Void> release(AdaptiveConcurrencyLimiter.Permit permit,
+                               AdaptiveConcurrencyLimiter.Outcome outcome, boolean measureLatency) {
+        return Mono.fromRunnable(() -> permit.release(outcome, measureLatency));
+    }
+
+    private AdaptiveConcurrencyLimiter.Outcome classify(Throwable error) {
+        if (error instanceof WebClientResponseException responseException) {
+            int status = responseException.getStatusCode().value();
+            return status == 429 || status == 503 || status == 529
+                    ? AdaptiveConcurrencyLimiter.Outcome.THROTTLED
+                    : AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+        }
+        if (error instanceof TimeoutException || error.getCause() instanceof TimeoutException
+                || error.getCause() instanceof ReadTimeoutException) {
+            return AdaptiveConcurrencyLimiter.Outcome.THROTTLED;
+        }
+        return AdaptiveConcurrencyLimiter.Outcome.IGNORED;
+    }
+
+    /**
+     * Maps an in-stream error event to the HTTP error it stands for, so the
+     * limiter and retry policy treat it like the equivalent status code.
+     */
+    private WebClientResponseException streamError(JsonNode error) {
+        int status = switch (error.path("type").asText()) {
+            case "overloaded_error" -> 529;
+            case "rate_limit_error" -> 429;
+            case "invalid_request_error" -> 400;
+            default -> 500;
+        };
+        String message = "Upstream stream error: " + error.path("message").asText();
+        return WebClientResponseException.create(status, message, HttpHeaders.EMPTY,
+                message.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Usage of one stream: input side from message_start, stop reason and output tokens from message_delta.
+     */
+    private static class StreamUsage {
+        final long startNanos;
+        long ttfbNanos;
+        JsonNode startUsage;
+        int outputTokens;
+        String stopReason;
+
+        StreamUsage(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        ClaudeResponseReader.Usage usage() {
+            ClaudeResponseReader.Usage input = startUsage == null
+                    ? ClaudeResponseReader.Usage.NONE : ClaudeResponseReader.Usage.from(startUsage);
+            return new ClaudeResponseReader.Usage(input.inputTokens(), Math.max(outputTokens, input.outputTokens()),
+                    input.cacheCreationInputTokens(), input.cacheReadInputTokens());
+        }
+    }
+
+    private Mono<String> textDelta(ServerSentEvent<String> event, StreamUsage usage) {
+        if (usage.ttfbNanos == 0) {
+            usage.ttfbNanos = System.nanoTime() - usage.startNanos;
+        }
+        if (event.data() == null) {
+            return Mono.empty();
+        }
+        try {
+            JsonNode data = objectMapper.readTree(event.data());
+            String type = data.path("type").asText();
+            if ("content_block_delta".equals(type)) {
+                // Tool-mode answers stream as input_json_delta; either way the text is the answer's JSON
+                JsonNode delta = data.path("delta");
+                return switch (delta.path("type").asText()) {
+                    case "text_delta" -> Mono.just(delta.path("text").asText());
+                    case "input_json_delta" -> Mono.just(delta.path("partial_json").asText());
+                    default -> Mono.empty();
+                };
+            }
+            if ("message_start".equals(type)) {
+                usage.startUsage = data.path("message").path("usage");
+                return Mono.empty();
+            }
+            if ("message_delta".equals(type)) {
+                usage.stopReason = data.path("delta").path("stop_reason").asText(null);
+                usage.outputTokens = data.path("usage").path("output_tokens").asInt();
+                return Mono.empty();
+            }
+            if ("error".equals(type)) {
+                return Mono.error(streamError(data.path("error")));
+            }
+            return Mono.empty();
+        } catch (JsonProcessingException e) {
+            log.warn("Skipping unparseable stream event: {}", e.getMessage());
+            return Mono.empty();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.codeanalyzer.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
+import com.fasterxml.jackson.databind.deser.ValueInstantiator;
+import com.fasterxml.jackson.databind.util.ClassUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binds the model's JSON answer straight into response DTOs.
+ * <p>
+ * The Messages API envelope is walked with a streaming {@link JsonParser}; the text of the
+ * first content block is read from the parser's own buffer and bound without building a tree
+ * or copying it into a String. In tool output mode the tool call's input is bound straight
+ * from the parser. Anything around the outermost JSON object (markdown fences,
+ * a stray sentence) is skipped.
+ * <p>
+ * Binding is lenient the way the old {@code JsonNode.asInt()} parsing was: unknown fields are
+ * ignored, numbers written as text ("$5,000") keep their digits, and values of the wrong shape
+ * become null / 0 instead of failing the whole analysis.
+ */
+@Component
+@Slf4j
+public class ClaudeResponseReader {
+
+    private static final Pattern INTEGER = Pattern.compile("-?\\d+");
+
+    private static final DeserializationProblemHandler LENIENT = new DeserializationProblemHandler() {
+        @Override
+        public Object handleWeirdStringValue(DeserializationContext ctxt, Class<?> targetType,
+                                             String valueToConvert, String failureMsg) {
+            Object fallback = targetType.isPrimitive() ? ClassUtil.defaultValue(targetType) : null;
+            Matcher matcher = INTEGER.matcher(valueToConvert.replace(",", ""));
+            if (!matcher.find()) {
+                return fallback;
+            }
+            try {
+                long number = Long.parseLong(matcher.group());
+                if (targetType == int.class || targetType == Integer.class) {
+                    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, number));
+                }
+                if (targetType == long.class || targetType == Long.class) {
+                    return number;
+                }
+            } catch (NumberFormatException ignored) {
+                // too long for a long
+            }
+            return fallback;
+        }
+
+        @Override
+        public Object handleUnexpectedToken(DeserializationContext ctxt, JavaType targetType, JsonToken t,
+                                            JsonParser p, String failureMsg) throws IOException {
+            p.skipChildren();
+            return targetType.isPrimitive() ? ClassUtil.defaultValue(targetType.getRawClass()) : null;
+        }
+
+        @Override
+        public Object handleMissingInstantiator(DeserializationContext ctxt, Class<?> instClass,
+                                                ValueInstantiator valueInsta, JsonParser p, String msg) throws IOException {
+            // A scalar where an object was expected, e.g. "shipItScore": "NOPE"
+            p.skipChildren();
+            return null;
+        }
+    };
+
+    private final ObjectMapper objectMapper;
+    private final ObjectReader reader;
+
+    public ClaudeResponseReader(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        this.reader = objectMapper.reader()
+                .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .with(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+                .withHandler(LENIENT);
+    }
+
+    /**
+     * One decoded Messages API response.
+     *
+     * @param value        what the first text block or tool input was bound to; null when there is neither
+     * @param partialText the raw text, kept only when it wasn't complete JSON and had to be repaired
+     * @param usage       the response's {@code usage}; all zero if absent
+     */
+    public record Message<T>(T value, String stopReason, String partialText, Usage usage) {
+
+        /**
+         * The model ran into max_tokens, so the output ends mid-way.
+         */
+        public boolean truncated() {
+            return "max_tokens".equals(stopReason);
+        }
+    }
+
+    /**
+     * Token counts of one response. {@code inputTokens} excludes what was written to or read from the prompt cache.
+     */
+    public record Usage(int inputTokens, int outputTokens, int cacheCreationInputTokens, int cacheReadInputTokens) {
+
+        public static final Usage NONE = new Usage(0, 0, 0, 0);
+
+        public static Usage from(JsonNode usage) {
+            return new Usage(usage.path("input_tokens").asInt(), usage.path("output_tokens").asInt(),
+                    usage.path("cache_creation_input_tokens").asInt(), usage.path("cache_read_input_tokens").asInt());
+        }
+    }
+
+    @FunctionalInterface
+    private interface TextBinder<T> {
+        Message<T> bind(char[] buffer, int offset, int length) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface InputBinder<T> {
+        T bind(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Reads a non-streamed Messages API response and binds the JSON in its first text block,
+     * or the input of its first tool call, onto {@code target}, whose preset values act as
+     * defaults for missing fields. Text cut off by max_tokens is repaired (see {@link JsonRepair})
+     * instead of failing.
+     */
+    public <T> Message<T> readMessage(String responseBody, T target) throws IOException {
+        return scan(responseBody, (buffer, offset, length) -> {
+            try {
+                return new Message<>(bind(buffer, offset, length, target), null, null, Usage.NONE);
+            } catch (JsonProcessingException e) {
+                // Copied only here: the parser's buffer is reused once we move on
+                return new Message<>(repair(buffer, offset, offset + length, target, e), null,
+                        new String(buffer, offset, length), Usage.NONE);
+            }
+        }, parser -> reader.withValueToUpdate(target).readValue(parser));
+    }
+
+    /**
+     * Reads a response whose text is not JSON on its own, e.g. the tail produced by a continuation.
+     */
+    public Message<String> readRawMessage(String responseBody) throws IOException {
+        return scan(responseBody,
+                (buffer, offset, length) -> new Message<>(new String(buffer, offset, length), null, null, Usage.NONE), null);
+    }
+
+    /**
+     * Reads only stop_reason and usage, skipping over the content.
+     */
+    public Message<Void> readMetadata(String responseBody) throws IOException {
+        return scan(responseBody, (buffer, offset, length) -> new Message<>(null, null, null, Usage.NONE), null);
+    }
+
+    /**
+     * Binds the JSON object in accumulated model text (e.g. a finished stream) onto {@code target},
+     * repairing it if it was cut off.
+     */
+    public <T> T readText(CharSequence text, T target) throws IOException {
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = text.charAt(i);
+        }
+        try {
+            return bind(chars, 0, chars.length, target);
+        } catch (JsonProcessingException e) {
+            return repair(chars, 0, chars.length, target, e);
+        }
+    }
+
+    /**
+     * Binds one standalone JSON value, e.g. a finding emitted mid-stream.
+     */
+    public <T> T readValue(String json, Class<T> type) throws IOException {
+        return reader.forType(type).readValue(json);
+    }
+
+    private <T> Message<T> scan(String responseBody, TextBinder<T> textBinder, InputBinder<T> inputBinder)
+            throws IOException {
+        Message<T> bound = new Message<>(null, null, null, Usage.NONE);
+        String stopReason = null;
+        Usage usage = Usage.NONE;
+        try (JsonParser parser = objectMapper.createParser(responseBody)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw JsonMappingException.from(parser, "Expected a message object");
+            }
+            boolean answerSeen = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("stop_reason".equals(field) && token == JsonToken.VALUE_STRING) {
+                    stopReason = parser.getText();
+                } else if ("usage".equals(field) && token == JsonToken.START_OBJECT) {
+                    usage = Usage.from(parser.readValueAsTree());
+                } else if ("content".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String blockField = parser.currentName();
+                            JsonToken value = parser.nextToken();
+                            if (answerSeen) {
+                                parser.skipChildren();
+                            } else if ("text".equals(blockField) && value == JsonToken.VALUE_STRING) {
+                                // The text chars are only valid until the next token, so bind right here
+                                bound = textBinder.bind(parser.getTextCharacters(), parser.getTextOffset(),
+                                        parser.getTextLength());
+                                answerSeen = true;
+                            } else if ("input".equals(blockField) && value == JsonToken.START_OBJECT && inputBinder != null) {
+                                bound = new Message<>(inputBinder.bind(parser), null, null, Usage.NONE);
+                                answerSeen = true;
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new Message<>(bound.value(), stopReason, bound.partialText(), usage);
+    }
+
+    private <T> T repair(char[] buffer, int offset, int end, T target, JsonProcessingException cause) throws IOException {
+        int start = offset;
+        while (start < end && buffer[start] != '{') {
+            start++;
+        }
+        String repaired = start < end ? JsonRepair.close(buffer, start, end) : null;
+        if (repaired == null) {
+            throw cause;
+        }
+        log.warn("Model output was not complete JSON ({}), keeping the complete part", cause.getOriginalMessage());
+        return reader.withValueToUpdate(target).readValue(repaired);
+    }
+
+    private <T> T bind(char[] buffer, int offset, int length, T target) throws IOException {
+        int start = offset;
+        int end = offset + length - 1;
+        while (start <= end && buffer[start] != '{') {
+            start++;
+        }
+        while (end >= start && buffer[end] != '}') {
+            end--;
+        }
+        if (start > end) {
+            throw JsonMappingException.from((JsonParser) null, "No JSON object in model output");
+        }
+        try (JsonParser parser = objectMapper.createParser(buffer, start, end - start + 1)) {
+            return reader.withValueToUpdate(target).readValue(parser);
+        }
+    }
+}
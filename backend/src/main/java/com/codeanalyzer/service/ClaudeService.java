@@ -2,18 +2,18 @@ package com.codeanalyzer.service;
 
 import com.codeanalyzer.config.ClaudeConfig;
 import com.codeanalyzer.dto.AnalysisResponse;
+import com.codeanalyzer.dto.AnalysisStreamEvent;
 import com.codeanalyzer.dto.Finding;
+import com.codeanalyzer.dto.TokenEstimate;
 import com.codeanalyzer.model.Persona;
 import com.codeanalyzer.model.Severity;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.util.*;
 
 @Service
@@ -21,123 +21,217 @@ import java.util.*;
 @Slf4j
 public class ClaudeService {
 
-    private final WebClient claudeWebClient;
+    private final ClaudeApiClient claudeApiClient;
     private final ClaudeConfig claudeConfig;
     private final PromptTemplateService promptTemplateService;
-    private final ObjectMapper objectMapper;
+    private final ClaudeResponseReader responseReader;
+    private final ModelOutputReader modelOutputReader;
+    private final StructuredOutput structuredOutput;
+    private final AnalysisCache analysisCache;
+    private final PromptCache promptCache;
+    private final ImprovedCodeService improvedCodeService;
+    private final TokenBudget tokenBudget;
+    private final PromptCompressor promptCompressor;
+
+    private static final String FAILURE_PREFIX = "Analysis failed: ";
+    private static final String ENDPOINT = "analyze";
 
     public Mono<AnalysisResponse> analyzeCode(String code, String language, String context, String personaValue) {
         Persona persona = Persona.fromValue(personaValue);
-        String systemPrompt = promptTemplateService.getSystemPrompt(persona);
-        String userPrompt = promptTemplateService.buildUserPrompt(code, language, context);
+        PromptCache.SystemPrompt systemPrompt =
+                structuredOutput.systemPrompt(ENDPOINT, promptTemplateService.getSystemPrompt(persona));
+        PromptCompressor.Compressed compressed = promptCompressor.compress(code, language);
+        String userPrompt = promptTemplateService.buildUserPrompt(compressed, language, context);
 
         Map<String, Object> requestBody = buildRequest(systemPrompt, userPrompt);
+        TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, null, requestBody, claudeConfig.getMaxTokens());
+
+        String cacheKey = AnalysisCache.key("analyze", claudeConfig.getModel(), systemPrompt.text(),
+                AnalysisCache.normalizeCode(code), language, context);
+
+        return analysisCache.getOrLoad(cacheKey, () -> {
+                    log.debug("Sending request to Claude API with persona: {}", persona);
+                    return claudeApiClient.send(requestBody)
+                            .flatMap(response -> parseResponse(requestBody, response))
+                            .map(response -> remapLines(response, compressed.lineMap()));
+                }, response -> !response.getSummary().startsWith(FAILURE_PREFIX))
+                .doOnNext(response -> registerSource(response, code, language))
+                .doOnError(e -> log.error("Error calling Claude API: {}", e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException), e -> Mono.just(createErrorResponse(e.getMessage())))
+                .contextWrite(budget::attach)
+                .contextWrite(UsageAccounting.tag(ENDPOINT, personaValue, language));
+    }
 
-        log.debug("Sending request to Claude API with persona: {}", persona);
+    /**
+     * Predicts what {@link #analyzeCode} would cost without calling the API.
+     */
+    public TokenEstimate estimate(String code, String language, String context, String personaValue) {
+        PromptCache.SystemPrompt systemPrompt = structuredOutput.systemPrompt(ENDPOINT,
+                promptTemplateService.getSystemPrompt(Persona.fromValue(personaValue)));
+        Map<String, Object> requestBody = buildRequest(systemPrompt,
+                promptTemplateService.buildUserPrompt(promptCompressor.compress(code, language), language, context));
+        return tokenBudget.estimate(ENDPOINT, null, requestBody, claudeConfig.getMaxTokens());
+    }
 
-        return claudeWebClient.post()
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .map(this::parseResponse)
-                .doOnError(e -> log.error("Error calling Claude API: {}", e.getMessage()))
-                .onErrorResume(e -> Mono.just(createErrorResponse(e.getMessage())));
+    /**
+     * Identifies everything besides the code that shapes an {@link #analyzeCode} answer (model and
+     * system prompt), for callers that cache parts of its results under their own keys.
+     */
+    public String promptVersion(String personaValue) {
+        PromptCache.SystemPrompt systemPrompt = structuredOutput.systemPrompt(ENDPOINT,
+                promptTemplateService.getSystemPrompt(Persona.fromValue(personaValue)));
+        return AnalysisCache.key("prompt", claudeConfig.getModel(), systemPrompt.text());
+    }
+
+    /**
+     * Streaming variant of {@link #analyzeCode}: emits each finding as soon as the model
+     * has finished writing it, followed by the complete result.
+     */
+    public Flux<AnalysisStreamEvent> streamAnalysis(String code, String language, String context, String personaValue) {
+        Persona persona = Persona.fromValue(personaValue);
+        PromptCache.SystemPrompt systemPrompt =
+                structuredOutput.systemPrompt(ENDPOINT, promptTemplateService.getSystemPrompt(persona));
+        PromptCompressor.Compressed compressed = promptCompressor.compress(code, language);
+        String userPrompt = promptTemplateService.buildUserPrompt(compressed, language, context);
+
+        String cacheKey = AnalysisCache.key("analyze", claudeConfig.getModel(), systemPrompt.text(),
+                AnalysisCache.normalizeCode(code), language, context);
+
+        return Flux.defer(() -> {
+            Optional<AnalysisResponse> cached = analysisCache.peek(cacheKey);
+            if (cached.isPresent()) {
+                return Flux.fromIterable(cached.get().getFindings())
+                        .map(finding -> AnalysisStreamEvent.of("finding", finding))
+                        .concatWithValues(AnalysisStreamEvent.of("result", cached.get()));
+            }
+
+            Map<String, Object> requestBody = buildRequest(systemPrompt, userPrompt);
+            TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, null, requestBody, claudeConfig.getMaxTokens());
+            IncrementalJsonScanner scanner = new IncrementalJsonScanner();
+            StringBuilder fullText = new StringBuilder();
+
+            return claudeApiClient.streamText(requestBody)
+                    .doOnNext(fullText::append)
+                    .concatMapIterable(scanner::feed)
+                    .filter(fragment -> fragment.kind() == IncrementalJsonScanner.Kind.ELEMENT
+                            && "findings".equals(fragment.field()))
+                    .concatMap(fragment -> Mono.justOrEmpty(parseFindingFragment(fragment.json())))
+                    .map(compressed.lineMap()::remap)
+                    .map(finding -> AnalysisStreamEvent.of("finding", finding))
+                    .concatWith(Mono.fromCallable(() -> {
+                        AnalysisResponse result = remapLines(parseAnalysisJson(fullText), compressed.lineMap());
+                        if (!result.getSummary().startsWith(FAILURE_PREFIX)) {
+                            analysisCache.put(cacheKey, result);
+                        }
+                        return AnalysisStreamEvent.of("result", result);
+                    }))
+                    .onErrorResume(UpstreamUnavailableException.class, e -> Mono.justOrEmpty(analysisCache.<AnalysisResponse>stale(cacheKey))
+                            .map(stale -> AnalysisStreamEvent.of("result", stale))
+                            .switchIfEmpty(Mono.error(e)))
+                    .contextWrite(budget::attach);
+        })
+                .doOnNext(event -> {
+                    if (event.getData() instanceof AnalysisResponse response) {
+                        registerSource(response, code, language);
+                    }
+                })
+                .doOnError(e -> log.error("Error streaming from Claude API: {}", e.getMessage()))
+                .onErrorResume(e -> Mono.just(AnalysisStreamEvent.of("error", createErrorResponse(e.getMessage()))))
+                .contextWrite(UsageAccounting.tag(ENDPOINT, personaValue, language));
     }
 
-    private Map<String, Object> buildRequest(String systemPrompt, String userPrompt) {
+    /**
+     * The improved code is no longer part of the analysis; it is generated on demand from what is registered here.
+     */
+    private void registerSource(AnalysisResponse response, String code, String language) {
+        if (!response.getSummary().startsWith(FAILURE_PREFIX)) {
+            improvedCodeService.register(response.getId(), code, language, response.getFindings());
+        }
+    }
+
+    /**
+     * Translates the lines the model saw back to the submitted code's, before the result is cached.
+     */
+    private static AnalysisResponse remapLines(AnalysisResponse response, LineMap lineMap) {
+        lineMap.remapFindings(response.getFindings());
+        return response;
+    }
+
+    private Map<String, Object> buildRequest(PromptCache.SystemPrompt systemPrompt, String userPrompt) {
         Map<String, Object> request = new HashMap<>();
         request.put("model", claudeConfig.getModel());
-        request.put("max_tokens", claudeConfig.getMaxTokens());
-        request.put("system", systemPrompt);
+        request.put("system", promptCache.system(systemPrompt));
         request.put("messages", List.of(
                 Map.of("role", "user", "content", userPrompt)
         ));
-        return request;
+        return structuredOutput.apply(ENDPOINT, "analysis", request);
     }
 
-    private AnalysisResponse parseResponse(String responseBody) {
-        try {
-            JsonNode root = objectMapper.readTree(responseBody);
-            JsonNode contentArray = root.path("content");
-
-            if (contentArray.isArray() && !contentArray.isEmpty()) {
-                String text = contentArray.get(0).path("text").asText();
-                return parseAnalysisJson(text);
-            }
-
-            log.error("Unexpected response structure: {}", responseBody);
-            return createErrorResponse("Unexpected response format from AI");
-        } catch (JsonProcessingException e) {
-            log.error("Failed to parse Claude response: {}", e.getMessage());
-            return createErrorResponse("Failed to parse AI response");
-        }
+    private Mono<AnalysisResponse> parseResponse(Map<String, Object> requestBody, String responseBody) {
+        return modelOutputReader.read(ENDPOINT, requestBody, responseBody, this::defaults)
+                .map(this::complete)
+                .switchIfEmpty(Mono.fromSupplier(() -> {
+                    log.error("Unexpected response structure: {}", responseBody);
+                    return createErrorResponse("Unexpected response format from AI");
+                }))
+                .onErrorResume(IOException.class, e -> {
+                    log.error("Failed to parse Claude response: {}", e.getMessage());
+                    return Mono.just(createErrorResponse("Failed to parse analysis results"));
+                });
     }
 
-    private AnalysisResponse parseAnalysisJson(String text) {
+    private AnalysisResponse parseAnalysisJson(CharSequence text) {
         try {
-            // Extract JSON from the response (handle markdown code blocks if present)
-            String jsonContent = extractJson(text);
-            JsonNode analysisNode = objectMapper.readTree(jsonContent);
-
-            List<Finding> findings = new ArrayList<>();
-            JsonNode findingsArray = analysisNode.path("findings");
-
-            if (findingsArray.isArray()) {
-                for (JsonNode findingNode : findingsArray) {
-                    Finding finding = Finding.builder()
-                            .severity(parseSeverity(findingNode.path("severity").asText()))
-                            .line(findingNode.has("line") && !findingNode.path("line").isNull()
-                                    ? findingNode.path("line").asInt() : null)
-                            .issue(findingNode.path("issue").asText())
-                            .explanation(findingNode.path("explanation").asText())
-                            .suggestion(findingNode.path("suggestion").asText())
-                            .build();
-                    findings.add(finding);
-                }
-            }
-
-            return AnalysisResponse.builder()
-                    .id(UUID.randomUUID().toString())
-                    .score(analysisNode.path("score").asInt(50))
-                    .summary(analysisNode.path("summary").asText())
-                    .findings(findings)
-                    .improvedCode(analysisNode.path("improvedCode").asText())
-                    .analyzedAt(System.currentTimeMillis())
-                    .build();
-
-        } catch (JsonProcessingException e) {
+            return complete(responseReader.readText(text, defaults()));
+        } catch (IOException e) {
             log.error("Failed to parse analysis JSON: {}. Raw text: {}", e.getMessage(), text);
             return createErrorResponse("Failed to parse analysis results");
         }
     }
 
-    private String extractJson(String text) {
-        // Remove markdown code blocks if present
-        String cleaned = text.trim();
-        if (cleaned.startsWith("```json")) {
-            cleaned = cleaned.substring(7);
-        } else if (cleaned.startsWith("```")) {
-            cleaned = cleaned.substring(3);
-        }
-        if (cleaned.endsWith("```")) {
-            cleaned = cleaned.substring(0, cleaned.length() - 3);
+    /**
+     * Binding target; preset values are what the model's answer falls back to when it omits a field.
+     */
+    private AnalysisResponse defaults() {
+        return AnalysisResponse.builder()
+                .score(50)
+                .summary("")
+                .findings(List.of())
+                .improvedCode("")
+                .build();
+    }
+
+    private AnalysisResponse complete(AnalysisResponse response) {
+        response.setId(UUID.randomUUID().toString());
+        response.setAnalyzedAt(System.currentTimeMillis());
+        response.setSummary(Objects.requireNonNullElse(response.getSummary(), ""));
+        response.setImprovedCode(Objects.requireNonNullElse(response.getImprovedCode(), ""));
+        response.setFindings(response.getFindings() == null ? List.of()
+                : response.getFindings().stream().filter(Objects::nonNull).map(this::complete).toList());
+        return response;
+    }
+
+    private Finding complete(Finding finding) {
+        if (finding.getSeverity() == null) {
+            finding.setSeverity(Severity.SUGGESTION);
         }
-        return cleaned.trim();
+        return finding;
     }
 
-    private Severity parseSeverity(String value) {
-        return switch (value.toLowerCase()) {
-            case "critical" -> Severity.CRITICAL;
-            case "warning" -> Severity.WARNING;
-            default -> Severity.SUGGESTION;
-        };
+    private Finding parseFindingFragment(String json) {
+        try {
+            return complete(responseReader.readValue(json, Finding.class));
+        } catch (IOException e) {
+            log.warn("Skipping malformed streamed finding: {}", e.getMessage());
+            return null;
+        }
     }
 
     private AnalysisResponse createErrorResponse(String message) {
         return AnalysisResponse.builder()
                 .id(UUID.randomUUID().toString())
                 .score(0)
-                .summary("Analysis failed: " + message)
+                .summary(FAILURE_PREFIX + message)
                 .findings(List.of())
                 .improvedCode("")
                 .analyzedAt(System.currentTimeMillis())
@@ -0,0 +1,218 @@
+package com.codeanalyzer.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits source code into overlapping windows of at most {@code maxChars}, cutting at
+ * declaration boundaries where it can.
+ * <p>
+ * A boundary is a line that starts something at the top level or one level in (a class
+ * member), right after a line that ended the previous thing: a blank line, or one ending in
+ * {@code ;}, <code>}</code> or {@code :}. Nesting is tracked by braces, or by indentation for Python.
+ * Each window after the first starts at a boundary at least {@code overlapChars} before the
+ * previous window's cut, so code near a cut is seen whole by at least one window.
+ */
+final class CodeChunker {
+
+    /**
+     * Lines are 1-based and inclusive. The core is the part of the window no other window's core
+     * covers; together the cores partition the file.
+     */
+    record Chunk(int index, int startLine, int endLine, int coreStartLine, int coreEndLine, String text) {
+
+        int coreChars(List<String> lines) {
+            int chars = 0;
+            for (int line = coreStartLine; line <= coreEndLine; line++) {
+                chars += lines.get(line - 1).length() + 1;
+            }
+            return chars;
+        }
+    }
+
+    private CodeChunker() {
+    }
+
+    static List<String> lines(String code) {
+        return List.of(code.replace("\r\n", "\n").split("\n", -1));
+    }
+
+    static List<Chunk> split(List<String> lines, boolean python, int maxChars, int overlapChars) {
+        int n = lines.size();
+        long[] prefix = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            prefix[i + 1] = prefix[i] + lines.get(i).length() + 1;
+        }
+        boolean[] boundary = boundaries(lines, python, null);
+
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        int coreStart = 0;
+        while (true) {
+            int end = start + 1;
+            while (end < n && prefix[end + 1] - prefix[start] <= maxChars) {
+                end++;
+            }
+            if (end >= n) {
+                chunks.add(chunk(chunks.size(), lines, start, n, coreStart, n));
+                return chunks;
+            }
+            // Cut at the last boundary in the second half of the window, past the previous cut
+            int cut = end;
+            for (int i = end; i > Math.max(start + (end - start) / 2, coreStart); i--) {
+                if (boundary[i]) {
+                    cut = i;
+                    break;
+                }
+            }
+            chunks.add(chunk(chunks.size(), lines, start, cut, coreStart, cut));
+
+            // Next window starts early enough to overlap, preferably at a boundary not much further back
+            int next = cut;
+            while (next > start + 1 && prefix[cut] - prefix[next] < overlapChars) {
+                next--;
+            }
+            start = Math.max(start + 1, nearestBoundary(boundary, prefix, next, start, cut, overlapChars));
+            coreStart = cut;
+        }
+    }
+
+    /**
+     * The boundary at or before {@code from} within another {@code overlapChars}, else the first one
+     * after it (less overlap, but a clean start), else {@code from} itself.
+     */
+    private static int nearestBoundary(boolean[] boundary, long[] prefix, int from, int start, int cut,
+                                       int overlapChars) {
+        for (int i = from; i > start && prefix[cut] - prefix[i] <= 2L * overlapChars; i--) {
+            if (boundary[i]) {
+                return i;
+            }
+        }
+        for (int i = from + 1; i < cut; i++) {
+            if (boundary[i]) {
+                return i;
+            }
+        }
+        return from;
+    }
+
+    private static Chunk chunk(int index, List<String> lines, int start, int end, int coreStart, int coreEnd) {
+        return new Chunk(index, start + 1, end, coreStart + 1, coreEnd, String.join("\n", lines.subList(start, end)));
+    }
+
+    /**
+     * Splits code into top-level units (imports and fields, classes, methods, functions), each
+     * with the comments and annotations before it. Outside Python a unit starts at every boundary.
+     * Python statements can't be told apart by how they end, so there a unit starts at each
+     * top-level statement and each {@code def} or {@code class} one level in, together with the
+     * comments and decorators right above it.
+     *
+     * @return 0-based first line of each unit, starting with 0
+     */
+    static List<Integer> unitStarts(List<String> lines, boolean python) {
+        int[] levels = new int[lines.size()];
+        boolean[] boundary = boundaries(lines, python, levels);
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        String previous = "";
+        for (int i = 1; i < lines.size(); i++) {
+            String trimmed = lines.get(i).strip();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            boolean start = python
+                    ? (levels[i] == 0 && !startsWithClosingBracket(trimmed) || levels[i] == 1 && startsDeclaration(trimmed))
+                    && !previous.startsWith("#") && !previous.startsWith("@") && !continues(previous)
+                    : boundary[i];
+            if (start) {
+                starts.add(i);
+            }
+            previous = trimmed;
+        }
+        return starts;
+    }
+
+    private static boolean startsDeclaration(String trimmed) {
+        return trimmed.startsWith("def ") || trimmed.startsWith("async def ") || trimmed.startsWith("class ")
+                || trimmed.startsWith("@");
+    }
+
+    private static boolean startsWithClosingBracket(String trimmed) {
+        char c = trimmed.charAt(0);
+        return c == ')' || c == ']' || c == '}';
+    }
+
+    private static boolean continues(String trimmed) {
+        return trimmed.endsWith("\\") || trimmed.endsWith(",") || trimmed.endsWith("(") || trimmed.endsWith("[")
+                || trimmed.endsWith("{");
+    }
+
+    /**
+     * boundary[i]: a window may start at line i (0-based). Fills {@code levels} with each line's nesting level, if given.
+     */
+    private static boolean[] boundaries(List<String> lines, boolean python, int[] levels) {
+        boolean[] boundary = new boolean[lines.size() + 1];
+        int depth = 0;
+        int indentUnit = 0;
+        boolean previousEnded = true;
+        boolean opensBlock = false;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            String trimmed = line.strip();
+            if (trimmed.isEmpty()) {
+                previousEnded = true;
+                continue;
+            }
+            int level;
+            if (python) {
+                int indent = line.length() - line.stripLeading().length();
+                // Learned from the first block, not from a continuation line's alignment
+                if (indent > 0 && indentUnit == 0 && opensBlock) {
+                    indentUnit = indent;
+                }
+                level = indentUnit == 0 ? 0 : indent / indentUnit;
+            } else {
+                level = depth;
+            }
+            boundary[i] = previousEnded && level <= 1;
+            if (levels != null) {
+                levels[i] = level;
+            }
+
+            if (!python) {
+                depth = Math.max(0, depth + braceDelta(trimmed));
+            }
+            // Comments belong to what follows them, so they don't end anything
+            previousEnded = trimmed.endsWith(";") || trimmed.endsWith("}") || trimmed.endsWith(":");
+            opensBlock = trimmed.endsWith(":");
+        }
+        return boundary;
+    }
+
+    /**
+     * Braces opened minus closed, ignoring string and char literals and line comments.
+     */
+    private static int braceDelta(String line) {
+        int delta = 0;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'' || c == '`') {
+                quote = c;
+            } else if (c == '/' && i + 1 < line.length() && line.charAt(i + 1) == '/') {
+                break;
+            } else if (c == '{') {
+                delta++;
+            } else if (c == '}') {
+                delta--;
+            }
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,344 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.dto.*;
+import com.codeanalyzer.model.Severity;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Compact wire format for the enhanced analysis: short keys, enums as indexes and the risk
+ * breakdown as a plain array. The model writes this (far fewer output tokens than the
+ * full field names) and {@link #expand()} turns it into the public DTOs.
+ * <p>
+ * Enum indexes follow the order of the legend in the compact prompt and schema; a name
+ * written instead of an index is accepted too.
+ */
+@Data
+public class CompactEnhancedOutput {
+
+    static final Severity[] SEVERITIES = {Severity.CRITICAL, Severity.WARNING, Severity.SUGGESTION};
+    static final String[] INCIDENT_SEVERITIES = {"P0", "P1", "P2", "P3"};
+    static final String[] TIMES_TO_OCCUR = {"Immediately", "Within hours", "Within days", "Within weeks", "Within months"};
+    static final String[] VERDICTS = {"SHIP IT", "MAYBE", "NOPE", "ARE YOU SERIOUS?"};
+    static final String[] ON_CALL_VERDICTS = {"Peaceful", "Rough", "Nightmare", "Career-Ending"};
+
+    @JsonProperty("s") private int score;
+    @JsonProperty("sum") private String summary;
+    @JsonProperty("f") private List<CompactFinding> findings;
+    @JsonProperty("code") private String improvedCode;
+    @JsonProperty("inc") private List<CompactIncident> incidents;
+    @JsonProperty("ship") private CompactShipIt shipIt;
+    @JsonProperty("cost") private CompactCost cost;
+    @JsonProperty("ach") private List<CompactAchievement> achievements;
+    @JsonProperty("fb") private List<CompactFamousBug> famousBugs;
+    @JsonProperty("pm") private CompactPreMortem preMortem;
+    @JsonProperty("oc") private CompactOnCall onCall;
+    @JsonProperty("k") private CompactKarma karma;
+    @JsonProperty("r") private CompactRoast roast;
+
+    @Data
+    public static class CompactFinding {
+        @JsonProperty("sv") private String severity;
+        @JsonProperty("l") private Integer line;
+        @JsonProperty("i") private String issue;
+        @JsonProperty("e") private String explanation;
+        @JsonProperty("fx") private String suggestion;
+
+        public Finding expand() {
+            return Finding.builder()
+                    .severity(pick(SEVERITIES, severity, Severity.SUGGESTION))
+                    .line(line)
+                    .issue(issue)
+                    .explanation(explanation)
+                    .suggestion(suggestion)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactIncident {
+        @JsonProperty("id") private String id;
+        @JsonProperty("t") private String title;
+        @JsonProperty("sv") private String severity;
+        @JsonProperty("sc") private String scenario;
+        @JsonProperty("w") private String whatHappens;
+        @JsonProperty("rc") private String rootCause;
+        @JsonProperty("l") private Integer affectedLine;
+        @JsonProperty("tt") private String timeToOccur;
+        @JsonProperty("p") private int probabilityPercent;
+        @JsonProperty("bi") private String businessImpact;
+        @JsonProperty("c") private List<Integer> costRange; // [min, max] dollars
+        @JsonProperty("cb") private String costBreakdown;
+        @JsonProperty("fx") private String preventionCode;
+
+        public ProductionIncident expand() {
+            ProductionIncident.CostEstimate cost = costRange == null && costBreakdown == null ? null
+                    : ProductionIncident.CostEstimate.builder()
+                    .minDollars(element(costRange, 0))
+                    .maxDollars(element(costRange, 1))
+                    .breakdown(costBreakdown)
+                    .build();
+            return ProductionIncident.builder()
+                    .id(id)
+                    .title(title)
+                    .severity(pick(INCIDENT_SEVERITIES, severity, "P3"))
+                    .scenario(scenario)
+                    .whatHappens(whatHappens)
+                    .rootCause(rootCause)
+                    .affectedLine(affectedLine)
+                    .timeToOccur(pick(TIMES_TO_OCCUR, timeToOccur, "Within days"))
+                    .probabilityPercent(probabilityPercent)
+                    .businessImpact(businessImpact)
+                    .costEstimate(cost)
+                    .preventionCode(preventionCode)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactShipIt {
+        @JsonProperty("v") private String verdict;
+        @JsonProperty("c") private int confidence;
+        @JsonProperty("why") private String reasoning;
+        @JsonProperty("must") private List<String> mustFixBefore;
+        @JsonProperty("nice") private List<String> niceToHave;
+        @JsonProperty("tldr") private String tldr;
+        @JsonProperty("risk") private List<Integer> risks; // security, stability, performance, maintainability, data loss
+
+        public ShipItScore expand() {
+            return ShipItScore.builder()
+                    .verdict(pick(VERDICTS, verdict, ""))
+                    .confidence(confidence)
+                    .reasoning(reasoning)
+                    .mustFixBefore(mustFixBefore)
+                    .niceToHave(niceToHave)
+                    .tldr(tldr)
+                    .riskBreakdown(ShipItScore.RiskBreakdown.builder()
+                            .securityRisk(element(risks, 0))
+                            .stabilityRisk(element(risks, 1))
+                            .performanceRisk(element(risks, 2))
+                            .maintainabilityRisk(element(risks, 3))
+                            .dataLossRisk(element(risks, 4))
+                            .build())
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactCost {
+        @JsonProperty("tot") private int totalEstimatedCost;
+        @JsonProperty("hrs") private int engineeringHoursToFix;
+        @JsonProperty("rev") private int potentialRevenueLoss;
+        @JsonProperty("debt") private int technicalDebtCost;
+        @JsonProperty("rec") private String recommendation;
+
+        public EnhancedAnalysisResponse.CostAnalysis expand() {
+            return EnhancedAnalysisResponse.CostAnalysis.builder()
+                    .totalEstimatedCost(totalEstimatedCost)
+                    .engineeringHoursToFix(engineeringHoursToFix)
+                    .potentialRevenueLoss(potentialRevenueLoss)
+                    .technicalDebtCost(technicalDebtCost)
+                    .recommendation(recommendation)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactAchievement {
+        @JsonProperty("id") private String id;
+        @JsonProperty("n") private String name;
+        @JsonProperty("ic") private String icon;
+        @JsonProperty("d") private String description;
+        @JsonProperty("u") private boolean unlocked;
+        @JsonProperty("ur") private String unlockedReason;
+
+        public Achievement expand() {
+            return Achievement.builder()
+                    .id(id)
+                    .name(name)
+                    .icon(icon)
+                    .description(description)
+                    .unlocked(unlocked)
+                    .unlockedReason(unlockedReason)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactFamousBug {
+        @JsonProperty("id") private String famousBugId;
+        @JsonProperty("n") private String bugName;
+        @JsonProperty("co") private String company;
+        @JsonProperty("y") private String year;
+        @JsonProperty("ic") private String icon;
+        @JsonProperty("sim") private int similarityPercent;
+        @JsonProperty("why") private String matchReason;
+        @JsonProperty("fin") private String financialImpact;
+        @JsonProperty("yours") private String yourCodePattern;
+        @JsonProperty("hist") private String historyPattern;
+        @JsonProperty("les") private String lesson;
+
+        public EnhancedAnalysisResponse.FamousBugMatch expand() {
+            return EnhancedAnalysisResponse.FamousBugMatch.builder()
+                    .famousBugId(famousBugId)
+                    .bugName(bugName)
+                    .company(company)
+                    .year(year)
+                    .icon(icon)
+                    .similarityPercent(similarityPercent)
+                    .matchReason(matchReason)
+                    .financialImpact(financialImpact)
+                    .yourCodePattern(yourCodePattern)
+                    .historyPattern(historyPattern)
+                    .lesson(lesson)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactPreMortem {
+        @JsonProperty("t") private String incidentTitle;
+        @JsonProperty("sv") private String severity;
+        @JsonProperty("dt") private String date;
+        @JsonProperty("dur") private String duration;
+        @JsonProperty("ex") private String executiveSummary;
+        @JsonProperty("rc") private List<String> rootCauses;
+        @JsonProperty("imp") private String impactAssessment;
+        @JsonProperty("blame") private String whoGetsBlamed;
+        @JsonProperty("act") private List<String> actionItems;
+
+        public PreMortem expand() {
+            return PreMortem.builder()
+                    .incidentTitle(incidentTitle)
+                    .severity(pick(INCIDENT_SEVERITIES, severity, null))
+                    .date(date)
+                    .duration(duration)
+                    .executiveSummary(executiveSummary)
+                    .rootCauses(rootCauses)
+                    .impactAssessment(impactAssessment)
+                    .whoGetsBlamed(whoGetsBlamed)
+                    .actionItems(actionItems)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactOnCall {
+        @JsonProperty("pain") private int painIndex;
+        @JsonProperty("v") private String overallVerdict;
+        @JsonProperty("pages") private int predictedPages;
+        @JsonProperty("sleep") private int sleepInterruptions;
+        @JsonProperty("wknd") private int weekendRuined;
+        @JsonProperty("tips") private List<String> survivalTips;
+        @JsonProperty("coffee") private int coffeeCupsNeeded;
+        @JsonProperty("cope") private String recommendedCopingMechanism;
+
+        public OnCallForecast expand() {
+            return OnCallForecast.builder()
+                    .painIndex(painIndex)
+                    .overallVerdict(pick(ON_CALL_VERDICTS, overallVerdict, null))
+                    .predictedPages(predictedPages)
+                    .sleepInterruptions(sleepInterruptions)
+                    .weekendRuined(weekendRuined)
+                    .survivalTips(survivalTips)
+                    .coffeeCupsNeeded(coffeeCupsNeeded)
+                    .recommendedCopingMechanism(recommendedCopingMechanism)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactKarma {
+        @JsonProperty("ks") private int karmaScore;
+        @JsonProperty("kv") private String karmaVerdict;
+        @JsonProperty("dh") private int debtHours;
+        @JsonProperty("dw") private String worstOffense;
+        @JsonProperty("re") private String reincarnationAs;
+        @JsonProperty("fut") private String futureYouMessage;
+
+        public CodeKarma expand() {
+            return CodeKarma.builder()
+                    .karmaScore(karmaScore)
+                    .karmaVerdict(karmaVerdict)
+                    .debtCreated(CodeKarma.TechDebtCreated.builder()
+                            .totalHours(debtHours)
+                            .worstOffense(worstOffense)
+                            .build())
+                    .reincarnationAs(reincarnationAs)
+                    .futureYouMessage(futureYouMessage)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class CompactRoast {
+        @JsonProperty("h") private String headline;
+        @JsonProperty("r") private List<String> roasts;
+        @JsonProperty("meme") private String memeUrl;
+        @JsonProperty("sav") private int savageryLevel;
+        @JsonProperty("tk") private String constructiveTakeaway;
+
+        public EnhancedAnalysisResponse.CodeRoast expand() {
+            return EnhancedAnalysisResponse.CodeRoast.builder()
+                    .headline(headline)
+                    .roasts(roasts)
+                    .memeUrl(memeUrl)
+                    .savageryLevel(savageryLevel)
+                    .constructiveTakeaway(constructiveTakeaway)
+                    .build();
+        }
+    }
+
+    /**
+     * The same response in the public shape. Missing parts stay null / empty for the caller's
+     * usual completion step.
+     */
+    public EnhancedAnalysisResponse expand() {
+        return EnhancedAnalysisResponse.builder()
+                .score(score)
+                .summary(summary)
+                .findings(expandAll(findings, CompactFinding::expand))
+                .improvedCode(improvedCode)
+                .predictedIncidents(expandAll(incidents, CompactIncident::expand))
+                .shipItScore(shipIt != null ? shipIt.expand() : null)
+                .costAnalysis(cost != null ? cost.expand() : null)
+                .achievements(expandAll(achievements, CompactAchievement::expand))
+                .famousBugMatches(expandAll(famousBugs, CompactFamousBug::expand))
+                .preMortem(preMortem != null ? preMortem.expand() : null)
+                .onCallForecast(onCall != null ? onCall.expand() : null)
+                .codeKarma(karma != null ? karma.expand() : null)
+                .roast(roast != null ? roast.expand() : null)
+                .build();
+    }
+
+    private static <C, T> List<T> expandAll(List<C> compact, Function<C, T> expander) {
+        return compact == null ? null : compact.stream().filter(Objects::nonNull).map(expander).toList();
+    }
+
+    private static <T> T pick(T[] values, String raw, T fallback) {
+        if (raw == null) {
+            return fallback;
+        }
+        String value = raw.trim();
+        try {
+            int index = Integer.parseInt(value);
+            return index >= 0 && index < values.length ? values[index] : fallback;
+        } catch (NumberFormatException e) {
+            // The model wrote the name instead of the index
+            for (T candidate : values) {
+                if (String.valueOf(candidate).equalsIgnoreCase(value)) {
+                    return candidate;
+                }
+            }
+            return fallback;
+        }
+    }
+
+    private static int element(List<Integer> values, int index) {
+        return values != null && index < values.size() && values.get(index) != null ? values.get(index) : 0;
+    }
+}
@@ -0,0 +1,348 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.config.DiffReviewConfig;
+import com.codeanalyzer.dto.*;
+import com.codeanalyzer.model.Severity;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reviews a pull request from its unified diff. Only the changed lines and a few post-image
+ * lines around them are sent, each numbered with its line in the new version of the file, so
+ * findings come back on post-image lines. Full post-image files, when given, supply context the
+ * diff itself doesn't have.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class DiffReviewService {
+
+    private final ClaudeApiClient claudeApiClient;
+    private final ClaudeConfig claudeConfig;
+    private final DiffReviewConfig diffReviewConfig;
+    private final ModelOutputReader modelOutputReader;
+    private final StructuredOutput structuredOutput;
+    private final AnalysisCache analysisCache;
+    private final PromptCache promptCache;
+    private final TokenBudget tokenBudget;
+
+    private static final String FAILURE_PREFIX = "Analysis failed: ";
+    private static final String ENDPOINT = "review";
+
+    private static final String REVIEW_SYSTEM_PROMPT = """
+        You are a senior engineer reviewing a pull request.
+
+        You see excerpts of each changed file around its changes, not whole files. Lines starting
+        with "+" were added, lines starting with "-" were removed and no longer exist, the others
+        are unchanged context. Every line that exists in the new version of the file starts with
+        its line number there.
+
+        Review the CHANGE: bugs, security issues, race conditions, error handling and edge cases
+        that the added or removed lines introduce or expose. Don't report issues in unchanged
+        context unless the change makes them worse, and don't report code outside the excerpts
+        as missing. Point to exact lines using the numbers shown.
+
+        IMPORTANT: Respond in valid JSON format with this EXACT structure:
+        {
+            "score": <number 0-100, higher = more bugs/issues in the change>,
+            "summary": "<2-3 sentence assessment of the change>",
+            "fileFindings": [
+                {
+                    "filename": "<file path as given>",
+                    "fileScore": <number 0-100>,
+                    "findings": [
+                        {
+                            "severity": "<critical|warning|suggestion>",
+                            "line": <line number shown in the excerpt, or null>,
+                            "issue": "<brief title>",
+                            "explanation": "<detailed explanation>",
+                            "suggestion": "<how to fix>"
+                        }
+                    ]
+                }
+            ]
+        }
+        """;
+
+    private static final Map<String, String> LANGUAGES_BY_EXTENSION = Map.of(
+            "java", "java",
+            "js", "javascript",
+            "jsx", "javascript",
+            "mjs", "javascript",
+            "cjs", "javascript",
+            "ts", "typescript",
+            "tsx", "typescript",
+            "py", "python");
+
+    /**
+     * What is sent of one file: {@code shown} are the post-image lines in the excerpt, {@code anchors}
+     * the changed ones (added lines, and the lines that follow removed ones).
+     */
+    private record Excerpt(String path, String language, String text, Set<Integer> shown,
+                           NavigableSet<Integer> anchors, int linesAdded, int linesRemoved) {
+    }
+
+    public Mono<DiffReviewResponse> review(DiffReviewRequest request) {
+        String persona = request.getPersona() != null ? request.getPersona() : "brutal";
+        int contextLines = request.getContextLines() != null
+                ? request.getContextLines() : diffReviewConfig.getContextLines();
+        List<Excerpt> excerpts = UnifiedDiff.parse(request.getDiff()).stream()
+                .filter(patch -> patch.newPath() != null)
+                .map(patch -> excerpt(patch, postImage(request.getFiles(), patch.newPath()), contextLines))
+                .filter(excerpt -> !excerpt.anchors().isEmpty())
+                .toList();
+        if (excerpts.isEmpty()) {
+            return Mono.just(complete(DiffReviewResponse.builder()
+                    .summary("Nothing to review: the diff only deletes files.")
+                    .build(), excerpts));
+        }
+
+        PromptCache.SystemPrompt systemPrompt = structuredOutput.systemPrompt(ENDPOINT,
+                new PromptCache.SystemPrompt(List.of(REVIEW_SYSTEM_PROMPT), personaModifier(persona)));
+        String userPrompt = buildUserPrompt(excerpts, request.getContext());
+        Map<String, Object> requestBody = buildRequest(systemPrompt, userPrompt);
+        TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, null, requestBody, diffReviewConfig.getMaxTokens());
+
+        String cacheKey = AnalysisCache.key("review", claudeConfig.getModel(), systemPrompt.text(), userPrompt);
+
+        return analysisCache.getOrLoad(cacheKey, () -> {
+                    log.info("Reviewing diff of {} files ({} lines sent)", excerpts.size(),
+                            excerpts.stream().mapToInt(excerpt -> excerpt.shown().size()).sum());
+                    return claudeApiClient.send(requestBody)
+                            .flatMap(response -> parseResponse(requestBody, response, excerpts));
+                }, response -> !response.getSummary().startsWith(FAILURE_PREFIX))
+                .doOnError(e -> log.error("Error in diff review: {}", e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException),
+                        e -> Mono.just(createErrorResponse(e.getMessage(), excerpts)))
+                .contextWrite(budget::attach)
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language(excerpts)));
+    }
+
+    /**
+     * The post-image file for a diff path: same path, or failing that the same filename.
+     */
+    private static FileContent postImage(List<FileContent> files, String path) {
+        if (files == null) {
+            return null;
+        }
+        String filename = path.substring(path.lastIndexOf('/') + 1);
+        return files.stream()
+                .filter(file -> path.equals(file.getPath()))
+                .findFirst()
+                .or(() -> files.stream().filter(file -> filename.equals(file.getFilename())).findFirst())
+                .filter(file -> file.getContent() != null)
+                .orElse(null);
+    }
+
+    private static Excerpt excerpt(UnifiedDiff.FilePatch patch, FileContent postImage, int contextLines) {
+        // Post-image lines known from the diff, or from the whole file when it was sent
+        Map<Integer, String> known = new HashMap<>();
+        Set<Integer> added = new HashSet<>();
+        Map<Integer, List<String>> removedBefore = new HashMap<>();
+        NavigableSet<Integer> anchors = new TreeSet<>();
+        int linesRemoved = 0;
+        for (UnifiedDiff.Hunk hunk : patch.hunks()) {
+            for (UnifiedDiff.HunkLine line : hunk.lines()) {
+                switch (line.kind()) {
+                    case '-' -> {
+                        removedBefore.computeIfAbsent(line.newLine(), n -> new ArrayList<>()).add(line.text());
+                        anchors.add(line.newLine());
+                        linesRemoved++;
+                    }
+                    case '+' -> {
+                        known.put(line.newLine(), line.text());
+                        added.add(line.newLine());
+                        anchors.add(line.newLine());
+                    }
+                    default -> known.put(line.newLine(), line.text());
+                }
+            }
+        }
+        if (postImage != null) {
+            List<String> lines = CodeChunker.lines(postImage.getContent());
+            // A final newline ends the last line rather than starting another
+            int count = lines.get(lines.size() - 1).isEmpty() ? lines.size() - 1 : lines.size();
+            for (int i = 0; i < count; i++) {
+                known.putIfAbsent(i + 1, lines.get(i));
+            }
+        }
+
+        // Each anchor, and up to contextLines known lines on either side
+        NavigableSet<Integer> shown = new TreeSet<>();
+        for (int anchor : anchors) {
+            for (int line = anchor - 1; line >= anchor - contextLines && known.containsKey(line); line--) {
+                shown.add(line);
+            }
+            for (int line = anchor; line <= anchor + contextLines && known.containsKey(line); line++) {
+                shown.add(line);
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        Integer previous = null;
+        Set<Integer> renderedRemovals = new HashSet<>();
+        for (int line : shown) {
+            if (previous != null && line != previous + 1) {
+                appendRemoved(text, removedBefore, previous + 1, renderedRemovals);
+                text.append("...\n");
+            }
+            appendRemoved(text, removedBefore, line, renderedRemovals);
+            text.append(String.format("%5d %c %s\n", line, added.contains(line) ? '+' : ' ', known.get(line)));
+            previous = line;
+        }
+        if (previous != null) {
+            appendRemoved(text, removedBefore, previous + 1, renderedRemovals);
+        }
+        // Removals with no known line around them (e.g. a whole file emptied)
+        removedBefore.keySet().stream().sorted()
+                .forEach(line -> appendRemoved(text, removedBefore, line, renderedRemovals));
+
+        String language = postImage != null && postImage.getLanguage() != null
+                ? postImage.getLanguage() : languageOf(patch.newPath());
+        return new Excerpt(patch.newPath(), language, text.toString(), shown, anchors, added.size(), linesRemoved);
+    }
+
+    private static void appendRemoved(StringBuilder text, Map<Integer, List<String>> removedBefore, int line,
+                                      Set<Integer> rendered) {
+        List<String> removed = removedBefore.get(line);
+        if (removed != null && rendered.add(line)) {
+            removed.forEach(r -> text.append("      - ").append(r).append('\n'));
+        }
+    }
+
+    private static String languageOf(String path) {
+        String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        return LANGUAGES_BY_EXTENSION.getOrDefault(extension, "text");
+    }
+
+    /**
+     * The files' common language, or "mixed".
+     */
+    private static String language(List<Excerpt> excerpts) {
+        List<String> languages = excerpts.stream().map(Excerpt::language).distinct().toList();
+        return languages.size() == 1 ? languages.get(0) : "mixed";
+    }
+
+    private static String personaModifier(String persona) {
+        return switch (persona.toLowerCase()) {
+            case "brutal" -> "\nBe BRUTAL. No mercy. Find every possible flaw. Imagine each bug costs $100,000.";
+            case "mentor" -> "\nBe educational. Explain the 'why' behind issues. Help them learn.";
+            case "edge-hunter" -> "\nFocus on edge cases, race conditions, and boundary conditions the change introduces.";
+            default -> "";
+        };
+    }
+
+    private static String buildUserPrompt(List<Excerpt> excerpts, String context) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Review this pull request:\n\n");
+        for (Excerpt excerpt : excerpts) {
+            prompt.append("=== FILE: ").append(excerpt.path()).append(" ===\n");
+            prompt.append("```").append(excerpt.language()).append("\n");
+            prompt.append(excerpt.text());
+            prompt.append("```\n\n");
+        }
+        if (context != null && !context.isBlank()) {
+            prompt.append("Developer's context: ").append(context).append("\n\n");
+        }
+        prompt.append("Review the changes.");
+        return prompt.toString();
+    }
+
+    private Map<String, Object> buildRequest(PromptCache.SystemPrompt systemPrompt, String userPrompt) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("model", claudeConfig.getModel());
+        request.put("system", promptCache.system(systemPrompt));
+        request.put("messages", List.of(
+                Map.of("role", "user", "content", userPrompt)
+        ));
+        return structuredOutput.apply(ENDPOINT, "diff-review", request);
+    }
+
+    private Mono<DiffReviewResponse> parseResponse(Map<String, Object> requestBody, String responseBody,
+                                                   List<Excerpt> excerpts) {
+        return modelOutputReader.read(ENDPOINT, requestBody, responseBody,
+                        () -> DiffReviewResponse.builder().score(50).summary("").build())
+                .map(response -> complete(response, excerpts))
+                .switchIfEmpty(Mono.fromSupplier(() -> createErrorResponse("Unexpected response format", excerpts)))
+                .onErrorResume(IOException.class, e -> {
+                    log.error("Failed to parse review JSON: {}", e.getMessage());
+                    return Mono.just(createErrorResponse("Failed to parse review results", excerpts));
+                });
+    }
+
+    /**
+     * Fills in the server-side fields, and anchors each finding to a post-image line: one the model
+     * was shown, or else the nearest changed line.
+     */
+    private static DiffReviewResponse complete(DiffReviewResponse response, List<Excerpt> excerpts) {
+        List<FileFinding> fileFindings = nonNull(response.getFileFindings());
+        for (FileFinding fileFinding : fileFindings) {
+            Excerpt excerpt = excerptFor(excerpts, fileFinding.getFilename());
+            if (excerpt != null) {
+                fileFinding.setFilename(excerpt.path());
+            }
+            fileFinding.setFindings(nonNull(fileFinding.getFindings()));
+            for (Finding finding : fileFinding.getFindings()) {
+                if (finding.getSeverity() == null) {
+                    finding.setSeverity(Severity.SUGGESTION);
+                }
+                if (excerpt != null && finding.getLine() != null && !excerpt.shown().contains(finding.getLine())) {
+                    finding.setLine(nearest(excerpt.anchors(), finding.getLine()));
+                }
+            }
+        }
+
+        response.setId(UUID.randomUUID().toString());
+        response.setSummary(Objects.requireNonNullElse(response.getSummary(), ""));
+        response.setFileFindings(fileFindings);
+        response.setFilesReviewed(excerpts.size());
+        response.setLinesAdded(excerpts.stream().mapToInt(Excerpt::linesAdded).sum());
+        response.setLinesRemoved(excerpts.stream().mapToInt(Excerpt::linesRemoved).sum());
+        response.setLinesSent(excerpts.stream().mapToInt(excerpt -> excerpt.shown().size()).sum());
+        response.setTotalFindings(fileFindings.stream().mapToInt(ff -> ff.getFindings().size()).sum());
+        response.setAnalyzedAt(System.currentTimeMillis());
+        return response;
+    }
+
+    /**
+     * The excerpt the model meant by a filename: the same path, or one ending in it (or the other way round).
+     */
+    private static Excerpt excerptFor(List<Excerpt> excerpts, String filename) {
+        if (filename == null) {
+            return null;
+        }
+        return excerpts.stream()
+                .filter(excerpt -> excerpt.path().equals(filename))
+                .findFirst()
+                .or(() -> excerpts.stream()
+                        .filter(excerpt -> excerpt.path().endsWith("/" + filename) || filename.endsWith("/" + excerpt.path()))
+                        .findFirst())
+                .orElse(null);
+    }
+
+    private static int nearest(NavigableSet<Integer> anchors, int line) {
+        Integer below = anchors.floor(line);
+        Integer above = anchors.ceiling(line);
+        if (below == null) {
+            return above;
+        }
+        return above == null || line - below <= above - line ? below : above;
+    }
+
+    private static <T> List<T> nonNull(List<T> list) {
+        return list == null ? List.of() : list.stream().filter(Objects::nonNull).toList();
+    }
+
+    private static DiffReviewResponse createErrorResponse(String message, List<Excerpt> excerpts) {
+        return complete(DiffReviewResponse.builder()
+                .score(0)
+                .summary(FAILURE_PREFIX + message)
+                .build(), excerpts);
+    }
+}
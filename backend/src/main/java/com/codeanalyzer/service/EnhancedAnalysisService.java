@@ -1,51 +1,125 @@
 package com.codeanalyzer.service;
 
 import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.config.FanOutConfig;
 import com.codeanalyzer.dto.*;
+import com.codeanalyzer.model.EnhancedSection;
 import com.codeanalyzer.model.Severity;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class EnhancedAnalysisService {
 
-    private final WebClient claudeWebClient;
+    private final ClaudeApiClient claudeApiClient;
     private final ClaudeConfig claudeConfig;
-    private final ObjectMapper objectMapper;
+    private final ClaudeResponseReader responseReader;
+    private final ModelOutputReader modelOutputReader;
+    private final StructuredOutput structuredOutput;
+    private final AnalysisCache analysisCache;
+    private final ImprovedCodeService improvedCodeService;
+    private final FanOutConfig fanOutConfig;
+    private final PromptCache promptCache;
+    private final TokenBudget tokenBudget;
+    private final PromptCompressor promptCompressor;
+
+    private static final String FAILURE_PREFIX = "Analysis failed: ";
+    private static final String ENDPOINT = "enhanced";
+    private static final int DEFAULT_MAX_TOKENS = 4096;
 
     private static final String ENHANCED_SYSTEM_PROMPT = """
         You are a senior engineer predicting production incidents. Be concise and specific.
 
+        RESPOND IN THIS EXACT JSON FORMAT (keep responses SHORT):
+        {
         %s
+        }
+        """;
 
-        RESPOND IN THIS EXACT JSON FORMAT (keep responses SHORT):
+    /**
+     * Same content as {@link #ENHANCED_SYSTEM_PROMPT} in the compact wire format of
+     * {@link CompactEnhancedOutput}; the legend's enum order must match its index arrays.
+     */
+    private static final String COMPACT_ENHANCED_SYSTEM_PROMPT = """
+        You are a senior engineer predicting production incidents. Be concise and specific.
+
+        RESPOND IN THIS EXACT COMPACT JSON FORMAT (short keys, enums as numbers; keep responses SHORT):
         {
-            "score": <0-100>,
-            "summary": "<1-2 sentences>",
-            "findings": [{"severity": "<critical|warning|suggestion>", "line": <number or null>, "issue": "<title>", "explanation": "<brief>", "suggestion": "<fix>"}],
-            "improvedCode": "<fixed code>",
-            "predictedIncidents": [{"id": "<id>", "title": "<name>", "severity": "<P0|P1|P2|P3>", "scenario": "<when>", "whatHappens": "<brief>", "rootCause": "<cause>", "affectedLine": <line>, "timeToOccur": "<Immediately|Within hours|Within days|Within weeks|Within months>", "probabilityPercent": <0-100>, "businessImpact": "<impact>", "costEstimate": {"minDollars": <n>, "maxDollars": <n>, "breakdown": "<brief>"}, "preventionCode": "<fix>"}],
-            "shipItScore": {"verdict": "<SHIP IT|MAYBE|NOPE|ARE YOU SERIOUS?>", "confidence": <0-100>, "reasoning": "<brief>", "mustFixBefore": ["<item>"], "niceToHave": ["<item>"], "tldr": "<one line>", "riskBreakdown": {"securityRisk": <0-100>, "stabilityRisk": <0-100>, "performanceRisk": <0-100>, "maintainabilityRisk": <0-100>, "dataLossRisk": <0-100>}},
-            "costAnalysis": {"totalEstimatedCost": <$>, "engineeringHoursToFix": <hrs>, "potentialRevenueLoss": <$>, "technicalDebtCost": <$>, "recommendation": "<brief>"},
-            "achievements": [{"id": "<id>", "name": "<name>", "icon": "<emoji>", "description": "<desc>", "unlocked": <bool>, "unlockedReason": "<why>"}],
-            "famousBugMatches": [{"famousBugId": "<id>", "bugName": "<name>", "company": "<co>", "year": "<yr>", "icon": "<emoji>", "similarityPercent": <0-100>, "matchReason": "<why>", "financialImpact": "<$>", "yourCodePattern": "<snippet>", "historyPattern": "<what happened>", "lesson": "<lesson>"}],
-            "preMortem": {"incidentTitle": "<name>", "severity": "<P0|P1|P2>", "date": "<future date>", "duration": "<time>", "executiveSummary": "<brief>", "rootCauses": ["<cause>"], "impactAssessment": "<impact>", "whoGetsBlamed": "<who>", "actionItems": ["<action>"]},
-            "onCallForecast": {"painIndex": <0-100>, "overallVerdict": "<Peaceful|Rough|Nightmare|Career-Ending>", "predictedPages": <n>, "sleepInterruptions": <n>, "weekendRuined": <n>, "survivalTips": ["<tip>"], "coffeeCupsNeeded": <n>, "recommendedCopingMechanism": "<tip>"},
-            "codeKarma": {"karmaScore": <-100 to +100>, "karmaVerdict": "<verdict>", "debtCreated": {"totalHours": <hrs>, "worstOffense": "<offense>"}, "reincarnationAs": "<what>", "futureYouMessage": "<msg>"}
-            %s
+        %s
         }
+
+        Enum legend:
+        severity: 0=critical 1=warning 2=suggestion
+        incident severity: 0=P0 1=P1 2=P2 3=P3
+        time to occur: 0=Immediately 1=Within hours 2=Within days 3=Within weeks 4=Within months
+        verdict: 0=SHIP IT 1=MAYBE 2=NOPE 3=ARE YOU SERIOUS?
+        on-call verdict: 0=Peaceful 1=Rough 2=Nightmare 3=Career-Ending
         """;
 
+    private static final List<String> BASE_FORMAT = List.of(
+            "\"score\": <0-100>",
+            "\"summary\": \"<1-2 sentences>\"");
+
+    private static final List<String> COMPACT_BASE_FORMAT = List.of(
+            "\"s\": <score 0-100>",
+            "\"sum\": \"<summary, 1-2 sentences>\"");
+
+    /** One format line per section, so the prompt only asks for what the caller wants. */
+    private static final Map<EnhancedSection, String> SECTION_FORMATS = new EnumMap<>(Map.ofEntries(
+            Map.entry(EnhancedSection.FINDINGS, """
+                "findings": [{"severity": "<critical|warning|suggestion>", "line": <number or null>, "issue": "<title>", "explanation": "<brief>", "suggestion": "<fix>"}]"""),
+            Map.entry(EnhancedSection.IMPROVED_CODE, "\"improvedCode\": \"<fixed code>\""),
+            Map.entry(EnhancedSection.INCIDENTS, """
+                "predictedIncidents": [{"id": "<id>", "title": "<name>", "severity": "<P0|P1|P2|P3>", "scenario": "<when>", "whatHappens": "<brief>", "rootCause": "<cause>", "affectedLine": <line>, "timeToOccur": "<Immediately|Within hours|Within days|Within weeks|Within months>", "probabilityPercent": <0-100>, "businessImpact": "<impact>", "costEstimate": {"minDollars": <n>, "maxDollars": <n>, "breakdown": "<brief>"}, "preventionCode": "<fix>"}]"""),
+            Map.entry(EnhancedSection.SHIP_IT, """
+                "shipItScore": {"verdict": "<SHIP IT|MAYBE|NOPE|ARE YOU SERIOUS?>", "confidence": <0-100>, "reasoning": "<brief>", "mustFixBefore": ["<item>"], "niceToHave": ["<item>"], "tldr": "<one line>", "riskBreakdown": {"securityRisk": <0-100>, "stabilityRisk": <0-100>, "performanceRisk": <0-100>, "maintainabilityRisk": <0-100>, "dataLossRisk": <0-100>}}"""),
+            Map.entry(EnhancedSection.COST, """
+                "costAnalysis": {"totalEstimatedCost": <$>, "engineeringHoursToFix": <hrs>, "potentialRevenueLoss": <$>, "technicalDebtCost": <$>, "recommendation": "<brief>"}"""),
+            Map.entry(EnhancedSection.ACHIEVEMENTS, """
+                "achievements": [{"id": "<id>", "name": "<name>", "icon": "<emoji>", "description": "<desc>", "unlocked": <bool>, "unlockedReason": "<why>"}]"""),
+            Map.entry(EnhancedSection.FAMOUS_BUGS, """
+                "famousBugMatches": [{"famousBugId": "<id>", "bugName": "<name>", "company": "<co>", "year": "<yr>", "icon": "<emoji>", "similarityPercent": <0-100>, "matchReason": "<why>", "financialImpact": "<$>", "yourCodePattern": "<snippet>", "historyPattern": "<what happened>", "lesson": "<lesson>"}]"""),
+            Map.entry(EnhancedSection.PRE_MORTEM, """
+                "preMortem": {"incidentTitle": "<name>", "severity": "<P0|P1|P2>", "date": "<future date>", "duration": "<time>", "executiveSummary": "<brief>", "rootCauses": ["<cause>"], "impactAssessment": "<impact>", "whoGetsBlamed": "<who>", "actionItems": ["<action>"]}"""),
+            Map.entry(EnhancedSection.ON_CALL, """
+                "onCallForecast": {"painIndex": <0-100>, "overallVerdict": "<Peaceful|Rough|Nightmare|Career-Ending>", "predictedPages": <n>, "sleepInterruptions": <n>, "weekendRuined": <n>, "survivalTips": ["<tip>"], "coffeeCupsNeeded": <n>, "recommendedCopingMechanism": "<tip>"}"""),
+            Map.entry(EnhancedSection.KARMA, """
+                "codeKarma": {"karmaScore": <-100 to +100>, "karmaVerdict": "<verdict>", "debtCreated": {"totalHours": <hrs>, "worstOffense": "<offense>"}, "reincarnationAs": "<what>", "futureYouMessage": "<msg>"}"""),
+            Map.entry(EnhancedSection.ROAST, """
+                "roast": {"headline": "<devastating one-liner like 'This code is why AI will replace us'>", "roasts": ["<savage roast 1>", "<savage roast 2>", "<savage roast 3>"], "memeUrl": "<describe a meme that fits: 'disaster girl watching servers burn'>", "savageryLevel": <1-10>, "constructiveTakeaway": "<one actually helpful piece of advice>"}""")));
+
+    private static final Map<EnhancedSection, String> COMPACT_SECTION_FORMATS = new EnumMap<>(Map.ofEntries(
+            Map.entry(EnhancedSection.FINDINGS, """
+                "f": [{"sv": <severity>, "l": <line or null>, "i": "<issue title>", "e": "<brief explanation>", "fx": "<fix>"}]"""),
+            Map.entry(EnhancedSection.IMPROVED_CODE, "\"code\": \"<fixed code>\""),
+            Map.entry(EnhancedSection.INCIDENTS, """
+                "inc": [{"id": "<id>", "t": "<title>", "sv": <incident severity>, "sc": "<scenario>", "w": "<what happens>", "rc": "<root cause>", "l": <affected line>, "tt": <time to occur>, "p": <probability 0-100>, "bi": "<business impact>", "c": [<min $>, <max $>], "cb": "<cost breakdown>", "fx": "<prevention code>"}]"""),
+            Map.entry(EnhancedSection.SHIP_IT, """
+                "ship": {"v": <verdict>, "c": <confidence 0-100>, "why": "<reasoning>", "must": ["<must fix before shipping>"], "nice": ["<nice to have>"], "tldr": "<one line>", "risk": [<security>, <stability>, <performance>, <maintainability>, <data loss>]}"""),
+            Map.entry(EnhancedSection.COST, """
+                "cost": {"tot": <total $>, "hrs": <engineering hours to fix>, "rev": <potential revenue loss $>, "debt": <tech debt cost $>, "rec": "<recommendation>"}"""),
+            Map.entry(EnhancedSection.ACHIEVEMENTS, """
+                "ach": [{"id": "<id>", "n": "<name>", "ic": "<emoji>", "d": "<description>", "u": <unlocked bool>, "ur": "<why>"}]"""),
+            Map.entry(EnhancedSection.FAMOUS_BUGS, """
+                "fb": [{"id": "<famous bug id>", "n": "<bug name>", "co": "<company>", "y": "<year>", "ic": "<emoji>", "sim": <similarity 0-100>, "why": "<match reason>", "fin": "<financial impact>", "yours": "<your code pattern>", "hist": "<what happened>", "les": "<lesson>"}]"""),
+            Map.entry(EnhancedSection.PRE_MORTEM, """
+                "pm": {"t": "<incident title>", "sv": <incident severity>, "dt": "<future date>", "dur": "<duration>", "ex": "<executive summary>", "rc": ["<root cause>"], "imp": "<impact>", "blame": "<who gets blamed>", "act": ["<action item>"]}"""),
+            Map.entry(EnhancedSection.ON_CALL, """
+                "oc": {"pain": <0-100>, "v": <on-call verdict>, "pages": <n>, "sleep": <sleep interruptions>, "wknd": <weekends ruined>, "tips": ["<survival tip>"], "coffee": <cups>, "cope": "<coping mechanism>"}"""),
+            Map.entry(EnhancedSection.KARMA, """
+                "k": {"ks": <karma -100 to +100>, "kv": "<karma verdict>", "dh": <tech debt hours created>, "dw": "<worst offense>", "re": "<reincarnated as>", "fut": "<message from future you>"}"""),
+            Map.entry(EnhancedSection.ROAST, """
+                "r": {"h": "<devastating one-liner headline>", "r": ["<savage roast 1>", "<savage roast 2>", "<savage roast 3>"], "meme": "<describe a fitting meme>", "sav": <savagery 1-10>, "tk": "<one actually helpful takeaway>"}""")));
+
     private static final String ROAST_ADDITION = """
 
         ALSO: This is ROAST MODE. After your analysis, ROAST this code mercilessly:
@@ -55,46 +129,273 @@ public class EnhancedAnalysisService {
         - But end with ONE genuinely helpful insight
         """;
 
-    private static final String ROAST_JSON_ADDITION = """
-        ,
-            "roast": {
-                "headline": "<devastating one-liner like 'This code is why AI will replace us'>",
-                "roasts": [
-                    "<savage roast 1>",
-                    "<savage roast 2>",
-                    "<savage roast 3>"
-                ],
-                "memeUrl": "<describe a meme that fits: 'disaster girl watching servers burn'>",
-                "savageryLevel": <1-10>,
-                "constructiveTakeaway": "<one actually helpful piece of advice>"
+    public Mono<EnhancedAnalysisResponse> analyzeEnhanced(String code, String language, String context, String persona) {
+        return analyzeEnhanced(code, language, context, persona, EnhancedSection.defaults(), null);
+    }
+
+    /**
+     * @param sections the sections to generate; the others come back empty (lists) or absent
+     * @param hedgeClass when set, hedge the upstream call against tail latency as this class; one fixed
+     *                   class per caller (see {@link ClaudeApiClient#send(Map, String)})
+     */
+    public Mono<EnhancedAnalysisResponse> analyzeEnhanced(String code, String language, String context, String persona,
+                                                          Set<EnhancedSection> sections, String hedgeClass) {
+        Set<EnhancedSection> requested = resolveSections(persona, sections);
+        List<EnumSet<EnhancedSection>> groups = fanOutGroups(requested);
+
+        Mono<EnhancedAnalysisResponse> result = groups.size() == 1
+                ? analyzeSections(code, language, context, persona, requested, hedgeClass)
+                : fanOut(code, language, context, persona, groups, hedgeClass);
+        return result
+                .doOnNext(response -> registerSource(response, code, language))
+                .doOnError(e -> log.error("Enhanced analysis error: {}", e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException), e -> Mono.just(createErrorResponse(e.getMessage())))
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language));
+    }
+
+    /**
+     * One upstream call generating the given sections, cached under its own prompt.
+     */
+    private Mono<EnhancedAnalysisResponse> analyzeSections(String code, String language, String context, String persona,
+                                                           Set<EnhancedSection> sections, String hedgeClass) {
+        PromptCache.SystemPrompt systemPrompt = buildSystemPrompt(persona, sections);
+        PromptCompressor.Compressed compressed = compress(code, language, sections);
+        Map<String, Object> request = buildRequest(systemPrompt, buildUserPrompt(compressed, language, context), sections);
+        TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, variant(sections), request, DEFAULT_MAX_TOKENS);
+
+        String cacheKey = AnalysisCache.key("enhanced", claudeConfig.getModel(), systemPrompt.text(),
+                AnalysisCache.normalizeCode(code), language, context);
+
+        return analysisCache.getOrLoad(cacheKey, () -> {
+            log.info("Enhanced analysis with persona: {}, sections: {}", persona, sections);
+            return claudeApiClient.send(request, hedgeClass)
+                    .flatMap(response -> parseEnhancedResponse(request, response, sections, compressed.lineMap()));
+        }, response -> !response.getSummary().startsWith(FAILURE_PREFIX))
+                .contextWrite(budget::attach);
+    }
+
+    /**
+     * Predicts what {@link #analyzeEnhanced} would cost without calling the API, over all fan-out groups.
+     */
+    public TokenEstimate estimate(String code, String language, String context, String persona,
+                                  Set<EnhancedSection> sections) {
+        return TokenBudget.parallel(fanOutGroups(resolveSections(persona, sections)).stream()
+                .map(group -> tokenBudget.estimate(ENDPOINT, variant(group), buildRequest(buildSystemPrompt(persona, group),
+                        buildUserPrompt(compress(code, language, group), language, context), group), DEFAULT_MAX_TOKENS))
+                .toList());
+    }
+
+    /**
+     * A call that rewrites the code gets it as submitted: the rewrite would otherwise come back
+     * without comments and with the compressed indentation.
+     */
+    private PromptCompressor.Compressed compress(String code, String language, Set<EnhancedSection> sections) {
+        return sections.contains(EnhancedSection.IMPROVED_CODE)
+                ? new PromptCompressor.Compressed(code, LineMap.IDENTITY)
+                : promptCompressor.compress(code, language);
+    }
+
+    /**
+     * Output size depends mostly on which sections are generated, and on the wire format.
+     */
+    private String variant(Set<EnhancedSection> sections) {
+        return (compact() ? "compact:" : "") + sections.stream().map(EnhancedSection::getValue)
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Splits the requested sections into the configured fan-out groups; a single group when fan-out is off.
+     */
+    private List<EnumSet<EnhancedSection>> fanOutGroups(Set<EnhancedSection> requested) {
+        if (!fanOutConfig.isEnabled()) {
+            return List.of(EnumSet.copyOf(requested));
+        }
+        EnumSet<EnhancedSection> remaining = EnumSet.copyOf(requested);
+        List<EnumSet<EnhancedSection>> groups = new ArrayList<>();
+        for (List<EnhancedSection> group : fanOutConfig.getGroups()) {
+            EnumSet<EnhancedSection> selected = EnumSet.noneOf(EnhancedSection.class);
+            group.stream().filter(remaining::remove).forEach(selected::add);
+            if (!selected.isEmpty()) {
+                groups.add(selected);
             }
-        """;
+        }
+        if (groups.isEmpty()) {
+            groups.add(remaining);
+        } else {
+            groups.get(0).addAll(remaining);
+        }
+        return groups;
+    }
 
-    public Mono<EnhancedAnalysisResponse> analyzeEnhanced(String code, String language, String context, String persona) {
-        boolean isRoastMode = "roast".equalsIgnoreCase(persona);
-        String personaModifier = getPersonaModifier(persona);
+    /**
+     * Generates each group in its own parallel upstream call and merges them onto the first (core) group,
+     * so latency is that of the slowest group instead of all sections back to back. The other groups get
+     * {@code sectionTimeout}; when one times out or fails its sections stay empty and are listed in
+     * {@code incompleteSections}.
+     */
+    private Mono<EnhancedAnalysisResponse> fanOut(String code, String language, String context, String persona,
+                                                  List<EnumSet<EnhancedSection>> groups, String hedgeClass) {
+        Mono<EnhancedAnalysisResponse> core = analyzeSections(code, language, context, persona, groups.get(0), hedgeClass);
+        List<Mono<Optional<EnhancedAnalysisResponse>>> auxiliary = groups.subList(1, groups.size()).stream()
+                .map(group -> analyzeSections(code, language, context, persona, group, hedgeClass)
+                        .filter(response -> !response.getSummary().startsWith(FAILURE_PREFIX))
+                        .timeout(fanOutConfig.getSectionTimeout())
+                        .map(Optional::of)
+                        .defaultIfEmpty(Optional.empty())
+                        .onErrorResume(e -> {
+                            log.warn("Enhanced sections {} not available: {}", group, e.toString());
+                            return Mono.just(Optional.empty());
+                        }))
+                .toList();
+
+        return Mono.zip(core, Mono.zip(auxiliary, results -> results))
+                .map(tuple -> {
+                    if (tuple.getT1().getSummary().startsWith(FAILURE_PREFIX)) {
+                        return tuple.getT1();
+                    }
+                    // Cached instances are shared, so merge into a copy
+                    EnhancedAnalysisResponse merged = tuple.getT1().toBuilder().build();
+                    List<String> incomplete = new ArrayList<>();
+                    for (int i = 0; i < tuple.getT2().length; i++) {
+                        @SuppressWarnings("unchecked")
+                        Optional<EnhancedAnalysisResponse> part = (Optional<EnhancedAnalysisResponse>) tuple.getT2()[i];
+                        EnumSet<EnhancedSection> group = groups.get(i + 1);
+                        if (part.isPresent()) {
+                            group.forEach(section -> copy(part.get(), merged, section));
+                            merged.setStale(merged.isStale() || part.get().isStale());
+                        } else {
+                            group.forEach(section -> incomplete.add(section.getValue()));
+                        }
+                    }
+                    merged.setIncompleteSections(incomplete.isEmpty() ? null : incomplete);
+                    merged.setIncidentTimeline(generateIncidentTimeline(merged.getPredictedIncidents()));
+                    return merged;
+                });
+    }
+
+    /**
+     * Streaming variant of {@link #analyzeEnhanced}: emits findings and predicted incidents
+     * as soon as each object is complete, followed by the full result.
+     */
+    public Flux<AnalysisStreamEvent> streamEnhanced(String code, String language, String context, String persona) {
+        return streamEnhanced(code, language, context, persona, EnhancedSection.defaults());
+    }
+
+    public Flux<AnalysisStreamEvent> streamEnhanced(String code, String language, String context, String persona,
+                                                    Set<EnhancedSection> sections) {
+        Set<EnhancedSection> requested = resolveSections(persona, sections);
+        PromptCache.SystemPrompt systemPrompt = buildSystemPrompt(persona, requested);
+
+        String cacheKey = AnalysisCache.key("enhanced", claudeConfig.getModel(), systemPrompt.text(),
+                AnalysisCache.normalizeCode(code), language, context);
+
+        return Flux.defer(() -> {
+            Optional<EnhancedAnalysisResponse> cached = analysisCache.peek(cacheKey);
+            if (cached.isPresent()) {
+                return Flux.concat(
+                        Flux.fromIterable(cached.get().getFindings()).map(f -> AnalysisStreamEvent.of("finding", f)),
+                        Flux.fromIterable(cached.get().getPredictedIncidents()).map(i -> AnalysisStreamEvent.of("incident", i)),
+                        Mono.just(AnalysisStreamEvent.of("result", cached.get())));
+            }
 
-        String systemPrompt = String.format(ENHANCED_SYSTEM_PROMPT,
-            personaModifier,
-            isRoastMode ? ROAST_JSON_ADDITION : "");
+            PromptCompressor.Compressed compressed = compress(code, language, requested);
+            Map<String, Object> request = buildRequest(systemPrompt, buildUserPrompt(compressed, language, context), requested);
+            TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, variant(requested), request, DEFAULT_MAX_TOKENS);
+            IncrementalJsonScanner scanner = new IncrementalJsonScanner();
+            StringBuilder fullText = new StringBuilder();
+
+            return claudeApiClient.streamText(request)
+                    .doOnNext(fullText::append)
+                    .concatMapIterable(scanner::feed)
+                    .filter(fragment -> fragment.kind() == IncrementalJsonScanner.Kind.ELEMENT)
+                    .concatMap(fragment -> Mono.justOrEmpty(toStreamEvent(fragment, compressed.lineMap())))
+                    .concatWith(Mono.fromCallable(() -> {
+                        EnhancedAnalysisResponse result = parseAnalysisText(fullText, requested, compressed.lineMap());
+                        if (!result.getSummary().startsWith(FAILURE_PREFIX)) {
+                            analysisCache.put(cacheKey, result);
+                        }
+                        return AnalysisStreamEvent.of("result", result);
+                    }))
+                    .onErrorResume(UpstreamUnavailableException.class, e -> Mono.justOrEmpty(analysisCache.<EnhancedAnalysisResponse>stale(cacheKey))
+                            .map(stale -> AnalysisStreamEvent.of("result", stale))
+                            .switchIfEmpty(Mono.error(e)))
+                    .contextWrite(budget::attach);
+        })
+                .doOnNext(event -> {
+                    if (event.getData() instanceof EnhancedAnalysisResponse response) {
+                        registerSource(response, code, language);
+                    }
+                })
+                .doOnError(e -> log.error("Enhanced streaming error: {}", e.getMessage()))
+                .onErrorResume(e -> Mono.just(AnalysisStreamEvent.of("error", createErrorResponse(e.getMessage()))))
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language));
+    }
 
-        String userPrompt = buildUserPrompt(code, language, context);
+    /**
+     * The roast only exists in roast mode, whatever was asked for.
+     */
+    private static Set<EnhancedSection> resolveSections(String persona, Set<EnhancedSection> sections) {
+        EnumSet<EnhancedSection> requested = EnumSet.copyOf(sections.isEmpty() ? EnhancedSection.defaults() : sections);
+        if (!"roast".equalsIgnoreCase(persona)) {
+            requested.remove(EnhancedSection.ROAST);
+        }
+        return requested;
+    }
+
+    /**
+     * The format depends only on the sections, so it is the cached prefix; the persona follows it.
+     */
+    private PromptCache.SystemPrompt buildSystemPrompt(String persona, Set<EnhancedSection> sections) {
+        boolean compact = compact();
+        List<String> format = new ArrayList<>(compact ? COMPACT_BASE_FORMAT : BASE_FORMAT);
+        sections.forEach(section -> format.add((compact ? COMPACT_SECTION_FORMATS : SECTION_FORMATS).get(section)));
+        String formatPrompt = String.format(compact ? COMPACT_ENHANCED_SYSTEM_PROMPT : ENHANCED_SYSTEM_PROMPT,
+            "    " + String.join(",\n    ", format));
+        boolean roast = sections.contains(EnhancedSection.ROAST);
+        return structuredOutput.systemPrompt(ENDPOINT, new PromptCache.SystemPrompt(List.of(formatPrompt),
+                "\n" + getPersonaModifier(persona) + (roast ? ROAST_ADDITION : "")));
+    }
 
+    private Map<String, Object> buildRequest(PromptCache.SystemPrompt systemPrompt, String userPrompt,
+                                             Set<EnhancedSection> sections) {
         Map<String, Object> request = new HashMap<>();
         request.put("model", claudeConfig.getModel());
-        request.put("max_tokens", 4096);
-        request.put("system", systemPrompt + (isRoastMode ? ROAST_ADDITION : ""));
+        request.put("system", promptCache.system(systemPrompt));
         request.put("messages", List.of(Map.of("role", "user", "content", userPrompt)));
+        boolean compact = compact();
+        List<String> properties = new ArrayList<>(compact ? List.of("s", "sum") : List.of("score", "summary"));
+        sections.forEach(section -> properties.add(compact ? section.getCompactField() : section.getField()));
+        return structuredOutput.apply(ENDPOINT, compact ? "enhanced-analysis-compact" : "enhanced-analysis",
+                properties, request);
+    }
 
-        log.info("Enhanced analysis with persona: {}, roast mode: {}", persona, isRoastMode);
+    private boolean compact() {
+        return structuredOutput.isCompact(ENDPOINT);
+    }
 
-        return claudeWebClient.post()
-                .bodyValue(request)
-                .retrieve()
-                .bodyToMono(String.class)
-                .map(response -> parseEnhancedResponse(response, isRoastMode))
-                .doOnError(e -> log.error("Enhanced analysis error: {}", e.getMessage()))
-                .onErrorResume(e -> Mono.just(createErrorResponse(e.getMessage())));
+    private AnalysisStreamEvent toStreamEvent(IncrementalJsonScanner.Fragment fragment, LineMap lineMap) {
+        try {
+            return switch (fragment.field()) {
+                case "findings" -> AnalysisStreamEvent.of("finding",
+                        lineMap.remap(complete(responseReader.readValue(fragment.json(), Finding.class))));
+                case "predictedIncidents" -> AnalysisStreamEvent.of("incident",
+                        lineMap.remap(responseReader.readValue(fragment.json(), ProductionIncident.class)));
+                case "f" -> AnalysisStreamEvent.of("finding", lineMap.remap(
+                        responseReader.readValue(fragment.json(), CompactEnhancedOutput.CompactFinding.class).expand()));
+                case "inc" -> AnalysisStreamEvent.of("incident", lineMap.remap(
+                        responseReader.readValue(fragment.json(), CompactEnhancedOutput.CompactIncident.class).expand()));
+                default -> null;
+            };
+        } catch (IOException e) {
+            log.warn("Skipping malformed streamed {}: {}", fragment.field(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void registerSource(EnhancedAnalysisResponse response, String code, String language) {
+        if (!response.getSummary().startsWith(FAILURE_PREFIX)) {
+            improvedCodeService.register(response.getId(), code, language, response.getFindings());
+        }
     }
 
     private String getPersonaModifier(String persona) {
@@ -107,10 +408,13 @@ public class EnhancedAnalysisService {
         };
     }
 
-    private String buildUserPrompt(String code, String language, String context) {
+    private String buildUserPrompt(PromptCompressor.Compressed code, String language, String context) {
         StringBuilder prompt = new StringBuilder();
         prompt.append("Analyze this ").append(language.toUpperCase()).append(" code:\n\n");
-        prompt.append("```").append(language).append("\n").append(code).append("\n```\n\n");
+        prompt.append("```").append(language).append("\n").append(code.code()).append("\n```\n\n");
+        if (code.stripped()) {
+            prompt.append(PromptCompressor.NOTE);
+        }
         if (context != null && !context.isBlank()) {
             prompt.append("Context: ").append(context).append("\n\n");
         }
@@ -118,209 +422,120 @@ public class EnhancedAnalysisService {
         return prompt.toString();
     }
 
-    private EnhancedAnalysisResponse parseEnhancedResponse(String responseBody, boolean isRoastMode) {
+    private Mono<EnhancedAnalysisResponse> parseEnhancedResponse(Map<String, Object> request, String responseBody,
+                                                                 Set<EnhancedSection> sections, LineMap lineMap) {
+        Mono<EnhancedAnalysisResponse> response = compact()
+                ? modelOutputReader.read(ENDPOINT, request, responseBody, CompactEnhancedOutput::new)
+                        .map(CompactEnhancedOutput::expand)
+                : modelOutputReader.read(ENDPOINT, request, responseBody, EnhancedAnalysisResponse::new);
+        return response
+                .map(result -> complete(remapLines(result, lineMap), sections))
+                .switchIfEmpty(Mono.fromSupplier(() -> createErrorResponse("Unexpected response format")))
+                .onErrorResume(IOException.class, e -> {
+                    log.error("Parse error: {}", e.getMessage());
+                    return Mono.just(createErrorResponse("Failed to parse response"));
+                });
+    }
+
+    private EnhancedAnalysisResponse parseAnalysisText(CharSequence text, Set<EnhancedSection> sections,
+                                                       LineMap lineMap) {
         try {
-            JsonNode root = objectMapper.readTree(responseBody);
-            JsonNode contentArray = root.path("content");
-            if (contentArray.isArray() && !contentArray.isEmpty()) {
-                String text = contentArray.get(0).path("text").asText();
-                return parseJson(extractJson(text), isRoastMode);
-            }
-            return createErrorResponse("Unexpected response format");
-        } catch (JsonProcessingException e) {
+            EnhancedAnalysisResponse response = compact()
+                    ? responseReader.readText(text, new CompactEnhancedOutput()).expand()
+                    : responseReader.readText(text, new EnhancedAnalysisResponse());
+            return complete(remapLines(response, lineMap), sections);
+        } catch (IOException e) {
             log.error("Parse error: {}", e.getMessage());
             return createErrorResponse("Failed to parse response");
         }
     }
 
-    private EnhancedAnalysisResponse parseJson(String json, boolean isRoastMode) throws JsonProcessingException {
-        JsonNode node = objectMapper.readTree(json);
-
-        // Parse findings
-        List<Finding> findings = new ArrayList<>();
-        for (JsonNode f : node.path("findings")) {
-            findings.add(Finding.builder()
-                    .severity(parseSeverity(f.path("severity").asText()))
-                    .line(f.has("line") && !f.path("line").isNull() ? f.path("line").asInt() : null)
-                    .issue(f.path("issue").asText())
-                    .explanation(f.path("explanation").asText())
-                    .suggestion(f.path("suggestion").asText())
-                    .build());
-        }
-
-        // Parse incidents
-        List<ProductionIncident> incidents = new ArrayList<>();
-        for (JsonNode i : node.path("predictedIncidents")) {
-            ProductionIncident.CostEstimate cost = null;
-            if (i.has("costEstimate")) {
-                JsonNode c = i.path("costEstimate");
-                cost = ProductionIncident.CostEstimate.builder()
-                        .minDollars(c.path("minDollars").asInt())
-                        .maxDollars(c.path("maxDollars").asInt())
-                        .breakdown(c.path("breakdown").asText())
-                        .build();
-            }
-            incidents.add(ProductionIncident.builder()
-                    .id(i.path("id").asText())
-                    .title(i.path("title").asText())
-                    .severity(i.path("severity").asText())
-                    .scenario(i.path("scenario").asText())
-                    .whatHappens(i.path("whatHappens").asText())
-                    .rootCause(i.path("rootCause").asText())
-                    .affectedLine(i.has("affectedLine") ? i.path("affectedLine").asInt() : null)
-                    .timeToOccur(i.path("timeToOccur").asText())
-                    .probabilityPercent(i.path("probabilityPercent").asInt())
-                    .businessImpact(i.path("businessImpact").asText())
-                    .costEstimate(cost)
-                    .preventionCode(i.path("preventionCode").asText())
-                    .build());
-        }
-
-        // Parse ship-it score
-        JsonNode s = node.path("shipItScore");
-        JsonNode rb = s.path("riskBreakdown");
-        ShipItScore shipIt = ShipItScore.builder()
-                .verdict(s.path("verdict").asText())
-                .confidence(s.path("confidence").asInt())
-                .reasoning(s.path("reasoning").asText())
-                .mustFixBefore(parseStringList(s.path("mustFixBefore")))
-                .niceToHave(parseStringList(s.path("niceToHave")))
-                .tldr(s.path("tldr").asText())
-                .riskBreakdown(ShipItScore.RiskBreakdown.builder()
-                        .securityRisk(rb.path("securityRisk").asInt())
-                        .stabilityRisk(rb.path("stabilityRisk").asInt())
-                        .performanceRisk(rb.path("performanceRisk").asInt())
-                        .maintainabilityRisk(rb.path("maintainabilityRisk").asInt())
-                        .dataLossRisk(rb.path("dataLossRisk").asInt())
-                        .build())
-                .build();
-
-        // Parse cost analysis
-        JsonNode ca = node.path("costAnalysis");
-        EnhancedAnalysisResponse.CostAnalysis costAnalysis = EnhancedAnalysisResponse.CostAnalysis.builder()
-                .totalEstimatedCost(ca.path("totalEstimatedCost").asInt())
-                .engineeringHoursToFix(ca.path("engineeringHoursToFix").asInt())
-                .potentialRevenueLoss(ca.path("potentialRevenueLoss").asInt())
-                .technicalDebtCost(ca.path("technicalDebtCost").asInt())
-                .recommendation(ca.path("recommendation").asText())
-                .build();
-
-        // Parse achievements
-        List<Achievement> achievements = new ArrayList<>();
-        for (JsonNode a : node.path("achievements")) {
-            achievements.add(Achievement.builder()
-                    .id(a.path("id").asText())
-                    .name(a.path("name").asText())
-                    .icon(a.path("icon").asText())
-                    .description(a.path("description").asText())
-                    .unlocked(a.path("unlocked").asBoolean())
-                    .unlockedReason(a.path("unlockedReason").asText())
-                    .build());
+    /**
+     * Translates the lines the model saw back to the submitted code's.
+     */
+    private static EnhancedAnalysisResponse remapLines(EnhancedAnalysisResponse response, LineMap lineMap) {
+        lineMap.remapFindings(response.getFindings());
+        if (response.getPredictedIncidents() != null) {
+            response.getPredictedIncidents().forEach(lineMap::remap);
         }
+        return response;
+    }
 
-        // Parse roast if present
-        EnhancedAnalysisResponse.CodeRoast roast = null;
-        if (isRoastMode && node.has("roast")) {
-            JsonNode r = node.path("roast");
-            roast = EnhancedAnalysisResponse.CodeRoast.builder()
-                    .headline(r.path("headline").asText())
-                    .roasts(parseStringList(r.path("roasts")))
-                    .memeUrl(r.path("memeUrl").asText())
-                    .savageryLevel(r.path("savageryLevel").asInt())
-                    .constructiveTakeaway(r.path("constructiveTakeaway").asText())
-                    .build();
+    /**
+     * Fills in what the bound model output can't provide (id, timestamps, the timeline) and
+     * replaces missing parts with empty ones, so callers never see null lists or a null ship-it score.
+     * Sections that weren't requested are dropped even if the model wrote them anyway.
+     */
+    private EnhancedAnalysisResponse complete(EnhancedAnalysisResponse response, Set<EnhancedSection> sections) {
+        EnumSet.complementOf(EnumSet.copyOf(sections)).forEach(section -> clear(response, section));
+        response.setId(UUID.randomUUID().toString());
+        response.setAnalyzedAt(System.currentTimeMillis());
+        response.setSummary(Objects.requireNonNullElse(response.getSummary(), ""));
+        response.setImprovedCode(Objects.requireNonNullElse(response.getImprovedCode(), ""));
+        response.setFindings(nonNull(response.getFindings()).stream().map(this::complete).toList());
+        response.setPredictedIncidents(nonNull(response.getPredictedIncidents()));
+        response.setAchievements(nonNull(response.getAchievements()));
+        response.setFamousBugMatches(nonNull(response.getFamousBugMatches()));
+
+        ShipItScore shipIt = Objects.requireNonNullElseGet(response.getShipItScore(), ShipItScore::new);
+        shipIt.setVerdict(Objects.requireNonNullElse(shipIt.getVerdict(), ""));
+        shipIt.setTldr(Objects.requireNonNullElse(shipIt.getTldr(), ""));
+        shipIt.setMustFixBefore(nonNull(shipIt.getMustFixBefore()));
+        shipIt.setNiceToHave(nonNull(shipIt.getNiceToHave()));
+        shipIt.setRiskBreakdown(Objects.requireNonNullElseGet(shipIt.getRiskBreakdown(), ShipItScore.RiskBreakdown::new));
+        response.setShipItScore(shipIt);
+        response.setCostAnalysis(Objects.requireNonNullElseGet(response.getCostAnalysis(),
+                EnhancedAnalysisResponse.CostAnalysis::new));
+
+        if (response.getCodeKarma() != null && response.getCodeKarma().getDebtCreated() == null) {
+            response.getCodeKarma().setDebtCreated(new CodeKarma.TechDebtCreated());
         }
 
-        // Parse famous bug matches
-        List<EnhancedAnalysisResponse.FamousBugMatch> famousBugMatches = new ArrayList<>();
-        for (JsonNode fb : node.path("famousBugMatches")) {
-            famousBugMatches.add(EnhancedAnalysisResponse.FamousBugMatch.builder()
-                    .famousBugId(fb.path("famousBugId").asText())
-                    .bugName(fb.path("bugName").asText())
-                    .company(fb.path("company").asText())
-                    .year(fb.path("year").asText())
-                    .icon(fb.path("icon").asText())
-                    .similarityPercent(fb.path("similarityPercent").asInt())
-                    .matchReason(fb.path("matchReason").asText())
-                    .financialImpact(fb.path("financialImpact").asText())
-                    .yourCodePattern(fb.path("yourCodePattern").asText())
-                    .historyPattern(fb.path("historyPattern").asText())
-                    .lesson(fb.path("lesson").asText())
-                    .build());
-        }
+        response.setIncidentTimeline(generateIncidentTimeline(response.getPredictedIncidents()));
+        return response;
+    }
 
-        // Parse pre-mortem (simplified)
-        PreMortem preMortem = null;
-        if (node.has("preMortem")) {
-            JsonNode pm = node.path("preMortem");
-            preMortem = PreMortem.builder()
-                    .incidentTitle(pm.path("incidentTitle").asText())
-                    .severity(pm.path("severity").asText())
-                    .date(pm.path("date").asText())
-                    .duration(pm.path("duration").asText())
-                    .executiveSummary(pm.path("executiveSummary").asText())
-                    .rootCauses(parseStringList(pm.path("rootCauses")))
-                    .impactAssessment(pm.path("impactAssessment").asText())
-                    .whoGetsBlamed(pm.path("whoGetsBlamed").asText())
-                    .actionItems(parseStringList(pm.path("actionItems")))
-                    .build();
+    private static void copy(EnhancedAnalysisResponse from, EnhancedAnalysisResponse to, EnhancedSection section) {
+        switch (section) {
+            case FINDINGS -> to.setFindings(from.getFindings());
+            case IMPROVED_CODE -> to.setImprovedCode(from.getImprovedCode());
+            case INCIDENTS -> to.setPredictedIncidents(from.getPredictedIncidents());
+            case SHIP_IT -> to.setShipItScore(from.getShipItScore());
+            case COST -> to.setCostAnalysis(from.getCostAnalysis());
+            case ACHIEVEMENTS -> to.setAchievements(from.getAchievements());
+            case FAMOUS_BUGS -> to.setFamousBugMatches(from.getFamousBugMatches());
+            case PRE_MORTEM -> to.setPreMortem(from.getPreMortem());
+            case ON_CALL -> to.setOnCallForecast(from.getOnCallForecast());
+            case KARMA -> to.setCodeKarma(from.getCodeKarma());
+            case ROAST -> to.setRoast(from.getRoast());
         }
+    }
 
-        // Parse on-call forecast (simplified)
-        OnCallForecast onCallForecast = null;
-        if (node.has("onCallForecast")) {
-            JsonNode ocf = node.path("onCallForecast");
-            onCallForecast = OnCallForecast.builder()
-                    .painIndex(ocf.path("painIndex").asInt())
-                    .overallVerdict(ocf.path("overallVerdict").asText())
-                    .predictedPages(ocf.path("predictedPages").asInt())
-                    .sleepInterruptions(ocf.path("sleepInterruptions").asInt())
-                    .weekendRuined(ocf.path("weekendRuined").asInt())
-                    .survivalTips(parseStringList(ocf.path("survivalTips")))
-                    .coffeeCupsNeeded(ocf.path("coffeeCupsNeeded").asInt())
-                    .recommendedCopingMechanism(ocf.path("recommendedCopingMechanism").asText())
-                    .build();
+    private static void clear(EnhancedAnalysisResponse response, EnhancedSection section) {
+        switch (section) {
+            case FINDINGS -> response.setFindings(null);
+            case IMPROVED_CODE -> response.setImprovedCode(null);
+            case INCIDENTS -> response.setPredictedIncidents(null);
+            case SHIP_IT -> response.setShipItScore(null);
+            case COST -> response.setCostAnalysis(null);
+            case ACHIEVEMENTS -> response.setAchievements(null);
+            case FAMOUS_BUGS -> response.setFamousBugMatches(null);
+            case PRE_MORTEM -> response.setPreMortem(null);
+            case ON_CALL -> response.setOnCallForecast(null);
+            case KARMA -> response.setCodeKarma(null);
+            case ROAST -> response.setRoast(null);
         }
+    }
 
-        // Parse code karma (simplified)
-        CodeKarma codeKarma = null;
-        if (node.has("codeKarma")) {
-            JsonNode ck = node.path("codeKarma");
-            JsonNode dc = ck.path("debtCreated");
-
-            codeKarma = CodeKarma.builder()
-                    .karmaScore(ck.path("karmaScore").asInt())
-                    .karmaVerdict(ck.path("karmaVerdict").asText())
-                    .debtCreated(CodeKarma.TechDebtCreated.builder()
-                            .totalHours(dc.path("totalHours").asInt())
-                            .worstOffense(dc.path("worstOffense").asText())
-                            .build())
-                    .reincarnationAs(ck.path("reincarnationAs").asText())
-                    .futureYouMessage(ck.path("futureYouMessage").asText())
-                    .build();
+    private Finding complete(Finding finding) {
+        if (finding.getSeverity() == null) {
+            finding.setSeverity(Severity.SUGGESTION);
         }
+        return finding;
+    }
 
-        // Generate incident timeline
-        String timeline = generateIncidentTimeline(incidents);
-
-        return EnhancedAnalysisResponse.builder()
-                .id(UUID.randomUUID().toString())
-                .score(node.path("score").asInt())
-                .summary(node.path("summary").asText())
-                .findings(findings)
-                .improvedCode(node.path("improvedCode").asText())
-                .analyzedAt(System.currentTimeMillis())
-                .predictedIncidents(incidents)
-                .incidentTimeline(timeline)
-                .shipItScore(shipIt)
-                .costAnalysis(costAnalysis)
-                .achievements(achievements)
-                .roast(roast)
-                .famousBugMatches(famousBugMatches)
-                .preMortem(preMortem)
-                .onCallForecast(onCallForecast)
-                .codeKarma(codeKarma)
-                .build();
+    private static <T> List<T> nonNull(List<T> list) {
+        return list == null ? List.of() : list.stream().filter(Objects::nonNull).toList();
     }
 
     private String generateIncidentTimeline(List<ProductionIncident> incidents) {
@@ -346,7 +561,7 @@ public class EnhancedAnalysisService {
             if (!entry.getValue().isEmpty()) {
                 sb.append("\n⏰ ").append(entry.getKey().toUpperCase()).append("\n");
                 for (ProductionIncident i : entry.getValue()) {
-                    String icon = switch (i.getSeverity()) {
+                    String icon = switch (Objects.requireNonNullElse(i.getSeverity(), "")) {
                         case "P0" -> "🔴";
                         case "P1" -> "🟠";
                         case "P2" -> "🟡";
@@ -361,35 +576,11 @@ public class EnhancedAnalysisService {
         return sb.toString();
     }
 
-    private List<String> parseStringList(JsonNode node) {
-        List<String> list = new ArrayList<>();
-        if (node.isArray()) {
-            for (JsonNode n : node) list.add(n.asText());
-        }
-        return list;
-    }
-
-    private String extractJson(String text) {
-        String cleaned = text.trim();
-        if (cleaned.startsWith("```json")) cleaned = cleaned.substring(7);
-        else if (cleaned.startsWith("```")) cleaned = cleaned.substring(3);
-        if (cleaned.endsWith("```")) cleaned = cleaned.substring(0, cleaned.length() - 3);
-        return cleaned.trim();
-    }
-
-    private Severity parseSeverity(String s) {
-        return switch (s.toLowerCase()) {
-            case "critical" -> Severity.CRITICAL;
-            case "warning" -> Severity.WARNING;
-            default -> Severity.SUGGESTION;
-        };
-    }
-
     private EnhancedAnalysisResponse createErrorResponse(String message) {
         return EnhancedAnalysisResponse.builder()
                 .id(UUID.randomUUID().toString())
                 .score(0)
-                .summary("Analysis failed: " + message)
+                .summary(FAILURE_PREFIX + message)
                 .findings(List.of())
                 .predictedIncidents(List.of())
                 .achievements(List.of())
@@ -0,0 +1,219 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.AnalysisCacheConfig;
+import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.dto.AnalysisStreamEvent;
+import com.codeanalyzer.dto.Finding;
+import com.codeanalyzer.dto.ImprovedCodeResponse;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates the improved version of an analyzed file on demand, as a unified diff.
+ * <p>
+ * Rewriting the whole file is the most expensive part of an analysis and most users never
+ * look at it, so analyses only register their input here; the rewrite is produced (and cached
+ * by content) when {@code /api/analyses/{id}/improved-code} is first requested.
+ */
+@Service
+@Slf4j
+public class ImprovedCodeService {
+
+    private static final String ENDPOINT = "improved-code";
+    private static final int MAX_OUTPUT_TOKENS = 32000;
+
+    private static final String SYSTEM_PROMPT = """
+        You are a senior engineer applying the fixes from a code review.
+
+        Rewrite the file so that it resolves the review findings. Change only what the fixes
+        require and keep every other line exactly as it is, including formatting and comments.
+
+        Respond with ONLY the complete improved file: no explanations, no markdown fences.
+        """;
+
+    private record Source(String code, String language, List<Finding> findings) {
+    }
+
+    private final ClaudeApiClient claudeApiClient;
+    private final ClaudeConfig claudeConfig;
+    private final ModelOutputReader modelOutputReader;
+    private final AnalysisCache analysisCache;
+    private final TokenBudget tokenBudget;
+    private final Cache<String, Source> sources;
+
+    public ImprovedCodeService(ClaudeApiClient claudeApiClient, ClaudeConfig claudeConfig,
+                               ModelOutputReader modelOutputReader, AnalysisCache analysisCache,
+                               TokenBudget tokenBudget, AnalysisCacheConfig cacheConfig) {
+        this.claudeApiClient = claudeApiClient;
+        this.claudeConfig = claudeConfig;
+        this.modelOutputReader = modelOutputReader;
+        this.analysisCache = analysisCache;
+        this.tokenBudget = tokenBudget;
+        this.sources = Caffeine.newBuilder()
+                .maximumWeight(cacheConfig.getMaximumWeight())
+                .weigher((String id, Source source) -> source.code().length())
+                .expireAfterAccess(cacheConfig.getTtl())
+                .build();
+    }
+
+    /**
+     * Remembers what an analysis looked at, so its improved code can be generated later.
+     */
+    public void register(String analysisId, String code, String language, List<Finding> findings) {
+        sources.put(analysisId, new Source(code, language, findings == null ? List.of() : findings));
+    }
+
+    /**
+     * @return empty when the analysis is unknown or has expired
+     */
+    public Mono<ImprovedCodeResponse> improvedCode(String analysisId) {
+        return Mono.justOrEmpty(sources.getIfPresent(analysisId))
+                .flatMap(source -> {
+                    Map<String, Object> request = buildRequest(source);
+                    TokenBudget.Budget budget = size(source, request);
+                    return analysisCache.getOrLoad(cacheKey(source), () -> claudeApiClient.send(request)
+                                    .flatMap(body -> modelOutputReader.readText(ENDPOINT, request, body))
+                                    .map(message -> toResponse(source, message.value(), message.truncated())),
+                            ImprovedCodeResponse::isComplete)
+                            .contextWrite(budget::attach)
+                            .contextWrite(UsageAccounting.tag(ENDPOINT, null, source.language()));
+                })
+                .doOnError(e -> log.error("Improved code generation failed for {}: {}", analysisId, e.getMessage()));
+    }
+
+    /**
+     * Streams the improved file as "code" events while it is written, then the diff as "result".
+     *
+     * @return empty when the analysis is unknown or has expired
+     */
+    public Flux<AnalysisStreamEvent> streamImprovedCode(String analysisId) {
+        return Mono.justOrEmpty(sources.getIfPresent(analysisId)).flatMapMany(source -> {
+            String cacheKey = cacheKey(source);
+            Optional<ImprovedCodeResponse> cached = analysisCache.peek(cacheKey);
+            if (cached.isPresent()) {
+                return Flux.just(AnalysisStreamEvent.of("result", cached.get()));
+            }
+
+            Map<String, Object> request = buildRequest(source);
+            TokenBudget.Budget budget = size(source, request);
+            StringBuilder fullText = new StringBuilder();
+            AtomicReference<String> stopReason = new AtomicReference<>();
+            return claudeApiClient.streamText(request, stopReason::set)
+                    .doOnNext(fullText::append)
+                    .map(text -> AnalysisStreamEvent.of("code", text))
+                    .concatWith(Mono.fromCallable(() -> {
+                        // The streamed text can't be continued like a buffered answer, so a cut-off rewrite
+                        // is returned as a partial diff and left out of the cache
+                        ImprovedCodeResponse result = toResponse(source, fullText.toString(),
+                                "max_tokens".equals(stopReason.get()));
+                        if (result.isComplete()) {
+                            analysisCache.put(cacheKey, result);
+                        }
+                        return AnalysisStreamEvent.of("result", result);
+                    }))
+                    .onErrorResume(UpstreamUnavailableException.class, e -> Mono.justOrEmpty(analysisCache.<ImprovedCodeResponse>stale(cacheKey))
+                            .map(stale -> AnalysisStreamEvent.of("result", stale))
+                            .switchIfEmpty(Mono.error(e)))
+                    .contextWrite(budget::attach)
+                    .contextWrite(UsageAccounting.tag(ENDPOINT, null, source.language()));
+        })
+                .doOnError(e -> log.error("Improved code streaming failed for {}: {}", analysisId, e.getMessage()))
+                .onErrorResume(e -> Mono.just(AnalysisStreamEvent.of("error", Map.of("message", e.getMessage()))));
+    }
+
+    public boolean isKnown(String analysisId) {
+        return sources.getIfPresent(analysisId) != null;
+    }
+
+    private String cacheKey(Source source) {
+        return AnalysisCache.key(ENDPOINT, claudeConfig.getModel(), SYSTEM_PROMPT,
+                AnalysisCache.normalizeCode(source.code()), source.language(), describeFindings(source.findings()));
+    }
+
+    private Map<String, Object> buildRequest(Source source) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("model", claudeConfig.getModel());
+        request.put("system", SYSTEM_PROMPT);
+        request.put("messages", List.of(Map.of("role", "user", "content", buildUserPrompt(source))));
+        return request;
+    }
+
+    /**
+     * The answer is the whole file again, so it needs far more room than an analysis, and at least the file's size.
+     */
+    private TokenBudget.Budget size(Source source, Map<String, Object> request) {
+        int codeTokens = TokenEstimator.estimate(source.code());
+        return tokenBudget.size(ENDPOINT, null, request, MAX_OUTPUT_TOKENS, codeTokens + codeTokens / 4);
+    }
+
+    private String buildUserPrompt(Source source) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Improve this ").append(source.language().toUpperCase()).append(" code:\n\n");
+        prompt.append("```").append(source.language()).append("\n").append(source.code()).append("\n```\n\n");
+        prompt.append("Review findings to fix:\n").append(describeFindings(source.findings()));
+        return prompt.toString();
+    }
+
+    private static String describeFindings(List<Finding> findings) {
+        if (findings.isEmpty()) {
+            return "- none reported; fix anything that is clearly wrong\n";
+        }
+        StringBuilder text = new StringBuilder();
+        for (Finding finding : findings) {
+            text.append("- [").append(finding.getSeverity() != null ? finding.getSeverity().getValue() : "suggestion")
+                    .append("] ");
+            if (finding.getLine() != null) {
+                text.append("line ").append(finding.getLine()).append(": ");
+            }
+            text.append(finding.getIssue());
+            if (finding.getSuggestion() != null && !finding.getSuggestion().isBlank()) {
+                text.append(" - ").append(finding.getSuggestion());
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private ImprovedCodeResponse toResponse(Source source, String text, boolean truncated) {
+        String improved = stripFence(text == null ? "" : text);
+        if (truncated && improved.lastIndexOf('\n') >= 0) {
+            // The last line was cut mid-way
+            improved = improved.substring(0, improved.lastIndexOf('\n'));
+        }
+        UnifiedDiff.Result diff = UnifiedDiff.diff(AnalysisCache.normalizeCode(source.code()),
+                AnalysisCache.normalizeCode(improved), "a/original", "b/improved", truncated);
+        return ImprovedCodeResponse.builder()
+                .diff(diff.text())
+                .linesAdded(diff.linesAdded())
+                .linesRemoved(diff.linesRemoved())
+                .complete(!truncated)
+                .generatedAt(System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * Removes a markdown fence the model may add despite being told not to.
+     */
+    private static String stripFence(String text) {
+        String trimmed = text.strip();
+        if (!trimmed.startsWith("```")) {
+            return text;
+        }
+        int firstNewline = trimmed.indexOf('\n');
+        if (firstNewline < 0) {
+            return "";
+        }
+        String body = trimmed.substring(firstNewline + 1);
+        return body.endsWith("```") ? body.substring(0, body.length() - 3) : body;
+    }
+}
@@ -0,0 +1,264 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ChunkingConfig;
+import com.codeanalyzer.dto.AnalysisResponse;
+import com.codeanalyzer.dto.Finding;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+/**
+ * Re-analyzes only what changed since code was last submitted. The code is split into top-level
+ * units (see {@link CodeChunker#unitStarts}) and what each analysis found in a unit is cached
+ * under a hash of the unit's own text, so a unit that was seen before, wherever it now sits in
+ * the file, needs no upstream call. Runs of new units are sent with one unit of context on each
+ * side, and the findings of all units are stitched back together at their current lines.
+ * <p>
+ * The first submission of a file is analyzed whole (through {@link ChunkedAnalysisService}, so
+ * any size works) and seeds the unit cache.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class IncrementalAnalysisService {
+
+    private static final String FAILURE_PREFIX = "Analysis failed: ";
+
+    private final ClaudeService claudeService;
+    private final ChunkedAnalysisService chunkedAnalysisService;
+    private final ImprovedCodeService improvedCodeService;
+    private final AnalysisCache analysisCache;
+    private final ChunkingConfig chunkingConfig;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * What one analysis found in one unit, with lines relative to the unit.
+     */
+    public record UnitResult(int score, List<Finding> findings) {
+    }
+
+    /**
+     * Lines are 1-based and inclusive.
+     */
+    private record Unit(int startLine, int endLine, int chars, String key) {
+    }
+
+    /**
+     * Units first to last (indexes) sent in one call; {@code changed} are the ones it analyzes for.
+     */
+    private record Window(int first, int last, List<Integer> changed) {
+    }
+
+    private record Part(Window window, AnalysisResponse response) {
+    }
+
+    public Mono<AnalysisResponse> analyze(String code, String language, String context, String persona) {
+        List<String> lines = CodeChunker.lines(code);
+        List<Integer> starts = CodeChunker.unitStarts(lines, "python".equalsIgnoreCase(language));
+        String promptVersion = claudeService.promptVersion(persona);
+        List<Unit> units = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            int start = starts.get(i);
+            int end = i + 1 < starts.size() ? starts.get(i + 1) : lines.size();
+            String text = String.join("\n", lines.subList(start, end));
+            units.add(new Unit(start + 1, end, text.length() + 1, AnalysisCache.key("unit", promptVersion,
+                    AnalysisCache.normalizeCode(text), language, context)));
+        }
+
+        UnitResult[] results = new UnitResult[units.size()];
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < units.size(); i++) {
+            results[i] = analysisCache.<UnitResult>peek(units.get(i).key()).orElse(null);
+            if (results[i] == null) {
+                changed.add(i);
+            }
+        }
+        meterRegistry.counter("analysis.incremental.units", "result", "reused").increment(units.size() - changed.size());
+        meterRegistry.counter("analysis.incremental.units", "result", "analyzed").increment(changed.size());
+
+        if (changed.isEmpty()) {
+            return Mono.fromSupplier(() -> merge(List.of(), units, results))
+                    .doOnNext(response -> register(response, code, language));
+        }
+        if (changed.size() == units.size()) {
+            Window whole = new Window(0, units.size() - 1, changed);
+            return chunkedAnalysisService.analyze(code, language, context, persona)
+                    .doOnNext(response -> store(new Part(whole, response), units, results));
+        }
+
+        List<Window> windows = windows(changed, units.size());
+        log.info("Incremental analysis: {} of {} units changed, {} windows", changed.size(), units.size(),
+                windows.size());
+        return Flux.fromIterable(windows)
+                .flatMapSequential(window -> chunkedAnalysisService.analyze(text(lines, units, window), language,
+                                windowContext(window, units, context), persona)
+                        .map(response -> new Part(window, response)), chunkingConfig.getConcurrency())
+                .doOnNext(part -> store(part, units, results))
+                .collectList()
+                .map(parts -> merge(parts, units, results))
+                .doOnNext(response -> register(response, code, language));
+    }
+
+    /**
+     * The stitched result gets a new id, under which the improved code covers the whole submitted file.
+     */
+    private void register(AnalysisResponse response, String code, String language) {
+        if (!response.getSummary().startsWith(FAILURE_PREFIX)) {
+            improvedCodeService.register(response.getId(), code, language, response.getFindings());
+        }
+    }
+
+    /**
+     * Each run of changed units plus the unit before and after it; runs whose windows would
+     * touch are sent together.
+     */
+    private static List<Window> windows(List<Integer> changed, int unitCount) {
+        List<Window> windows = new ArrayList<>();
+        int first = -1;
+        int last = -1;
+        List<Integer> current = new ArrayList<>();
+        for (int index : changed) {
+            int from = Math.max(0, index - 1);
+            if (!current.isEmpty() && from > last) {
+                windows.add(new Window(first, last, current));
+                current = new ArrayList<>();
+            }
+            if (current.isEmpty()) {
+                first = from;
+            }
+            current.add(index);
+            last = Math.min(unitCount - 1, index + 1);
+        }
+        windows.add(new Window(first, last, current));
+        return windows;
+    }
+
+    private static String text(List<String> lines, List<Unit> units, Window window) {
+        return String.join("\n", lines.subList(units.get(window.first()).startLine() - 1,
+                units.get(window.last()).endLine()));
+    }
+
+    private static String windowContext(Window window, List<Unit> units, String context) {
+        int offset = units.get(window.first()).startLine() - 1;
+        StringJoiner changedLines = new StringJoiner(", ");
+        for (int index : window.changed()) {
+            Unit unit = units.get(index);
+            changedLines.add((unit.startLine() - offset) + "-" + (unit.endLine() - offset));
+        }
+        String part = "This is an excerpt of a larger file, whose other code was already reviewed. Only report"
+                + " issues in lines " + changedLines + " of the excerpt; the other lines are context."
+                + " Code it references may be defined elsewhere in the file; don't report it as missing.";
+        return context == null || context.isBlank() ? part : context + "\n" + part;
+    }
+
+    /**
+     * Fills in what the window's analysis found in each of its changed units, and caches it unless
+     * it is a stale fallback. Findings in context units are left to those units' own cached results;
+     * findings without a line go with the first changed unit.
+     */
+    private void store(Part part, List<Unit> units, UnitResult[] results) {
+        AnalysisResponse response = part.response();
+        if (response.getSummary().startsWith(FAILURE_PREFIX)) {
+            return;
+        }
+        Window window = part.window();
+        int offset = units.get(window.first()).startLine() - 1;
+        Map<Integer, List<Finding>> byUnit = new HashMap<>();
+        for (int index : window.changed()) {
+            byUnit.put(index, new ArrayList<>());
+        }
+        for (Finding finding : response.getFindings()) {
+            int index = finding.getLine() == null ? window.changed().get(0)
+                    : unitOf(units, window, finding.getLine() + offset);
+            List<Finding> findings = byUnit.get(index);
+            if (findings != null) {
+                Integer unitLine = finding.getLine() == null ? null
+                        : finding.getLine() + offset - units.get(index).startLine() + 1;
+                findings.add(copy(finding, unitLine));
+            }
+        }
+        byUnit.forEach((index, findings) -> {
+            results[index] = new UnitResult(response.getScore(), findings);
+            if (!response.isStale()) {
+                analysisCache.put(units.get(index).key(), results[index]);
+            }
+        });
+    }
+
+    /**
+     * The window's unit containing the file line; lines past the window (the model miscounted) go to its last unit.
+     */
+    private static int unitOf(List<Unit> units, Window window, int line) {
+        for (int index = window.last(); index > window.first(); index--) {
+            if (units.get(index).startLine() <= line) {
+                return index;
+            }
+        }
+        return window.first();
+    }
+
+    private AnalysisResponse merge(List<Part> parts, List<Unit> units, UnitResult[] results) {
+        List<Part> failed = parts.stream()
+                .filter(part -> part.response().getSummary().startsWith(FAILURE_PREFIX))
+                .toList();
+        if (failed.size() == parts.size() && Arrays.stream(results).allMatch(Objects::isNull)) {
+            return failed.get(0).response();
+        }
+
+        List<Finding> findings = new ArrayList<>();
+        long weightedScore = 0;
+        long weight = 0;
+        int reused = units.size();
+        for (int index = 0; index < units.size(); index++) {
+            UnitResult result = results[index];
+            if (result == null) {
+                continue;
+            }
+            Unit unit = units.get(index);
+            weightedScore += (long) result.score() * unit.chars();
+            weight += unit.chars();
+            for (Finding finding : result.findings()) {
+                // Unit results are shared cache entries, so place a copy
+                findings.add(copy(finding, finding.getLine() == null ? null : finding.getLine() + unit.startLine() - 1));
+            }
+        }
+        findings.sort(Comparator.comparing(Finding::getLine, Comparator.nullsLast(Comparator.naturalOrder())));
+
+        StringBuilder summary = new StringBuilder();
+        for (Part part : parts) {
+            reused -= part.window().changed().size();
+        }
+        summary.append(reused).append(" of ").append(units.size())
+                .append(" code units were unchanged and their earlier results reused.");
+        for (Part part : parts) {
+            summary.append("\nLines ").append(units.get(part.window().first()).startLine()).append('-')
+                    .append(units.get(part.window().last()).endLine()).append(": ")
+                    .append(failed.contains(part) ? "could not be analyzed." : part.response().getSummary());
+        }
+
+        return AnalysisResponse.builder()
+                .id(UUID.randomUUID().toString())
+                .score((int) Math.round((double) weightedScore / Math.max(1, weight)))
+                .findings(findings)
+                .improvedCode("")
+                .summary(summary.toString())
+                .analyzedAt(System.currentTimeMillis())
+                .stale(parts.stream().anyMatch(part -> part.response().isStale()))
+                .build();
+    }
+
+    private static Finding copy(Finding finding, Integer line) {
+        return Finding.builder()
+                .severity(finding.getSeverity())
+                .line(line)
+                .issue(finding.getIssue())
+                .explanation(finding.getExplanation())
+                .suggestion(finding.getSuggestion())
+                .build();
+    }
+}
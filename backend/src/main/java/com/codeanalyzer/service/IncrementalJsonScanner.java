@@ -0,0 +1,157 @@
+package com.codeanalyzer.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental scanner over a JSON object that arrives in arbitrary text chunks.
+ * <p>
+ * It reports each top-level field as soon as its value is complete, and each object
+ * inside a top-level array (e.g. one entry of {@code "findings"}) as soon as that
+ * object closes - long before the whole document is available. Anything before the
+ * opening brace (such as a markdown fence) is ignored.
+ * <p>
+ * Not thread-safe; use one instance per response.
+ */
+public class IncrementalJsonScanner {
+
+    public enum Kind {
+        /** A complete object or array element of a top-level array field. */
+        ELEMENT,
+        /** The complete value of a top-level, non-array field. */
+        VALUE,
+        /** A top-level array field has been closed. */
+        ARRAY_END
+    }
+
+    public record Fragment(Kind kind, String field, String json) {
+    }
+
+    private boolean started;
+    private boolean finished;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+
+    private boolean expectKey;
+    private boolean readingKey;
+    private final StringBuilder keyBuffer = new StringBuilder();
+    private String currentKey;
+    private boolean inTopLevelArray;
+
+    private StringBuilder capture;
+    private int captureDepth;
+    private boolean scalarCapture;
+    private Kind captureKind;
+
+    public List<Fragment> feed(CharSequence chunk) {
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i = 0; i < chunk.length(); i++) {
+            accept(chunk.charAt(i), fragments);
+        }
+        return fragments;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void accept(char c, List<Fragment> out) {
+        if (finished) {
+            return;
+        }
+        if (!started) {
+            if (c == '{') {
+                started = true;
+                depth = 1;
+                expectKey = true;
+            }
+            return;
+        }
+        if (capture != null) {
+            capture.append(c);
+        }
+
+        if (inString) {
+            if (escaped) {
+                escaped = false;
+                if (readingKey) keyBuffer.append(c);
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                inString = false;
+                if (readingKey) {
+                    readingKey = false;
+                    currentKey = keyBuffer.toString();
+                }
+            } else if (readingKey) {
+                keyBuffer.append(c);
+            }
+            return;
+        }
+
+        switch (c) {
+            case '"' -> {
+                inString = true;
+                if (depth == 1 && expectKey) {
+                    readingKey = true;
+                    keyBuffer.setLength(0);
+                    expectKey = false;
+                } else if (depth == 1 && capture == null) {
+                    startCapture(c, Kind.VALUE, true);
+                }
+            }
+            case '{', '[' -> {
+                if (depth == 1 && capture == null) {
+                    if (c == '[') {
+                        inTopLevelArray = true;
+                    } else {
+                        startCapture(c, Kind.VALUE, false);
+                    }
+                } else if (depth == 2 && inTopLevelArray && capture == null) {
+                    startCapture(c, Kind.ELEMENT, false);
+                }
+                depth++;
+            }
+            case '}', ']' -> {
+                depth--;
+                if (capture != null && !scalarCapture && depth == captureDepth) {
+                    emit(out, capture.toString());
+                } else if (depth == 1 && c == ']' && inTopLevelArray) {
+                    inTopLevelArray = false;
+                    out.add(new Fragment(Kind.ARRAY_END, currentKey, null));
+                } else if (depth == 0) {
+                    if (capture != null && scalarCapture) {
+                        emit(out, capture.substring(0, capture.length() - 1).trim());
+                    }
+                    finished = true;
+                }
+            }
+            case ',' -> {
+                if (depth == 1) {
+                    if (capture != null && scalarCapture) {
+                        emit(out, capture.substring(0, capture.length() - 1).trim());
+                    }
+                    expectKey = true;
+                }
+            }
+            default -> {
+                if (depth == 1 && !expectKey && capture == null && c != ':' && !Character.isWhitespace(c)) {
+                    startCapture(c, Kind.VALUE, true);
+                }
+            }
+        }
+    }
+
+    private void startCapture(char first, Kind kind, boolean scalar) {
+        capture = new StringBuilder().append(first);
+        captureDepth = depth;
+        captureKind = kind;
+        scalarCapture = scalar;
+    }
+
+    private void emit(List<Fragment> out, String json) {
+        out.add(new Fragment(captureKind, currentKey, json));
+        capture = null;
+    }
+}
@@ -0,0 +1,103 @@
+package com.codeanalyzer.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Closes JSON that was cut off mid-way, e.g. when the model ran into max_tokens.
+ * <p>
+ * The input is cut back to the last point where a value was complete (a closed
+ * object/array, a finished string value, a value followed by a comma) and the
+ * containers still open there are closed. Cut points only count at the top level
+ * or between array elements, so a half-written finding or nested object is dropped
+ * as a whole while every complete one before it survives.
+ */
+final class JsonRepair {
+
+    private JsonRepair() {
+    }
+
+    /**
+     * @param start index of the opening brace
+     * @param end   exclusive end of the available text
+     * @return the repaired JSON, or null when nothing usable survived
+     */
+    static String close(char[] buffer, int start, int end) {
+        Deque<Character> closers = new ArrayDeque<>();
+        boolean inString = false;
+        boolean escaped = false;
+        boolean stringIsKey = false;
+        boolean expectKey = false;
+        int openObjects = 0;
+        int safeEnd = -1;
+        String safeClosers = null;
+
+        for (int i = start; i < end; i++) {
+            char c = buffer[i];
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (!stringIsKey && openObjects == 1) {
+                        safeEnd = i + 1;
+                        safeClosers = closing(closers);
+                    }
+                }
+                continue;
+            }
+            switch (c) {
+                case '"' -> {
+                    inString = true;
+                    stringIsKey = expectKey && !closers.isEmpty() && closers.peek() == '}';
+                }
+                case '{', '[' -> {
+                    closers.push(c == '{' ? '}' : ']');
+                    expectKey = c == '{';
+                    if (c == '{') {
+                        openObjects++;
+                    }
+                    if (openObjects == 1) {
+                        safeEnd = i + 1;
+                        safeClosers = closing(closers);
+                    }
+                }
+                case '}', ']' -> {
+                    Character closer = closers.poll();
+                    if (closer != null && closer == '}') {
+                        openObjects--;
+                    }
+                    if (closers.isEmpty()) {
+                        return new String(buffer, start, i + 1 - start);
+                    }
+                    if (openObjects == 1) {
+                        safeEnd = i + 1;
+                        safeClosers = closing(closers);
+                    }
+                }
+                case ':' -> expectKey = false;
+                case ',' -> {
+                    if (openObjects == 1) {
+                        safeEnd = i;
+                        safeClosers = closing(closers);
+                    }
+                    expectKey = !closers.isEmpty() && closers.peek() == '}';
+                }
+                default -> {
+                }
+            }
+        }
+        if (safeEnd < 0) {
+            return null;
+        }
+        return new String(buffer, start, safeEnd - start) + safeClosers;
+    }
+
+    private static String closing(Deque<Character> closers) {
+        StringBuilder sb = new StringBuilder(closers.size());
+        closers.forEach(sb::append);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.dto.Finding;
+import com.codeanalyzer.dto.ProductionIncident;
+
+import java.util.List;
+
+/**
+ * Maps line numbers of code sent to the model back to the code the user submitted, after
+ * {@link PromptCompressor} removed lines from it.
+ */
+public final class LineMap {
+
+    public static final LineMap IDENTITY = new LineMap(null);
+
+    // original[i] is the submitted line number of sent line i + 1
+    private final int[] original;
+
+    LineMap(int[] original) {
+        this.original = original;
+    }
+
+    public boolean isIdentity() {
+        return original == null;
+    }
+
+    /**
+     * Lines past the end (the model miscounted) map to the last line; null and non-positive lines stay as they are.
+     */
+    public Integer toOriginal(Integer line) {
+        if (line == null || original == null || line < 1 || original.length == 0) {
+            return line;
+        }
+        return original[Math.min(line, original.length) - 1];
+    }
+
+    public Finding remap(Finding finding) {
+        if (finding != null) {
+            finding.setLine(toOriginal(finding.getLine()));
+        }
+        return finding;
+    }
+
+    public ProductionIncident remap(ProductionIncident incident) {
+        if (incident != null) {
+            incident.setAffectedLine(toOriginal(incident.getAffectedLine()));
+        }
+        return incident;
+    }
+
+    public void remapFindings(List<Finding> findings) {
+        if (findings != null && original != null) {
+            findings.forEach(this::remap);
+        }
+    }
+}
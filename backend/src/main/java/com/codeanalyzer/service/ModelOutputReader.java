@@ -0,0 +1,142 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.model.OutputMode;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Turns a Messages API response into a DTO, recovering output that hit max_tokens.
+ * <p>
+ * A truncated answer is resumed by re-sending the request with the partial answer as an
+ * assistant prefill, so the model continues the same JSON where it stopped and only the
+ * missing tail is paid for again. When continuation is disabled or fails, the repaired
+ * answer (every complete finding/incident up to the cut) is returned instead of an error.
+ * <p>
+ * Every response is counted per endpoint and {@link OutputMode} ({@code claude.output.responses},
+ * {@code claude.output.parse.failures}, {@code claude.output.tokens}) so the modes can be compared.
+ */
+@Component
+@Slf4j
+public class ModelOutputReader {
+
+    private static final String TEXT_MODE = "text";
+
+    private final ClaudeApiClient claudeApiClient;
+    private final ClaudeResponseReader responseReader;
+    private final ClaudeConfig.Continuation config;
+    private final MeterRegistry meterRegistry;
+
+    public ModelOutputReader(ClaudeApiClient claudeApiClient, ClaudeResponseReader responseReader,
+                             ClaudeConfig claudeConfig, MeterRegistry meterRegistry) {
+        this.claudeApiClient = claudeApiClient;
+        this.responseReader = responseReader;
+        this.config = claudeConfig.getContinuation();
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @param endpoint metrics tag, e.g. "enhanced"
+     * @param request  the request that produced {@code responseBody}, reused for continuations
+     * @param target   supplies a fresh binding target with the caller's defaults
+     * @return the bound answer; empty when the response had no text block or tool call
+     */
+    public <T> Mono<T> read(String endpoint, Map<String, Object> request, String responseBody, Supplier<T> target) {
+        String mode = StructuredOutput.modeOf(request).getValue();
+        meterRegistry.counter("claude.output.responses", "endpoint", endpoint, "mode", mode).increment();
+
+        return Mono.fromCallable(() -> responseReader.readMessage(responseBody, target.get()))
+                .doOnError(IOException.class, e -> parseFailure(endpoint, mode))
+                .flatMap(message -> {
+                    recordUsage(endpoint, mode, message.usage());
+                    if (message.value() == null || (message.partialText() != null && !message.truncated())) {
+                        parseFailure(endpoint, mode);
+                    }
+                    if (!message.truncated() || message.partialText() == null) {
+                        return Mono.justOrEmpty(message.value());
+                    }
+                    meterRegistry.counter("claude.output.truncated", "endpoint", endpoint).increment();
+                    if (!config.isEnabled() || config.getMaxContinuations() < 1) {
+                        meterRegistry.counter("claude.output.repaired", "endpoint", endpoint).increment();
+                        return Mono.justOrEmpty(message.value());
+                    }
+                    return continueText(endpoint, mode, request, message.partialText(), 1)
+                            .flatMap(text -> Mono.fromCallable(() -> responseReader.readText(text.value(), target.get())))
+                            .onErrorResume(e -> {
+                                log.warn("Continuation after max_tokens failed, keeping the repaired answer: {}",
+                                        e.getMessage());
+                                meterRegistry.counter("claude.output.repaired", "endpoint", endpoint).increment();
+                                return Mono.justOrEmpty(message.value());
+                            });
+                });
+    }
+
+    /**
+     * Reads an answer that is plain text rather than JSON (e.g. a rewritten file), continuing it
+     * the same way when it hit max_tokens.
+     *
+     * @return the full text; {@link ClaudeResponseReader.Message#truncated()} if it is still cut off
+     */
+    public Mono<ClaudeResponseReader.Message<String>> readText(String endpoint, Map<String, Object> request,
+                                                               String responseBody) {
+        meterRegistry.counter("claude.output.responses", "endpoint", endpoint, "mode", TEXT_MODE).increment();
+
+        return Mono.fromCallable(() -> responseReader.readRawMessage(responseBody))
+                .doOnError(IOException.class, e -> parseFailure(endpoint, TEXT_MODE))
+                .flatMap(message -> {
+                    recordUsage(endpoint, TEXT_MODE, message.usage());
+                    if (!message.truncated() || message.value() == null) {
+                        return Mono.just(message);
+                    }
+                    meterRegistry.counter("claude.output.truncated", "endpoint", endpoint).increment();
+                    if (!config.isEnabled() || config.getMaxContinuations() < 1) {
+                        return Mono.just(message);
+                    }
+                    return continueText(endpoint, TEXT_MODE, request, message.value(), 1);
+                });
+    }
+
+    private Mono<ClaudeResponseReader.Message<String>> continueText(String endpoint, String mode, Map<String, Object> request,
+                                      String partialText, int continuation) {
+        // The API rejects an assistant prefill that ends in whitespace
+        String prefill = partialText.stripTrailing();
+        List<Object> messages = new ArrayList<>((List<?>) request.get("messages"));
+        messages.add(Map.of("role", "assistant", "content", prefill));
+        Map<String, Object> continuationRequest = new HashMap<>(request);
+        continuationRequest.put("messages", messages);
+
+        meterRegistry.counter("claude.output.continuations", "endpoint", endpoint).increment();
+        log.info("Model output hit max_tokens, requesting continuation {}", continuation);
+        return claudeApiClient.send(continuationRequest)
+                // A continuation's size says nothing about what the whole answer needs
+                .contextWrite(context -> context.delete(TokenBudget.Budget.class))
+                .flatMap(body -> Mono.fromCallable(() -> responseReader.readRawMessage(body)))
+                .flatMap(message -> {
+                    recordUsage(endpoint, mode, message.usage());
+                    String text = prefill + Objects.requireNonNullElse(message.value(), "");
+                    if (message.truncated() && continuation < config.getMaxContinuations()) {
+                        return continueText(endpoint, mode, request, text, continuation + 1);
+                    }
+                    return Mono.just(new ClaudeResponseReader.Message<>(text, message.stopReason(), null,
+                            message.usage()));
+                });
+    }
+
+    private void parseFailure(String endpoint, String mode) {
+        meterRegistry.counter("claude.output.parse.failures", "endpoint", endpoint, "mode", mode).increment();
+    }
+
+    private void recordUsage(String endpoint, String mode, ClaudeResponseReader.Usage usage) {
+        meterRegistry.summary("claude.output.tokens", "endpoint", endpoint, "mode", mode).record(usage.outputTokens());
+    }
+}
@@ -1,28 +1,51 @@
 package com.codeanalyzer.service;
 
 import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.config.MapReduceConfig;
 import com.codeanalyzer.dto.*;
 import com.codeanalyzer.model.Persona;
 import com.codeanalyzer.model.Severity;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.util.*;
-
+import java.util.stream.Stream;
+
+/**
+ * Analyzes a set of files together. By default they go into one prompt. In map-reduce mode
+ * ({@code analysis.map-reduce}) each file is analyzed by its own call, in parallel and cached
+ * on the file alone, and a final call over the files' summaries finds the cross-file issues and
+ * reviews the architecture; the response has the same shape either way.
+ * <p>
+ * The streaming variant emits each file's findings as soon as they are known: parsed from the
+ * upstream stream in single-prompt mode, or as each file's call completes in map-reduce mode.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class MultiFileAnalysisService {
 
-    private final WebClient claudeWebClient;
+    private final ClaudeApiClient claudeApiClient;
     private final ClaudeConfig claudeConfig;
-    private final ObjectMapper objectMapper;
+    private final ModelOutputReader modelOutputReader;
+    private final StructuredOutput structuredOutput;
+    private final AnalysisCache analysisCache;
+    private final PromptCache promptCache;
+    private final TokenBudget tokenBudget;
+    private final PromptCompressor promptCompressor;
+    private final MapReduceConfig mapReduceConfig;
+    private final ClaudeResponseReader responseReader;
+
+    private static final String FAILURE_PREFIX = "Analysis failed: ";
+    private static final String ENDPOINT = "multi";
+    private static final int DEFAULT_MAX_TOKENS = 8192; // More tokens for multi-file
+    private static final int MAX_FINDINGS_PER_SUMMARY = 10;
+    private static final List<String> REDUCE_PROPERTIES =
+            List.of("overallScore", "summary", "crossFileIssues", "architectureReview");
 
     private static final String MULTI_FILE_SYSTEM_PROMPT = """
         You are a senior software architect with 20+ years of experience reviewing codebases.
@@ -71,35 +94,464 @@ public class MultiFileAnalysisService {
         }
         """;
 
+    private static final String FILE_SYSTEM_PROMPT = """
+        You are a senior software architect with 20+ years of experience reviewing codebases.
+        You're analyzing one file of a multi-file project submitted by a junior developer. The
+        other files are reviewed separately; don't report code defined in them as missing.
+
+        Find bugs, logic errors, and issues in this file. Point to exact lines. Explain WHY things are wrong.
+
+        Also summarize the file for a reviewer who will see only these summaries when looking for
+        cross-file issues: its responsibility, what it exposes to other files, what it depends on,
+        and the assumptions callers must honor. At most 5 sentences.
+
+        IMPORTANT: Respond in valid JSON format with this EXACT structure:
+        {
+            "score": <number 0-100, higher = more bugs/issues>,
+            "summary": "<the summary described above>",
+            "findings": [
+                {
+                    "severity": "<critical|warning|suggestion>",
+                    "line": <line number or null>,
+                    "issue": "<brief title>",
+                    "explanation": "<detailed explanation>",
+                    "suggestion": "<how to fix>"
+                }
+            ]
+        }
+        """;
+
+    private static final String REDUCE_SYSTEM_PROMPT = """
+        You are a senior software architect with 20+ years of experience reviewing codebases.
+        Each file of a multi-file project has already been reviewed on its own. You get a summary
+        of every file and its main findings.
+
+        Your job is to:
+        1. Find CROSS-FILE issues (inconsistencies, coupling problems, missing dependencies)
+        2. Review the overall ARCHITECTURE (patterns, structure, maintainability)
+        3. Score the project as a whole, taking the files' own findings into account
+
+        IMPORTANT: Respond in valid JSON format with this EXACT structure:
+        {
+            "overallScore": <number 0-100, higher = more bugs/issues>,
+            "summary": "<2-3 sentence overall assessment>",
+            "crossFileIssues": [
+                {
+                    "issue": "<issue title>",
+                    "explanation": "<why this is a problem>",
+                    "affectedFiles": ["file1.java", "file2.java"],
+                    "suggestion": "<how to fix>"
+                }
+            ],
+            "architectureReview": {
+                "overview": "<overall architecture description>",
+                "strengths": ["<strength 1>", "<strength 2>"],
+                "concerns": ["<concern 1>", "<concern 2>"],
+                "recommendations": ["<recommendation 1>", "<recommendation 2>"]
+            }
+        }
+        """;
+
     public Mono<MultiFileAnalysisResponse> analyzeMultipleFiles(MultiFileAnalysisRequest request) {
         String persona = request.getPersona() != null ? request.getPersona() : "brutal";
-        String systemPrompt = buildSystemPrompt(persona);
-        String userPrompt = buildUserPrompt(request);
+        if (mapReduceConfig.isEnabled()) {
+            return mapReduce(request, persona);
+        }
+        PromptCache.SystemPrompt systemPrompt = buildSystemPrompt(persona);
+        Map<String, LineMap> lineMaps = new HashMap<>();
+        String userPrompt = buildUserPrompt(request, lineMaps);
 
         Map<String, Object> requestBody = buildRequest(systemPrompt, userPrompt);
+        TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, variant(request), requestBody, DEFAULT_MAX_TOKENS);
 
-        log.info("Analyzing {} files with persona: {}", request.getFiles().size(), persona);
+        String cacheKey = cacheKey(systemPrompt, request);
 
-        return claudeWebClient.post()
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .map(response -> parseResponse(response, request.getFiles().size()))
+        return analysisCache.getOrLoad(cacheKey, () -> {
+                    log.info("Analyzing {} files with persona: {}", request.getFiles().size(), persona);
+                    return claudeApiClient.send(requestBody)
+                            .flatMap(response -> parseResponse(requestBody, response, request.getFiles().size()))
+                            .map(response -> remapLines(response, lineMaps));
+                }, response -> !response.getSummary().startsWith(FAILURE_PREFIX))
                 .doOnError(e -> log.error("Error in multi-file analysis: {}", e.getMessage()))
-                .onErrorResume(e -> Mono.just(createErrorResponse(e.getMessage())));
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException), e -> Mono.just(createErrorResponse(e.getMessage())))
+                .contextWrite(budget::attach)
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language(request)));
     }
 
-    private String buildSystemPrompt(String persona) {
-        String personaModifier = switch (persona.toLowerCase()) {
+    /**
+     * Streaming variant of {@link #analyzeMultipleFiles}: a "file" event with each file's
+     * {@link FileFinding} as soon as it is known, then a "cross-file" event per cross-file issue,
+     * an "architecture" event, and a final "result" with the complete response.
+     */
+    public Flux<AnalysisStreamEvent> streamMultipleFiles(MultiFileAnalysisRequest request) {
+        String persona = request.getPersona() != null ? request.getPersona() : "brutal";
+        if (mapReduceConfig.isEnabled()) {
+            return streamMapReduce(request, persona);
+        }
+        PromptCache.SystemPrompt systemPrompt = buildSystemPrompt(persona);
+        String cacheKey = cacheKey(systemPrompt, request);
+
+        return Flux.defer(() -> {
+            Optional<MultiFileAnalysisResponse> cached = analysisCache.peek(cacheKey);
+            if (cached.isPresent()) {
+                return Flux.fromIterable(cached.get().getFileFindings())
+                        .map(fileFinding -> AnalysisStreamEvent.of("file", fileFinding))
+                        .concatWith(reviewEvents(cached.get()));
+            }
+
+            Map<String, LineMap> lineMaps = new HashMap<>();
+            Map<String, Object> requestBody = buildRequest(systemPrompt, buildUserPrompt(request, lineMaps));
+            TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, variant(request), requestBody, DEFAULT_MAX_TOKENS);
+            IncrementalJsonScanner scanner = new IncrementalJsonScanner();
+            StringBuilder fullText = new StringBuilder();
+
+            return claudeApiClient.streamText(requestBody)
+                    .doOnNext(fullText::append)
+                    .concatMapIterable(scanner::feed)
+                    .filter(fragment -> fragment.kind() == IncrementalJsonScanner.Kind.ELEMENT
+                            && "fileFindings".equals(fragment.field()))
+                    .concatMap(fragment -> Mono.justOrEmpty(parseFileFinding(fragment.json(), lineMaps)))
+                    .map(fileFinding -> AnalysisStreamEvent.of("file", fileFinding))
+                    .concatWith(Flux.defer(() -> {
+                        MultiFileAnalysisResponse result = remapLines(
+                                parseAnalysisText(fullText, request.getFiles().size()), lineMaps);
+                        if (!result.getSummary().startsWith(FAILURE_PREFIX)) {
+                            analysisCache.put(cacheKey, result);
+                        }
+                        return reviewEvents(result);
+                    }))
+                    .onErrorResume(UpstreamUnavailableException.class, e -> Mono.justOrEmpty(analysisCache.<MultiFileAnalysisResponse>stale(cacheKey))
+                            .map(stale -> AnalysisStreamEvent.of("result", stale))
+                            .switchIfEmpty(Mono.error(e)))
+                    .contextWrite(budget::attach);
+        })
+                .doOnError(e -> log.error("Multi-file streaming error: {}", e.getMessage()))
+                .onErrorResume(e -> Mono.just(AnalysisStreamEvent.of("error", createErrorResponse(e.getMessage()))))
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language(request)));
+    }
+
+    /**
+     * The events that follow the files: cross-file issues, the architecture review, then the complete result.
+     */
+    private static Flux<AnalysisStreamEvent> reviewEvents(MultiFileAnalysisResponse response) {
+        return Flux.fromIterable(response.getCrossFileIssues())
+                .map(issue -> AnalysisStreamEvent.of("cross-file", issue))
+                .concatWithValues(AnalysisStreamEvent.of("architecture", response.getArchitectureReview()),
+                        AnalysisStreamEvent.of("result", response));
+    }
+
+    private FileFinding parseFileFinding(String json, Map<String, LineMap> lineMaps) {
+        try {
+            FileFinding fileFinding = complete(responseReader.readValue(json, FileFinding.class));
+            LineMap lineMap = lineMaps.get(fileFinding.getFilename());
+            if (lineMap != null) {
+                lineMap.remapFindings(fileFinding.getFindings());
+            }
+            return fileFinding;
+        } catch (IOException e) {
+            log.warn("Skipping malformed streamed file findings: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private MultiFileAnalysisResponse parseAnalysisText(CharSequence text, int fileCount) {
+        try {
+            return complete(responseReader.readText(text,
+                    MultiFileAnalysisResponse.builder().overallScore(50).summary("").build()), fileCount);
+        } catch (IOException e) {
+            log.error("Failed to parse analysis JSON: {}", e.getMessage());
+            return createErrorResponse("Failed to parse analysis results");
+        }
+    }
+
+    /**
+     * Keyed on the submitted code: lines of a cached result were mapped back to exactly that.
+     */
+    private String cacheKey(PromptCache.SystemPrompt systemPrompt, MultiFileAnalysisRequest request) {
+        return AnalysisCache.key("multi", claudeConfig.getModel(), systemPrompt.text(),
+                AnalysisCache.normalizeCode(buildUserPrompt(request, null)));
+    }
+
+    /**
+     * Predicts what {@link #analyzeMultipleFiles} would cost without calling the API.
+     */
+    public TokenEstimate estimate(MultiFileAnalysisRequest request) {
+        String persona = request.getPersona() != null ? request.getPersona() : "brutal";
+        if (mapReduceConfig.isEnabled()) {
+            // The reduce call's input depends on the files' answers, so only the parallel per-file calls are estimated
+            return TokenBudget.parallel(request.getFiles().stream()
+                    .map(file -> tokenBudget.estimate(ENDPOINT, "file", buildFileRequest(fileSystemPrompt(persona),
+                                    buildFilePrompt(file, promptCompressor.compress(file.getContent(), file.getLanguage()),
+                                            request.getContext())),
+                            mapReduceConfig.getFileMaxTokens()))
+                    .toList());
+        }
+        Map<String, Object> requestBody = buildRequest(buildSystemPrompt(persona), buildUserPrompt(request, new HashMap<>()));
+        return tokenBudget.estimate(ENDPOINT, variant(request), requestBody, DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * Output grows with the number of files, so sizes are learned per power-of-two file count.
+     */
+    private static String variant(MultiFileAnalysisRequest request) {
+        return "files:" + Integer.highestOneBit(Math.max(1, request.getFiles().size()));
+    }
+
+    /**
+     * The files' common language, or "mixed".
+     */
+    private static String language(MultiFileAnalysisRequest request) {
+        List<String> languages = request.getFiles().stream().map(FileContent::getLanguage).distinct().toList();
+        return languages.size() == 1 ? languages.get(0) : "mixed";
+    }
+
+    private PromptCache.SystemPrompt buildSystemPrompt(String persona) {
+        return structuredOutput.systemPrompt(ENDPOINT,
+                new PromptCache.SystemPrompt(List.of(MULTI_FILE_SYSTEM_PROMPT), personaModifier(persona)));
+    }
+
+    private PromptCache.SystemPrompt fileSystemPrompt(String persona) {
+        return structuredOutput.systemPrompt(ENDPOINT,
+                new PromptCache.SystemPrompt(List.of(FILE_SYSTEM_PROMPT), personaModifier(persona)));
+    }
+
+    private PromptCache.SystemPrompt reduceSystemPrompt(String persona) {
+        return structuredOutput.systemPrompt(ENDPOINT,
+                new PromptCache.SystemPrompt(List.of(REDUCE_SYSTEM_PROMPT), personaModifier(persona)));
+    }
+
+    private static String personaModifier(String persona) {
+        return switch (persona.toLowerCase()) {
             case "brutal" -> "\nBe BRUTAL. No mercy. Find every possible flaw. Imagine each bug costs $100,000.";
             case "mentor" -> "\nBe educational. Explain the 'why' behind issues. Help them learn.";
             case "edge-hunter" -> "\nFocus on edge cases, race conditions, and boundary conditions across files.";
             default -> "";
         };
-        return MULTI_FILE_SYSTEM_PROMPT + personaModifier;
     }
 
-    private String buildUserPrompt(MultiFileAnalysisRequest request) {
+    // ============ MAP-REDUCE MODE ============
+
+    private Mono<MultiFileAnalysisResponse> mapReduce(MultiFileAnalysisRequest request, String persona) {
+        log.info("Analyzing {} files in parallel with persona: {}", request.getFiles().size(), persona);
+        return Flux.fromIterable(request.getFiles())
+                .flatMapSequential(file -> analyzeFile(file, request.getContext(), persona),
+                        mapReduceConfig.getConcurrency())
+                .collectList()
+                .flatMap(results -> reduce(request, persona, results))
+                .doOnError(e -> log.error("Error in multi-file analysis: {}", e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException), e -> Mono.just(createErrorResponse(e.getMessage())))
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language(request)));
+    }
+
+    /**
+     * Emits each file's findings as its call completes, whatever the file order, then the
+     * reduce step's events.
+     */
+    private Flux<AnalysisStreamEvent> streamMapReduce(MultiFileAnalysisRequest request, String persona) {
+        List<FileContent> files = request.getFiles();
+        return Flux.defer(() -> {
+                    AnalysisResponse[] results = new AnalysisResponse[files.size()];
+                    return Flux.range(0, files.size())
+                            .flatMap(i -> analyzeFile(files.get(i), request.getContext(), persona)
+                                    .doOnNext(result -> results[i] = result)
+                                    .map(result -> AnalysisStreamEvent.of("file", fileFinding(files.get(i), result))),
+                                    mapReduceConfig.getConcurrency())
+                            .concatWith(Flux.defer(() -> reduce(request, persona, Arrays.asList(results))
+                                    .flatMapMany(MultiFileAnalysisService::reviewEvents)));
+                })
+                .doOnError(e -> log.error("Multi-file streaming error: {}", e.getMessage()))
+                .onErrorResume(e -> Mono.just(AnalysisStreamEvent.of("error", createErrorResponse(e.getMessage()))))
+                .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language(request)));
+    }
+
+    /**
+     * A file that could not be analyzed is listed without findings.
+     */
+    private static FileFinding fileFinding(FileContent file, AnalysisResponse result) {
+        boolean failed = result.getSummary().startsWith(FAILURE_PREFIX);
+        return FileFinding.builder()
+                .filename(name(file))
+                .fileScore(failed ? 0 : result.getScore())
+                .findings(failed ? List.of() : result.getFindings())
+                .build();
+    }
+
+    /**
+     * One file's findings (on its submitted lines), score and summary. Cached on the file alone, so
+     * an unchanged file is reused whichever files it is submitted with.
+     */
+    private Mono<AnalysisResponse> analyzeFile(FileContent file, String context, String persona) {
+        PromptCache.SystemPrompt systemPrompt = fileSystemPrompt(persona);
+        PromptCompressor.Compressed compressed = promptCompressor.compress(file.getContent(), file.getLanguage());
+        Map<String, Object> requestBody = buildFileRequest(systemPrompt, buildFilePrompt(file, compressed, context));
+        TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, "file", requestBody, mapReduceConfig.getFileMaxTokens());
+
+        String cacheKey = AnalysisCache.key("multi-file", claudeConfig.getModel(), systemPrompt.text(),
+                AnalysisCache.normalizeCode(file.getContent()), file.getLanguage(), name(file), context);
+
+        return analysisCache.getOrLoad(cacheKey, () -> claudeApiClient.send(requestBody)
+                        .flatMap(response -> parseFileResponse(requestBody, response))
+                        .map(response -> {
+                            compressed.lineMap().remapFindings(response.getFindings());
+                            return response;
+                        }), response -> !response.getSummary().startsWith(FAILURE_PREFIX))
+                .doOnError(e -> log.error("Error analyzing {}: {}", name(file), e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException),
+                        e -> Mono.just(fileErrorResponse(e.getMessage())))
+                .contextWrite(budget::attach);
+    }
+
+    private static String buildFilePrompt(FileContent file, PromptCompressor.Compressed code, String context) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("=== FILE: ").append(name(file)).append(" ===\n");
+        prompt.append("Language: ").append(file.getLanguage()).append("\n");
+        prompt.append("```").append(file.getLanguage()).append("\n");
+        prompt.append(code.code());
+        prompt.append("\n```\n\n");
+        if (code.stripped()) {
+            prompt.append(PromptCompressor.NOTE);
+        }
+        if (context != null && !context.isBlank()) {
+            prompt.append("Developer's context: ").append(context).append("\n\n");
+        }
+        prompt.append("Analyze this file and summarize it.");
+        return prompt.toString();
+    }
+
+    private Map<String, Object> buildFileRequest(PromptCache.SystemPrompt systemPrompt, String userPrompt) {
+        return structuredOutput.apply(ENDPOINT, "analysis", buildRequestBody(systemPrompt, userPrompt));
+    }
+
+    private Mono<AnalysisResponse> parseFileResponse(Map<String, Object> requestBody, String responseBody) {
+        return modelOutputReader.read(ENDPOINT, requestBody, responseBody,
+                        () -> AnalysisResponse.builder().score(50).summary("").build())
+                .map(response -> {
+                    response.setFindings(nonNull(response.getFindings()));
+                    response.setSummary(Objects.requireNonNullElse(response.getSummary(), ""));
+                    return response;
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> fileErrorResponse("Unexpected response format")))
+                .onErrorResume(IOException.class, e -> {
+                    log.error("Failed to parse file analysis JSON: {}", e.getMessage());
+                    return Mono.just(fileErrorResponse("Failed to parse analysis results"));
+                });
+    }
+
+    /**
+     * Cross-file issues and architecture review from the files' summaries, combined with the files'
+     * own findings. Files that could not be analyzed are listed without findings and left out of
+     * the review; if the review itself fails, the file findings are still returned.
+     */
+    private Mono<MultiFileAnalysisResponse> reduce(MultiFileAnalysisRequest request, String persona,
+                                                   List<AnalysisResponse> results) {
+        List<FileContent> files = request.getFiles();
+        List<FileFinding> fileFindings = new ArrayList<>();
+        int analyzed = 0;
+        long scoreSum = 0;
+        for (int i = 0; i < files.size(); i++) {
+            AnalysisResponse result = results.get(i);
+            fileFindings.add(fileFinding(files.get(i), result));
+            if (!result.getSummary().startsWith(FAILURE_PREFIX)) {
+                analyzed++;
+                scoreSum += result.getScore();
+            }
+        }
+        if (analyzed == 0) {
+            return Mono.just(createErrorResponse(results.get(0).getSummary().substring(FAILURE_PREFIX.length())));
+        }
+        int averageScore = (int) Math.round((double) scoreSum / analyzed);
+        boolean stale = results.stream().anyMatch(AnalysisResponse::isStale);
+
+        PromptCache.SystemPrompt systemPrompt = reduceSystemPrompt(persona);
+        String userPrompt = buildReducePrompt(request, results);
+        Map<String, Object> requestBody = structuredOutput.apply(ENDPOINT, "multi-file-analysis", REDUCE_PROPERTIES,
+                buildRequestBody(systemPrompt, userPrompt));
+        TokenBudget.Budget budget = tokenBudget.size(ENDPOINT, "reduce", requestBody, mapReduceConfig.getReduceMaxTokens());
+
+        String cacheKey = AnalysisCache.key("multi-reduce", claudeConfig.getModel(), systemPrompt.text(), userPrompt);
+
+        // The cached review is shared, so the files' findings go into a new response
+        return analysisCache.getOrLoad(cacheKey, () -> claudeApiClient.send(requestBody)
+                        .flatMap(response -> modelOutputReader.read(ENDPOINT, requestBody, response,
+                                () -> MultiFileAnalysisResponse.builder().overallScore(averageScore).summary("").build()))
+                        .map(review -> complete(review, files.size()))
+                        .switchIfEmpty(Mono.fromSupplier(() -> createErrorResponse("Unexpected response format"))),
+                        review -> !review.getSummary().startsWith(FAILURE_PREFIX))
+                .doOnError(e -> log.error("Error in cross-file review: {}", e.getMessage()))
+                .onErrorResume(e -> !(e instanceof UpstreamUnavailableException),
+                        e -> Mono.just(createErrorResponse(e.getMessage())))
+                .contextWrite(budget::attach)
+                .map(review -> {
+                    boolean reviewFailed = review.getSummary().startsWith(FAILURE_PREFIX);
+                    return complete(MultiFileAnalysisResponse.builder()
+                            .overallScore(reviewFailed ? averageScore : review.getOverallScore())
+                            .summary(reviewFailed
+                                    ? "Cross-file review could not be completed: "
+                                            + review.getSummary().substring(FAILURE_PREFIX.length())
+                                    : review.getSummary())
+                            .fileFindings(fileFindings)
+                            .crossFileIssues(review.getCrossFileIssues())
+                            .architectureReview(review.getArchitectureReview())
+                            .stale(stale || review.isStale())
+                            .build(), files.size());
+                });
+    }
+
+    private static String buildReducePrompt(MultiFileAnalysisRequest request, List<AnalysisResponse> results) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Review this multi-file project from its files' reviews:\n\n");
+
+        if (request.getProjectName() != null && !request.getProjectName().isBlank()) {
+            prompt.append("Project: ").append(request.getProjectName()).append("\n\n");
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            FileContent file = request.getFiles().get(i);
+            AnalysisResponse result = results.get(i);
+            prompt.append("=== FILE: ").append(name(file)).append(" (").append(file.getLanguage()).append(") ===\n");
+            if (result.getSummary().startsWith(FAILURE_PREFIX)) {
+                prompt.append("Could not be analyzed.\n\n");
+                continue;
+            }
+            prompt.append("Score: ").append(result.getScore()).append("\n");
+            prompt.append(result.getSummary()).append("\n");
+            result.getFindings().stream()
+                    .filter(finding -> finding.getSeverity() != null)
+                    .sorted(Comparator.comparing(Finding::getSeverity))
+                    .limit(MAX_FINDINGS_PER_SUMMARY)
+                    .forEach(finding -> prompt.append("- ").append(finding.getSeverity().getValue())
+                            .append(finding.getLine() != null ? " (line " + finding.getLine() + ")" : "")
+                            .append(": ").append(finding.getIssue()).append("\n"));
+            prompt.append("\n");
+        }
+
+        if (request.getContext() != null && !request.getContext().isBlank()) {
+            prompt.append("Developer's context: ").append(request.getContext()).append("\n\n");
+        }
+
+        prompt.append("Find the cross-file issues and review the architecture.");
+        return prompt.toString();
+    }
+
+    private static String name(FileContent file) {
+        return file.getPath() != null ? file.getPath() : file.getFilename();
+    }
+
+    private AnalysisResponse fileErrorResponse(String message) {
+        return AnalysisResponse.builder()
+                .id(UUID.randomUUID().toString())
+                .score(0)
+                .findings(List.of())
+                .summary(FAILURE_PREFIX + message)
+                .analyzedAt(System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * @param lineMaps receives each file's {@link LineMap} under its path and filename; null sends the code uncompressed
+     */
+    private String buildUserPrompt(MultiFileAnalysisRequest request, Map<String, LineMap> lineMaps) {
+        boolean stripped = false;
         StringBuilder prompt = new StringBuilder();
         prompt.append("Analyze this multi-file project:\n\n");
 
@@ -111,10 +563,22 @@ public class MultiFileAnalysisService {
             prompt.append("=== FILE: ").append(file.getPath() != null ? file.getPath() : file.getFilename()).append(" ===\n");
             prompt.append("Language: ").append(file.getLanguage()).append("\n");
             prompt.append("```").append(file.getLanguage()).append("\n");
-            prompt.append(file.getContent());
+            if (lineMaps == null) {
+                prompt.append(file.getContent());
+            } else {
+                PromptCompressor.Compressed compressed = promptCompressor.compress(file.getContent(), file.getLanguage());
+                prompt.append(compressed.code());
+                stripped |= compressed.stripped();
+                Stream.of(file.getPath(), file.getFilename()).filter(Objects::nonNull)
+                        .forEach(name -> lineMaps.put(name, compressed.lineMap()));
+            }
             prompt.append("\n```\n\n");
         }
 
+        if (stripped) {
+            prompt.append(PromptCompressor.NOTE);
+        }
+
         if (request.getContext() != null && !request.getContext().isBlank()) {
             prompt.append("Developer's context: ").append(request.getContext()).append("\n\n");
         }
@@ -124,163 +588,93 @@ public class MultiFileAnalysisService {
         return prompt.toString();
     }
 
-    private Map<String, Object> buildRequest(String systemPrompt, String userPrompt) {
+    private Map<String, Object> buildRequest(PromptCache.SystemPrompt systemPrompt, String userPrompt) {
+        return structuredOutput.apply(ENDPOINT, "multi-file-analysis", buildRequestBody(systemPrompt, userPrompt));
+    }
+
+    private Map<String, Object> buildRequestBody(PromptCache.SystemPrompt systemPrompt, String userPrompt) {
         Map<String, Object> request = new HashMap<>();
         request.put("model", claudeConfig.getModel());
-        request.put("max_tokens", 8192); // More tokens for multi-file
-        request.put("system", systemPrompt);
+        request.put("system", promptCache.system(systemPrompt));
         request.put("messages", List.of(
                 Map.of("role", "user", "content", userPrompt)
         ));
         return request;
     }
 
-    private MultiFileAnalysisResponse parseResponse(String responseBody, int fileCount) {
-        try {
-            JsonNode root = objectMapper.readTree(responseBody);
-            JsonNode contentArray = root.path("content");
-
-            if (contentArray.isArray() && !contentArray.isEmpty()) {
-                String text = contentArray.get(0).path("text").asText();
-                return parseAnalysisJson(text, fileCount);
+    /**
+     * Translates the lines the model saw back to the submitted files', by the filename each finding names.
+     */
+    private static MultiFileAnalysisResponse remapLines(MultiFileAnalysisResponse response, Map<String, LineMap> lineMaps) {
+        for (FileFinding fileFinding : response.getFileFindings()) {
+            LineMap lineMap = lineMaps.get(fileFinding.getFilename());
+            if (lineMap != null) {
+                lineMap.remapFindings(fileFinding.getFindings());
             }
-
-            return createErrorResponse("Unexpected response format");
-        } catch (JsonProcessingException e) {
-            log.error("Failed to parse response: {}", e.getMessage());
-            return createErrorResponse("Failed to parse AI response");
-        }
-    }
-
-    private MultiFileAnalysisResponse parseAnalysisJson(String text, int fileCount) {
-        try {
-            String jsonContent = extractJson(text);
-            JsonNode node = objectMapper.readTree(jsonContent);
-
-            List<FileFinding> fileFindings = parseFileFindings(node.path("fileFindings"));
-            List<CrossFileIssue> crossFileIssues = parseCrossFileIssues(node.path("crossFileIssues"));
-            MultiFileAnalysisResponse.ArchitectureReview archReview = parseArchitectureReview(node.path("architectureReview"));
-
-            int totalFindings = fileFindings.stream()
-                    .mapToInt(ff -> ff.getFindings().size())
-                    .sum() + crossFileIssues.size();
-
-            return MultiFileAnalysisResponse.builder()
-                    .id(UUID.randomUUID().toString())
-                    .overallScore(node.path("overallScore").asInt(50))
-                    .summary(node.path("summary").asText())
-                    .fileFindings(fileFindings)
-                    .crossFileIssues(crossFileIssues)
-                    .architectureReview(archReview)
-                    .analyzedAt(System.currentTimeMillis())
-                    .totalFiles(fileCount)
-                    .totalFindings(totalFindings)
-                    .build();
-
-        } catch (JsonProcessingException e) {
-            log.error("Failed to parse analysis JSON: {}", e.getMessage());
-            return createErrorResponse("Failed to parse analysis results");
         }
+        return response;
     }
 
-    private List<FileFinding> parseFileFindings(JsonNode fileFindingsNode) {
-        List<FileFinding> fileFindings = new ArrayList<>();
-        if (fileFindingsNode.isArray()) {
-            for (JsonNode ffNode : fileFindingsNode) {
-                List<Finding> findings = new ArrayList<>();
-                JsonNode findingsArray = ffNode.path("findings");
-                if (findingsArray.isArray()) {
-                    for (JsonNode fNode : findingsArray) {
-                        findings.add(Finding.builder()
-                                .severity(parseSeverity(fNode.path("severity").asText()))
-                                .line(fNode.has("line") && !fNode.path("line").isNull() ? fNode.path("line").asInt() : null)
-                                .issue(fNode.path("issue").asText())
-                                .explanation(fNode.path("explanation").asText())
-                                .suggestion(fNode.path("suggestion").asText())
-                                .build());
-                    }
-                }
-                fileFindings.add(FileFinding.builder()
-                        .filename(ffNode.path("filename").asText())
-                        .fileScore(ffNode.path("fileScore").asInt(50))
-                        .findings(findings)
-                        .build());
-            }
-        }
-        return fileFindings;
-    }
-
-    private List<CrossFileIssue> parseCrossFileIssues(JsonNode crossFileNode) {
-        List<CrossFileIssue> issues = new ArrayList<>();
-        if (crossFileNode.isArray()) {
-            for (JsonNode cfNode : crossFileNode) {
-                List<String> affectedFiles = new ArrayList<>();
-                JsonNode filesArray = cfNode.path("affectedFiles");
-                if (filesArray.isArray()) {
-                    for (JsonNode f : filesArray) {
-                        affectedFiles.add(f.asText());
-                    }
-                }
-                issues.add(CrossFileIssue.builder()
-                        .issue(cfNode.path("issue").asText())
-                        .explanation(cfNode.path("explanation").asText())
-                        .affectedFiles(affectedFiles)
-                        .suggestion(cfNode.path("suggestion").asText())
-                        .build());
-            }
-        }
-        return issues;
+    private Mono<MultiFileAnalysisResponse> parseResponse(Map<String, Object> requestBody, String responseBody,
+                                                          int fileCount) {
+        return modelOutputReader.read(ENDPOINT, requestBody, responseBody,
+                        () -> MultiFileAnalysisResponse.builder().overallScore(50).summary("").build())
+                .map(response -> complete(response, fileCount))
+                .switchIfEmpty(Mono.fromSupplier(() -> createErrorResponse("Unexpected response format")))
+                .onErrorResume(IOException.class, e -> {
+                    log.error("Failed to parse analysis JSON: {}", e.getMessage());
+                    return Mono.just(createErrorResponse("Failed to parse analysis results"));
+                });
     }
 
-    private MultiFileAnalysisResponse.ArchitectureReview parseArchitectureReview(JsonNode archNode) {
-        List<String> strengths = new ArrayList<>();
-        List<String> concerns = new ArrayList<>();
-        List<String> recommendations = new ArrayList<>();
-
-        if (archNode.path("strengths").isArray()) {
-            for (JsonNode s : archNode.path("strengths")) strengths.add(s.asText());
-        }
-        if (archNode.path("concerns").isArray()) {
-            for (JsonNode c : archNode.path("concerns")) concerns.add(c.asText());
-        }
-        if (archNode.path("recommendations").isArray()) {
-            for (JsonNode r : archNode.path("recommendations")) recommendations.add(r.asText());
-        }
-
-        return MultiFileAnalysisResponse.ArchitectureReview.builder()
-                .overview(archNode.path("overview").asText())
-                .strengths(strengths)
-                .concerns(concerns)
-                .recommendations(recommendations)
-                .build();
+    /**
+     * Fills in the server-side fields and replaces missing parts of the model output with empty ones.
+     */
+    private MultiFileAnalysisResponse complete(MultiFileAnalysisResponse response, int fileCount) {
+        List<FileFinding> fileFindings = nonNull(response.getFileFindings());
+        fileFindings.forEach(MultiFileAnalysisService::complete);
+        List<CrossFileIssue> crossFileIssues = nonNull(response.getCrossFileIssues());
+        crossFileIssues.forEach(issue -> issue.setAffectedFiles(nonNull(issue.getAffectedFiles())));
+
+        MultiFileAnalysisResponse.ArchitectureReview archReview = Objects.requireNonNullElseGet(
+                response.getArchitectureReview(), MultiFileAnalysisResponse.ArchitectureReview::new);
+        archReview.setOverview(Objects.requireNonNullElse(archReview.getOverview(), ""));
+        archReview.setStrengths(nonNull(archReview.getStrengths()));
+        archReview.setConcerns(nonNull(archReview.getConcerns()));
+        archReview.setRecommendations(nonNull(archReview.getRecommendations()));
+
+        int totalFindings = fileFindings.stream()
+                .mapToInt(ff -> ff.getFindings().size())
+                .sum() + crossFileIssues.size();
+
+        response.setId(UUID.randomUUID().toString());
+        response.setSummary(Objects.requireNonNullElse(response.getSummary(), ""));
+        response.setFileFindings(fileFindings);
+        response.setCrossFileIssues(crossFileIssues);
+        response.setArchitectureReview(archReview);
+        response.setAnalyzedAt(System.currentTimeMillis());
+        response.setTotalFiles(fileCount);
+        response.setTotalFindings(totalFindings);
+        return response;
     }
 
-    private String extractJson(String text) {
-        String cleaned = text.trim();
-        if (cleaned.startsWith("```json")) {
-            cleaned = cleaned.substring(7);
-        } else if (cleaned.startsWith("```")) {
-            cleaned = cleaned.substring(3);
-        }
-        if (cleaned.endsWith("```")) {
-            cleaned = cleaned.substring(0, cleaned.length() - 3);
-        }
-        return cleaned.trim();
+    private static FileFinding complete(FileFinding fileFinding) {
+        fileFinding.setFindings(nonNull(fileFinding.getFindings()));
+        fileFinding.getFindings().stream()
+                .filter(finding -> finding.getSeverity() == null)
+                .forEach(finding -> finding.setSeverity(Severity.SUGGESTION));
+        return fileFinding;
     }
 
-    private Severity parseSeverity(String value) {
-        return switch (value.toLowerCase()) {
-            case "critical" -> Severity.CRITICAL;
-            case "warning" -> Severity.WARNING;
-            default -> Severity.SUGGESTION;
-        };
+    private static <T> List<T> nonNull(List<T> list) {
+        return list == null ? List.of() : list.stream().filter(Objects::nonNull).toList();
     }
 
     private MultiFileAnalysisResponse createErrorResponse(String message) {
         return MultiFileAnalysisResponse.builder()
                 .id(UUID.randomUUID().toString())
                 .overallScore(0)
-                .summary("Analysis failed: " + message)
+                .summary(FAILURE_PREFIX + message)
                 .fileFindings(List.of())
                 .crossFileIssues(List.of())
                 .architectureReview(MultiFileAnalysisResponse.ArchitectureReview.builder()
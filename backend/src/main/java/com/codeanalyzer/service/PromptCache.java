@@ -0,0 +1,98 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upstream prompt caching for the large, static system prompts.
+ * <p>
+ * A {@link SystemPrompt} is sent as text blocks; each cacheable part ends with a
+ * {@code cache_control} breakpoint, so it and everything before it (tools included) is
+ * cached as a prefix. The suffix holds what varies per call (persona, mode) and comes last,
+ * keeping the prefix identical across callers. Prefixes under the model's minimum cacheable
+ * length are simply not cached by the API.
+ * <p>
+ * Cache reads and writes from {@code usage} are counted; {@code claude.prompt.cache.hit.ratio}
+ * is the share of input tokens served from the cache.
+ */
+@Component
+public class PromptCache implements MeterBinder {
+
+    private static final int MAX_BREAKPOINTS = 3; // the API allows 4, one is left for tools
+
+    /**
+     * @param cacheableParts static parts, most widely shared first; each one becomes a cache breakpoint
+     * @param suffix         the uncached remainder
+     */
+    public record SystemPrompt(List<String> cacheableParts, String suffix) {
+
+        /** The whole prompt as one string, e.g. for result cache keys. */
+        public String text() {
+            return String.join("", cacheableParts) + suffix;
+        }
+    }
+
+    private final ClaudeConfig.PromptCaching config;
+    private final Counter readTokens;
+    private final Counter writeTokens;
+    private final Counter uncachedTokens;
+    private final AtomicLong readTotal = new AtomicLong();
+    private final AtomicLong inputTotal = new AtomicLong();
+
+    public PromptCache(ClaudeConfig claudeConfig, MeterRegistry meterRegistry) {
+        this.config = claudeConfig.getPromptCaching();
+        this.readTokens = meterRegistry.counter("claude.prompt.cache.read.tokens");
+        this.writeTokens = meterRegistry.counter("claude.prompt.cache.write.tokens");
+        this.uncachedTokens = meterRegistry.counter("claude.prompt.cache.uncached.tokens");
+    }
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        Gauge.builder("claude.prompt.cache.hit.ratio", this, PromptCache::hitRatio)
+                .description("Share of input tokens read from the prompt cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The {@code system} request value: text blocks with cache breakpoints, or a plain string when caching is off.
+     */
+    public Object system(SystemPrompt prompt) {
+        if (!config.isEnabled()) {
+            return prompt.text();
+        }
+        List<Map<String, Object>> blocks = new ArrayList<>();
+        List<String> parts = prompt.cacheableParts().stream().filter(part -> !part.isBlank()).toList();
+        for (int i = 0; i < parts.size(); i++) {
+            // Only the last parts get breakpoints if there are too many; earlier ones are still covered by the prefix
+            blocks.add(i >= parts.size() - MAX_BREAKPOINTS
+                    ? Map.of("type", "text", "text", parts.get(i), "cache_control", Map.of("type", "ephemeral"))
+                    : Map.of("type", "text", "text", parts.get(i)));
+        }
+        if (!prompt.suffix().isBlank()) {
+            blocks.add(Map.of("type", "text", "text", prompt.suffix()));
+        }
+        return blocks;
+    }
+
+    public void record(ClaudeResponseReader.Usage usage) {
+        readTokens.increment(usage.cacheReadInputTokens());
+        writeTokens.increment(usage.cacheCreationInputTokens());
+        uncachedTokens.increment(usage.inputTokens());
+        readTotal.addAndGet(usage.cacheReadInputTokens());
+        inputTotal.addAndGet((long) usage.inputTokens() + usage.cacheCreationInputTokens() + usage.cacheReadInputTokens());
+    }
+
+    private double hitRatio() {
+        long input = inputTotal.get();
+        return input == 0 ? 0 : (double) readTotal.get() / input;
+    }
+}
@@ -0,0 +1,222 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.PromptCompressionConfig;
+import com.codeanalyzer.model.Language;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Shrinks code before it goes into a prompt: comments (license headers included), blank lines
+ * and trailing whitespace are dropped, and indentation becomes one space per level. Strings,
+ * text blocks and template literals are kept exactly as written. Python keeps its indentation
+ * structure and its docstrings, which are values rather than comments.
+ * <p>
+ * The model then reports lines of the compressed code; the returned {@link LineMap} translates
+ * them back to the code the user submitted.
+ */
+@Component
+@RequiredArgsConstructor
+public class PromptCompressor {
+
+    /**
+     * Tells the model why the code has no comments, so it does not report that as an issue.
+     */
+    public static final String NOTE =
+            "Comments and blank lines were removed from this code; do not report missing comments or documentation.\n\n";
+
+    private static final int TAB_WIDTH = 4;
+
+    private final PromptCompressionConfig config;
+    private final MeterRegistry meterRegistry;
+
+    public record Compressed(String code, LineMap lineMap) {
+
+        public boolean stripped() {
+            return !lineMap.isIdentity();
+        }
+    }
+
+    /**
+     * @return the code unchanged (with {@link LineMap#IDENTITY}) when compression is off or the language isn't supported
+     */
+    public Compressed compress(String code, String language) {
+        Language supported = supported(language);
+        if (!config.isEnabled() || supported == null || code == null || !config.getLanguages().contains(supported)) {
+            return new Compressed(code, LineMap.IDENTITY);
+        }
+        Compressed compressed = new Stripper(supported).strip(code);
+        meterRegistry.summary("analysis.prompt.compression.ratio", "language", supported.getValue())
+                .record((double) compressed.code().length() / Math.max(1, code.length()));
+        return compressed;
+    }
+
+    private static Language supported(String language) {
+        for (Language candidate : Language.values()) {
+            if (candidate.getValue().equalsIgnoreCase(language)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Line-by-line lexer that only knows enough syntax to tell comments from strings. Not thread-safe; one per call.
+     */
+    private static final class Stripper {
+        private final boolean python;
+        private final boolean java;
+        private final boolean javascript; // or TypeScript: template literals, and regex literals that may contain "//"
+        private final Deque<Integer> indents = new ArrayDeque<>();
+        private String openString; // delimiter of a string that continues on the next line
+        private boolean inBlockComment;
+
+        Stripper(Language language) {
+            this.python = language == Language.PYTHON;
+            this.java = language == Language.JAVA;
+            this.javascript = language == Language.JAVASCRIPT || language == Language.TYPESCRIPT;
+        }
+
+        Compressed strip(String code) {
+            String[] lines = code.replace("\r\n", "\n").split("\n", -1);
+            StringBuilder out = new StringBuilder(code.length());
+            int[] original = new int[lines.length];
+            int kept = 0;
+            for (int i = 0; i < lines.length; i++) {
+                boolean continuesString = openString != null;
+                String text = stripLine(lines[i]);
+                if (text == null) {
+                    continue;
+                }
+                if (kept > 0) {
+                    out.append('\n');
+                }
+                // Inside a multi-line string the whitespace is part of the value
+                out.append(continuesString ? text : reindent(text));
+                original[kept++] = i + 1;
+            }
+            return new Compressed(out.toString(), new LineMap(Arrays.copyOf(original, kept)));
+        }
+
+        /**
+         * @return the line without comments, or null when nothing but whitespace and comments is left
+         */
+        private String stripLine(String line) {
+            StringBuilder code = new StringBuilder(line.length());
+            boolean hasCode = openString != null;
+            boolean slash = false; // outside strings, so possibly a division or regex literal
+            int length = line.length();
+            int i = 0;
+            while (i < length) {
+                if (inBlockComment) {
+                    int end = line.indexOf("*/", i);
+                    if (end < 0) {
+                        break;
+                    }
+                    inBlockComment = false;
+                    i = end + 2;
+                    if (!code.isEmpty() && !Character.isWhitespace(code.charAt(code.length() - 1))) {
+                        code.append(' '); // keeps the tokens on both sides apart
+                    }
+                    continue;
+                }
+                if (openString != null) {
+                    int end = closingQuote(line, i, openString);
+                    int stop = end < 0 ? length : end + openString.length();
+                    code.append(line, i, stop);
+                    i = stop;
+                    if (end >= 0) {
+                        openString = null;
+                    }
+                    continue;
+                }
+                char c = line.charAt(i);
+                if (python && c == '#') {
+                    break;
+                }
+                if (!python && line.startsWith("//", i)) {
+                    if (javascript && slash) {
+                        // Possibly inside a regex literal, which this lexer doesn't track
+                        code.append(line, i, length);
+                        hasCode = true;
+                    }
+                    break;
+                }
+                if (!python && line.startsWith("/*", i)) {
+                    inBlockComment = true;
+                    i += 2;
+                    continue;
+                }
+                String multiLine = multiLineQuote(line, i);
+                if (multiLine != null) {
+                    openString = multiLine;
+                    code.append(multiLine);
+                    i += multiLine.length();
+                    hasCode = true;
+                    continue;
+                }
+                if (c == '"' || c == '\'') {
+                    int end = closingQuote(line, i + 1, String.valueOf(c));
+                    int stop = end < 0 ? length : end + 1;
+                    code.append(line, i, stop);
+                    i = stop;
+                    hasCode = true;
+                    continue;
+                }
+                hasCode |= !Character.isWhitespace(c);
+                slash |= c == '/';
+                code.append(c);
+                i++;
+            }
+            if (!hasCode) {
+                return null;
+            }
+            return openString != null ? code.toString() : code.toString().stripTrailing();
+        }
+
+        private String multiLineQuote(String line, int i) {
+            if ((python || java) && line.startsWith("\"\"\"", i)) {
+                return "\"\"\"";
+            }
+            if (python && line.startsWith("'''", i)) {
+                return "'''";
+            }
+            return javascript && line.charAt(i) == '`' ? "`" : null;
+        }
+
+        private static int closingQuote(String line, int from, String quote) {
+            for (int i = from; i < line.length(); i++) {
+                if (line.charAt(i) == '\\') {
+                    i++;
+                } else if (line.startsWith(quote, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * One space per indentation level. Levels come from a stack of indentation widths, so
+         * Python blocks keep their structure whatever the original indent unit was.
+         */
+        private String reindent(String text) {
+            int width = 0;
+            int start = 0;
+            while (start < text.length() && (text.charAt(start) == ' ' || text.charAt(start) == '\t')) {
+                width = text.charAt(start) == '\t' ? (width / TAB_WIDTH + 1) * TAB_WIDTH : width + 1;
+                start++;
+            }
+            while (!indents.isEmpty() && indents.peek() > width) {
+                indents.pop();
+            }
+            if (indents.isEmpty() || indents.peek() < width) {
+                indents.push(width);
+            }
+            return " ".repeat(indents.size() - 1) + text.substring(start);
+        }
+    }
+}
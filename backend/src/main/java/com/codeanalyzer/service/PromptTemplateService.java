@@ -3,6 +3,8 @@ package com.codeanalyzer.service;
 import com.codeanalyzer.model.Persona;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+
 @Service
 public class PromptTemplateService {
 
@@ -78,8 +80,7 @@ public class PromptTemplateService {
                     "explanation": "<detailed explanation of the problem>",
                     "suggestion": "<how to fix it with code example if applicable>"
                 }
-            ],
-            "improvedCode": "<the complete improved version of the code>"
+            ]
         }
 
         Severity guidelines:
@@ -95,21 +96,27 @@ public class PromptTemplateService {
         - 81-100: Critical problems, should not go to production
         """;
 
-    public String getSystemPrompt(Persona persona) {
+    /**
+     * The response format comes before the persona, so the cached prefix is shared by all personas.
+     */
+    public PromptCache.SystemPrompt getSystemPrompt(Persona persona) {
         String basePrompt = switch (persona) {
             case BRUTAL -> BRUTAL_SENIOR_SYSTEM;
             case MENTOR -> CONSTRUCTIVE_MENTOR_SYSTEM;
             case EDGE_HUNTER -> EDGE_CASE_HUNTER_SYSTEM;
         };
-        return basePrompt + RESPONSE_FORMAT;
+        return new PromptCache.SystemPrompt(List.of(RESPONSE_FORMAT.stripLeading(), "\n" + basePrompt), "");
     }
 
-    public String buildUserPrompt(String code, String language, String context) {
+    public String buildUserPrompt(PromptCompressor.Compressed code, String language, String context) {
         StringBuilder prompt = new StringBuilder();
         prompt.append("Review this ").append(language.toUpperCase()).append(" code:\n\n");
         prompt.append("```").append(language).append("\n");
-        prompt.append(code);
+        prompt.append(code.code());
         prompt.append("\n```\n\n");
+        if (code.stripped()) {
+            prompt.append(PromptCompressor.NOTE);
+        }
 
         if (context != null && !context.isBlank()) {
             prompt.append("Context from the developer: ").append(context).append("\n\n");
@@ -0,0 +1,22 @@
+package com.codeanalyzer.service;
+
+import lombok.Getter;
+
+/**
+ * The prompt leaves too little of the context window for an answer, so it is refused before
+ * being sent. Surfaced to clients as 400 with the estimate and the limit.
+ */
+@Getter
+public class PromptTooLargeException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int estimatedInputTokens;
+    private final int maxInputTokens;
+
+    public PromptTooLargeException(int estimatedInputTokens, int maxInputTokens) {
+        super("Input too large: about " + estimatedInputTokens + " tokens, at most " + maxInputTokens + " fit");
+        this.estimatedInputTokens = estimatedInputTokens;
+        this.maxInputTokens = maxInputTokens;
+    }
+}
@@ -0,0 +1,51 @@
+package com.codeanalyzer.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical in-flight calls: while a call for a key is running, later callers
+ * subscribe to the same upstream Mono instead of starting their own.
+ * <p>
+ * The shared Mono is built with {@code cache()}, so a subscriber that cancels (client
+ * disconnect) only detaches itself - the upstream call keeps running for the others.
+ */
+@Component
+@Slf4j
+public class SingleFlight {
+
+    private final Map<String, Mono<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> execute(String key, Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            boolean[] created = {false};
+            Mono<T> shared = (Mono<T>) inFlight.computeIfAbsent(key, k -> {
+                created[0] = true;
+                return Mono.defer(call)
+                        .doFinally(signal -> inFlight.remove(k))
+                        .cache();
+            });
+            if (!created[0]) {
+                coalesced.incrementAndGet();
+                log.debug("Joined in-flight call for {}", key);
+            }
+            return shared;
+        });
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public long coalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,116 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.OutputModeConfig;
+import com.codeanalyzer.model.OutputMode;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies the configured output mode of an endpoint to its requests.
+ * <p>
+ * In {@link OutputMode#TOOL} mode the response schema ({@code schemas/<name>.json} on the
+ * classpath) is declared as the only tool and forced with {@code tool_choice}, so the answer
+ * arrives as already-structured tool input instead of JSON written into text.
+ */
+@Component
+public class StructuredOutput {
+
+    public static final String TOOL_NAME = "submit_analysis";
+
+    private static final String TOOL_INSTRUCTION =
+            "\n\nSubmit your answer by calling the " + TOOL_NAME + " tool; its input schema defines the response format.";
+
+    private final OutputModeConfig config;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Map<String, Object>> schemas = new ConcurrentHashMap<>();
+
+    public StructuredOutput(OutputModeConfig config, ObjectMapper objectMapper) {
+        this.config = config;
+        this.objectMapper = objectMapper;
+    }
+
+    public OutputMode modeFor(String endpoint) {
+        return config.modeFor(endpoint);
+    }
+
+    /**
+     * Whether the endpoint asks for its compact wire format (short keys, numeric enums).
+     */
+    public boolean isCompact(String endpoint) {
+        return config.getCompactEndpoints().contains(endpoint);
+    }
+
+    /**
+     * The system prompt to use for the endpoint; tool mode points the model at the tool.
+     */
+    public String systemPrompt(String endpoint, String systemPrompt) {
+        return modeFor(endpoint) == OutputMode.TOOL ? systemPrompt + TOOL_INSTRUCTION : systemPrompt;
+    }
+
+    /**
+     * Same as {@link #systemPrompt(String, String)}; the instruction goes into the uncached suffix.
+     */
+    public PromptCache.SystemPrompt systemPrompt(String endpoint, PromptCache.SystemPrompt systemPrompt) {
+        return new PromptCache.SystemPrompt(systemPrompt.cacheableParts(), systemPrompt(endpoint, systemPrompt.suffix()));
+    }
+
+    /**
+     * Adds the forced tool to the request when the endpoint runs in tool mode.
+     */
+    public Map<String, Object> apply(String endpoint, String schema, Map<String, Object> request) {
+        return apply(endpoint, schema, null, request);
+    }
+
+    /**
+     * Like {@link #apply(String, String, Map)}, with the schema cut down to the given
+     * top-level properties; {@code null} keeps all of them.
+     */
+    public Map<String, Object> apply(String endpoint, String schema, Collection<String> properties,
+                                     Map<String, Object> request) {
+        if (modeFor(endpoint) == OutputMode.TOOL) {
+            request.put("tools", List.of(Map.of(
+                    "name", TOOL_NAME,
+                    "description", "Submit the completed analysis.",
+                    "input_schema", properties == null ? schema(schema) : project(schema(schema), properties))));
+            request.put("tool_choice", Map.of("type", "tool", "name", TOOL_NAME));
+        }
+        return request;
+    }
+
+    public static OutputMode modeOf(Map<String, Object> request) {
+        return request.containsKey("tools") ? OutputMode.TOOL : OutputMode.JSON;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> project(Map<String, Object> schema, Collection<String> properties) {
+        Map<String, Object> projected = new LinkedHashMap<>(schema);
+        Map<String, Object> kept = new LinkedHashMap<>((Map<String, Object>) schema.get("properties"));
+        kept.keySet().retainAll(properties);
+        projected.put("properties", kept);
+        if (schema.get("required") instanceof List<?> required) {
+            projected.put("required", required.stream().filter(properties::contains).toList());
+        }
+        return projected;
+    }
+
+    private Map<String, Object> schema(String name) {
+        return schemas.computeIfAbsent(name, key -> {
+            try (InputStream in = new ClassPathResource("schemas/" + key + ".json").getInputStream()) {
+                return objectMapper.readValue(in, new TypeReference<Map<String, Object>>() {});
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot load output schema " + key, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,227 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.dto.TokenEstimate;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses max_tokens per request and refuses requests that cannot fit the context window.
+ * <p>
+ * Input size comes from {@link TokenEstimator}; output size is learned from the calls already
+ * made for the same endpoint and variant (e.g. the section set of an enhanced analysis), which
+ * {@link UsageAccounting} reports back through the {@link Budget} in the Reactor context. The same
+ * samples predict latency and cost for {@code /estimate} before anything is sent.
+ */
+@Component
+public class TokenBudget {
+
+    private final ClaudeConfig.OutputSizing config;
+    private final ClaudeConfig.Pricing pricing;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+
+    public TokenBudget(ClaudeConfig claudeConfig, MeterRegistry meterRegistry) {
+        this.config = claudeConfig.getOutputSizing();
+        this.pricing = claudeConfig.getPricing();
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * What one request was sized with; attach it to the chain that sends the request so the outcome is learned from.
+     */
+    public record Budget(String endpoint, String key, int inputTokens, int maxTokens) {
+
+        public Context attach(Context context) {
+            return context.put(Budget.class, this);
+        }
+    }
+
+    private record Plan(String key, int inputTokens, int maxTokens, boolean fits) {
+    }
+
+    /**
+     * Sets max_tokens on the request.
+     *
+     * @param variant what else drives the output size besides the endpoint, or null
+     * @throws PromptTooLargeException when the input leaves less than {@code minOutputTokens} of the context window
+     */
+    public Budget size(String endpoint, String variant, Map<String, Object> request, int defaultMaxTokens) {
+        return size(endpoint, variant, request, defaultMaxTokens, 0);
+    }
+
+    /**
+     * @param minMaxTokens lower bound for max_tokens when the output size is known to follow the input
+     */
+    public Budget size(String endpoint, String variant, Map<String, Object> request, int defaultMaxTokens,
+                       int minMaxTokens) {
+        Plan plan = plan(endpoint, variant, request, defaultMaxTokens, minMaxTokens);
+        if (!plan.fits()) {
+            meterRegistry.counter("claude.token.budget.refused", "endpoint", endpoint).increment();
+            throw new PromptTooLargeException(plan.inputTokens(), maxInputTokens());
+        }
+        request.put("max_tokens", plan.maxTokens());
+        return new Budget(endpoint, plan.key(), plan.inputTokens(), plan.maxTokens());
+    }
+
+    /**
+     * Predicts a request without sending or refusing it.
+     */
+    public TokenEstimate estimate(String endpoint, String variant, Map<String, Object> request, int defaultMaxTokens) {
+        Plan plan = plan(endpoint, variant, request, defaultMaxTokens, 0);
+        Samples learned = samples.get(plan.key());
+        OptionalInt expectedOutput = learned == null ? OptionalInt.empty() : learned.percentile(0.5, config.getMinSamples());
+        OptionalLong expectedLatency = expectedOutput.isPresent()
+                ? learned.latencyAt(expectedOutput.getAsInt(), config.getMinSamples()) : OptionalLong.empty();
+        return TokenEstimate.builder()
+                .calls(1)
+                .inputTokens(plan.inputTokens())
+                .maxTokens(plan.maxTokens())
+                .fits(plan.fits())
+                .expectedOutputTokens(expectedOutput.isPresent()
+                        ? Math.min(expectedOutput.getAsInt(), plan.maxTokens()) : null)
+                .expectedLatencyMillis(expectedLatency.isPresent() ? expectedLatency.getAsLong() : null)
+                .expectedCostUsd(expectedOutput.isPresent()
+                        ? cost(plan.inputTokens(), Math.min(expectedOutput.getAsInt(), plan.maxTokens())) : null)
+                .maxCostUsd(cost(plan.inputTokens(), plan.maxTokens()))
+                .build();
+    }
+
+    /**
+     * Estimates of calls sent in parallel: tokens and cost add up, latency is the slowest call's.
+     */
+    public static TokenEstimate parallel(List<TokenEstimate> estimates) {
+        if (estimates.size() == 1) {
+            return estimates.get(0);
+        }
+        boolean known = estimates.stream().allMatch(estimate -> estimate.getExpectedOutputTokens() != null);
+        boolean latencyKnown = estimates.stream().allMatch(estimate -> estimate.getExpectedLatencyMillis() != null);
+        return TokenEstimate.builder()
+                .calls(estimates.stream().mapToInt(TokenEstimate::getCalls).sum())
+                .inputTokens(estimates.stream().mapToInt(TokenEstimate::getInputTokens).sum())
+                .maxTokens(estimates.stream().mapToInt(TokenEstimate::getMaxTokens).sum())
+                .fits(estimates.stream().allMatch(TokenEstimate::isFits))
+                .expectedOutputTokens(known
+                        ? estimates.stream().mapToInt(TokenEstimate::getExpectedOutputTokens).sum() : null)
+                .expectedLatencyMillis(latencyKnown
+                        ? estimates.stream().mapToLong(TokenEstimate::getExpectedLatencyMillis).max().orElse(0) : null)
+                .expectedCostUsd(known
+                        ? estimates.stream().mapToDouble(TokenEstimate::getExpectedCostUsd).sum() : null)
+                .maxCostUsd(estimates.stream().mapToDouble(TokenEstimate::getMaxCostUsd).sum())
+                .build();
+    }
+
+    /**
+     * Learns from a finished call. Truncated calls only say the output needed more than
+     * max_tokens, so they count as needing twice as much; cancelled calls teach nothing.
+     */
+    void observe(Budget budget, ClaudeResponseReader.Usage usage, String stopReason, Duration latency) {
+        if (stopReason == null || "cancelled".equals(stopReason)) {
+            return;
+        }
+        long actualInput = usage.inputTokens() + usage.cacheReadInputTokens() + usage.cacheCreationInputTokens();
+        if (budget.inputTokens() > 0 && actualInput > 0) {
+            meterRegistry.summary("claude.token.estimate.ratio", "endpoint", budget.endpoint())
+                    .record((double) actualInput / budget.inputTokens());
+        }
+        int outputTokens = "max_tokens".equals(stopReason)
+                ? Math.min(config.getMaxOutputTokens(), 2 * budget.maxTokens())
+                : usage.outputTokens();
+        samples.computeIfAbsent(budget.key(), key -> new Samples(config.getSampleWindow()))
+                .add(outputTokens, latency.toMillis());
+    }
+
+    private Plan plan(String endpoint, String variant, Map<String, Object> request, int defaultMaxTokens,
+                      int minMaxTokens) {
+        String key = variant == null ? endpoint : endpoint + "/" + variant;
+        int inputTokens = TokenEstimator.estimateRequest(request);
+        int ceiling = Math.min(config.getMaxOutputTokens(), config.getContextWindow() - inputTokens);
+
+        int wanted = defaultMaxTokens;
+        Samples learned = samples.get(key);
+        if (config.isEnabled() && learned != null) {
+            OptionalInt percentile = learned.percentile(config.getPercentile(), config.getMinSamples());
+            if (percentile.isPresent()) {
+                wanted = Math.max(config.getMinOutputTokens(), (int) Math.ceil(percentile.getAsInt() * config.getHeadroom()));
+            }
+        }
+        wanted = Math.max(wanted, minMaxTokens);
+        return new Plan(key, inputTokens, Math.max(0, Math.min(wanted, ceiling)),
+                ceiling >= config.getMinOutputTokens());
+    }
+
+    private int maxInputTokens() {
+        return config.getContextWindow() - config.getMinOutputTokens();
+    }
+
+    private double cost(long inputTokens, long outputTokens) {
+        return (inputTokens * pricing.getInputPerMillion() + outputTokens * pricing.getOutputPerMillion()) / 1_000_000;
+    }
+
+    /**
+     * Ring buffer of (output tokens, latency) for one endpoint and variant.
+     */
+    private static final class Samples {
+        private final int[] outputTokens;
+        private final long[] latencyMillis;
+        private int index;
+        private int count;
+
+        Samples(int window) {
+            this.outputTokens = new int[window];
+            this.latencyMillis = new long[window];
+        }
+
+        synchronized void add(int output, long latency) {
+            outputTokens[index] = output;
+            latencyMillis[index] = latency;
+            index = (index + 1) % outputTokens.length;
+            count = Math.min(outputTokens.length, count + 1);
+        }
+
+        synchronized OptionalInt percentile(double percentile, int minSamples) {
+            if (count < Math.max(1, minSamples)) {
+                return OptionalInt.empty();
+            }
+            int[] sorted = Arrays.copyOf(outputTokens, count);
+            Arrays.sort(sorted);
+            int position = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+            return OptionalInt.of(sorted[Math.max(0, position)]);
+        }
+
+        /**
+         * Least-squares fit of latency against output tokens (a fixed part plus a per-token part).
+         */
+        synchronized OptionalLong latencyAt(int output, int minSamples) {
+            if (count < Math.max(1, minSamples)) {
+                return OptionalLong.empty();
+            }
+            double meanOutput = 0;
+            double meanLatency = 0;
+            for (int i = 0; i < count; i++) {
+                meanOutput += outputTokens[i];
+                meanLatency += latencyMillis[i];
+            }
+            meanOutput /= count;
+            meanLatency /= count;
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < count; i++) {
+                covariance += (outputTokens[i] - meanOutput) * (latencyMillis[i] - meanLatency);
+                variance += (outputTokens[i] - meanOutput) * (outputTokens[i] - meanOutput);
+            }
+            double perToken = variance == 0 ? 0 : Math.max(0, covariance / variance);
+            double predicted = meanLatency + perToken * (output - meanOutput);
+            return OptionalLong.of(Math.max(0, Math.round(predicted)));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.codeanalyzer.service;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Fast local estimate of how many tokens a Messages API request takes, without a tokenizer.
+ * <p>
+ * Runs of ASCII letters and digits count one token per started four characters, other ASCII
+ * symbols and non-ASCII characters one each, and whitespace one per run unless it is a single
+ * space (which the tokenizer merges into the next word). Real tokenizers merge more than that,
+ * so for source code the estimate errs on the high side, which is the safe side for sizing.
+ */
+final class TokenEstimator {
+
+    private static final int PER_MESSAGE_OVERHEAD = 4;
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * Estimates every text in the request body: system prompt, messages and tool definitions.
+     */
+    static int estimateRequest(Map<String, Object> request) {
+        int tokens = 0;
+        for (Map.Entry<String, Object> entry : request.entrySet()) {
+            if (!"model".equals(entry.getKey())) {
+                tokens += estimateValue(entry.getValue());
+            }
+        }
+        return tokens;
+    }
+
+    private static int estimateValue(Object value) {
+        if (value instanceof CharSequence text) {
+            return estimate(text);
+        }
+        if (value instanceof Map<?, ?> map) {
+            int tokens = PER_MESSAGE_OVERHEAD;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                tokens += estimate(String.valueOf(entry.getKey())) + estimateValue(entry.getValue());
+            }
+            return tokens;
+        }
+        if (value instanceof Collection<?> values) {
+            return values.stream().mapToInt(TokenEstimator::estimateValue).sum();
+        }
+        return value == null ? 0 : 1;
+    }
+
+    static int estimate(CharSequence text) {
+        int tokens = 0;
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isWordChar(c)) {
+                int start = i;
+                while (i < length && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                tokens += (i - start + 3) / 4;
+            } else if (Character.isWhitespace(c)) {
+                int start = i;
+                boolean newline = false;
+                while (i < length && Character.isWhitespace(text.charAt(i))) {
+                    newline |= text.charAt(i) == '\n';
+                    i++;
+                }
+                if (newline || i - start > 1) {
+                    tokens++;
+                }
+            } else {
+                tokens++;
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c < 128 && (Character.isLetterOrDigit(c) || c == '_');
+    }
+}
@@ -0,0 +1,318 @@
+package com.codeanalyzer.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Line-based unified diff (Myers' O(ND) algorithm, 3 lines of context), and a parser for
+ * unified diffs such as {@code git diff} output.
+ * <p>
+ * Common leading and trailing lines are skipped before diffing. If the remaining middle
+ * needs more than {@link #MAX_EDIT_DISTANCE} edits, it is reported as one replaced block
+ * instead of running out of memory on the edit trace.
+ */
+final class UnifiedDiff {
+
+    private static final int CONTEXT = 3;
+    private static final int MAX_EDIT_DISTANCE = 2000;
+    private static final Pattern HUNK_HEADER = Pattern.compile("@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@");
+
+    private enum Kind {
+        KEEP,
+        DELETE,
+        INSERT
+    }
+
+    private record Op(Kind kind, String line) {
+    }
+
+    record Result(String text, int linesAdded, int linesRemoved) {
+    }
+
+    /**
+     * One file of a parsed diff. {@code newPath} is null for a deleted file.
+     */
+    record FilePatch(String oldPath, String newPath, List<Hunk> hunks) {
+    }
+
+    /**
+     * A hunk's lines; {@code newLine} is the post-image line number of a context or added line,
+     * and for a removed line the number of the post-image line that now follows it.
+     */
+    record Hunk(List<HunkLine> lines) {
+    }
+
+    record HunkLine(char kind, String text, int newLine) {
+    }
+
+    private UnifiedDiff() {
+    }
+
+    /**
+     * @param partial the revised text stops early (e.g. generation was cut off); the original lines
+     *                after its end are treated as unchanged rather than deleted
+     */
+    static Result diff(String original, String revised, String originalLabel, String revisedLabel,
+                       boolean partial) {
+        List<String> a = lines(original);
+        List<String> b = lines(revised);
+
+        int prefix = 0;
+        while (prefix < a.size() && prefix < b.size() && a.get(prefix).equals(b.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (!partial && suffix < a.size() - prefix && suffix < b.size() - prefix
+                && a.get(a.size() - 1 - suffix).equals(b.get(b.size() - 1 - suffix))) {
+            suffix++;
+        }
+
+        List<Op> ops = new ArrayList<>();
+        a.subList(0, prefix).forEach(line -> ops.add(new Op(Kind.KEEP, line)));
+        ops.addAll(editScript(a.subList(prefix, a.size() - suffix), b.subList(prefix, b.size() - suffix)));
+        a.subList(a.size() - suffix, a.size()).forEach(line -> ops.add(new Op(Kind.KEEP, line)));
+
+        if (partial) {
+            while (!ops.isEmpty() && ops.get(ops.size() - 1).kind() == Kind.DELETE) {
+                ops.remove(ops.size() - 1);
+            }
+        }
+        return format(ops, originalLabel, revisedLabel);
+    }
+
+    /**
+     * Parses a unified diff of one or more files. Headers other than {@code ---}/{@code +++} and
+     * hunk headers (e.g. {@code diff --git}, {@code index}) are skipped, as are files without hunks.
+     *
+     * @throws IllegalArgumentException when there is no hunk at all, or a hunk header is malformed
+     */
+    static List<FilePatch> parse(String diff) {
+        List<String> lines = lines(diff);
+        List<FilePatch> patches = new ArrayList<>();
+        String oldPath = null;
+        String newPath = null;
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        while (i < lines.size()) {
+            String line = lines.get(i);
+            if (line.startsWith("--- ") && i + 1 < lines.size() && lines.get(i + 1).startsWith("+++ ")) {
+                if (!hunks.isEmpty()) {
+                    patches.add(new FilePatch(oldPath, newPath, hunks));
+                    hunks = new ArrayList<>();
+                }
+                oldPath = path(line.substring(4));
+                newPath = path(lines.get(i + 1).substring(4));
+                i += 2;
+            } else if (line.startsWith("@@ ")) {
+                int[] header = hunkHeader(line);
+                List<HunkLine> hunkLines = new ArrayList<>();
+                int oldRemaining = header[1];
+                int newRemaining = header[3];
+                int newLine = header[3] == 0 ? header[2] + 1 : header[2];
+                i++;
+                while (i < lines.size() && (oldRemaining > 0 || newRemaining > 0)) {
+                    String body = lines.get(i);
+                    // Some tools strip the space of an empty context line
+                    char kind = body.isEmpty() ? ' ' : body.charAt(0);
+                    if (kind == '\\') {
+                        i++;
+                        continue;
+                    }
+                    if (kind != ' ' && kind != '+' && kind != '-') {
+                        break;
+                    }
+                    String text = body.isEmpty() ? "" : body.substring(1);
+                    hunkLines.add(new HunkLine(kind, text, newLine));
+                    if (kind != '+') {
+                        oldRemaining--;
+                    }
+                    if (kind != '-') {
+                        newRemaining--;
+                        newLine++;
+                    }
+                    i++;
+                }
+                hunks.add(new Hunk(hunkLines));
+            } else {
+                i++;
+            }
+        }
+        if (!hunks.isEmpty()) {
+            patches.add(new FilePatch(oldPath, newPath, hunks));
+        }
+        if (patches.isEmpty()) {
+            throw new IllegalArgumentException("Not a unified diff: no hunks found");
+        }
+        return patches;
+    }
+
+    /**
+     * Strips the {@code a/}/{@code b/} prefixes and any tab-separated timestamp; null for /dev/null.
+     */
+    private static String path(String header) {
+        String path = header.split("\t", 2)[0].strip();
+        if (path.equals("/dev/null")) {
+            return null;
+        }
+        return path.startsWith("a/") || path.startsWith("b/") ? path.substring(2) : path;
+    }
+
+    /**
+     * @return old start, old count, new start, new count
+     */
+    private static int[] hunkHeader(String line) {
+        Matcher matcher = HUNK_HEADER.matcher(line);
+        if (!matcher.lookingAt()) {
+            throw new IllegalArgumentException("Malformed hunk header: " + line);
+        }
+        return new int[]{
+                Integer.parseInt(matcher.group(1)),
+                matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2)),
+                Integer.parseInt(matcher.group(3)),
+                matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4))
+        };
+    }
+
+    private static List<String> lines(String text) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.asList(text.replace("\r\n", "\n").split("\n", -1));
+    }
+
+    private static List<Op> editScript(List<String> a, List<String> b) {
+        int n = a.size();
+        int m = b.size();
+        int max = n + m;
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        // trace.get(d) holds v[-d-1 .. d+1] as it was before round d
+        List<int[]> trace = new ArrayList<>();
+
+        for (int d = 0; d <= max; d++) {
+            if (d > MAX_EDIT_DISTANCE) {
+                return replaceAll(a, b);
+            }
+            trace.add(Arrays.copyOfRange(v, offset - d - 1, offset + d + 2));
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+                        ? v[offset + k + 1] : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a.get(x).equals(b.get(y))) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    return backtrack(a, b, trace);
+                }
+            }
+        }
+        return replaceAll(a, b);
+    }
+
+    private static List<Op> backtrack(List<String> a, List<String> b, List<int[]> trace) {
+        List<Op> reversed = new ArrayList<>();
+        int x = a.size();
+        int y = b.size();
+        for (int d = trace.size() - 1; d >= 0; d--) {
+            int[] v = trace.get(d);
+            int k = x - y;
+            int prevK = k == -d || (k != d && v[k - 1 + d + 1] < v[k + 1 + d + 1]) ? k + 1 : k - 1;
+            int prevX = v[prevK + d + 1];
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                reversed.add(new Op(Kind.KEEP, a.get(x - 1)));
+                x--;
+                y--;
+            }
+            if (d > 0) {
+                reversed.add(x == prevX ? new Op(Kind.INSERT, b.get(y - 1)) : new Op(Kind.DELETE, a.get(x - 1)));
+            }
+            x = prevX;
+            y = prevY;
+        }
+        List<Op> ops = new ArrayList<>(reversed.size());
+        for (int i = reversed.size() - 1; i >= 0; i--) {
+            ops.add(reversed.get(i));
+        }
+        return ops;
+    }
+
+    private static List<Op> replaceAll(List<String> a, List<String> b) {
+        List<Op> ops = new ArrayList<>(a.size() + b.size());
+        a.forEach(line -> ops.add(new Op(Kind.DELETE, line)));
+        b.forEach(line -> ops.add(new Op(Kind.INSERT, line)));
+        return ops;
+    }
+
+    private static Result format(List<Op> ops, String originalLabel, String revisedLabel) {
+        // Lines of each side before op i, for hunk headers
+        int[] oldLine = new int[ops.size() + 1];
+        int[] newLine = new int[ops.size() + 1];
+        int added = 0;
+        int removed = 0;
+        for (int i = 0; i < ops.size(); i++) {
+            Kind kind = ops.get(i).kind();
+            oldLine[i + 1] = oldLine[i] + (kind == Kind.INSERT ? 0 : 1);
+            newLine[i + 1] = newLine[i] + (kind == Kind.DELETE ? 0 : 1);
+            added += kind == Kind.INSERT ? 1 : 0;
+            removed += kind == Kind.DELETE ? 1 : 0;
+        }
+        if (added == 0 && removed == 0) {
+            return new Result("", 0, 0);
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("--- ").append(originalLabel).append('\n');
+        out.append("+++ ").append(revisedLabel).append('\n');
+
+        int i = 0;
+        while (i < ops.size()) {
+            if (ops.get(i).kind() == Kind.KEEP) {
+                i++;
+                continue;
+            }
+            int start = Math.max(0, i - CONTEXT);
+            int end = i;
+            // Extend the hunk while the next change is close enough to share context
+            while (true) {
+                while (end < ops.size() && ops.get(end).kind() != Kind.KEEP) {
+                    end++;
+                }
+                int next = end;
+                while (next < ops.size() && ops.get(next).kind() == Kind.KEEP) {
+                    next++;
+                }
+                if (next < ops.size() && next - end <= 2 * CONTEXT) {
+                    end = next;
+                } else {
+                    end = Math.min(ops.size(), end + CONTEXT);
+                    break;
+                }
+            }
+            appendHunk(out, ops, start, end, oldLine, newLine);
+            i = end;
+        }
+        return new Result(out.toString(), added, removed);
+    }
+
+    private static void appendHunk(StringBuilder out, List<Op> ops, int start, int end, int[] oldLine, int[] newLine) {
+        int oldCount = oldLine[end] - oldLine[start];
+        int newCount = newLine[end] - newLine[start];
+        out.append("@@ -").append(oldCount == 0 ? oldLine[start] : oldLine[start] + 1).append(',').append(oldCount)
+                .append(" +").append(newCount == 0 ? newLine[start] : newLine[start] + 1).append(',').append(newCount)
+                .append(" @@\n");
+        for (int i = start; i < end; i++) {
+            Op op = ops.get(i);
+            out.append(switch (op.kind()) {
+                case KEEP -> ' ';
+                case DELETE -> '-';
+                case INSERT -> '+';
+            }).append(op.line()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.netty.handler.timeout.ReadTimeoutException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Circuit breaker for upstream attempts.
+ * <p>
+ * CLOSED records outcomes in a count-based ring buffer and opens once at least
+ * {@code minimumCalls} were seen and the failure or slow-call rate crosses its threshold.
+ * OPEN rejects immediately with {@link CircuitOpenException}. After {@code openDuration}
+ * it goes HALF_OPEN and admits a few trial calls: all of them succeeding closes the
+ * circuit, any failure re-opens it.
+ * <p>
+ * Only upstream health counts as failure (5xx, 429, connection errors, timeouts);
+ * our own 4xx mistakes and cancellations are not recorded.
+ */
+@Component
+@Slf4j
+public class UpstreamCircuitBreaker implements MeterBinder {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private enum CallResult {
+        SUCCESS,
+        FAILURE,
+        SLOW_SUCCESS,
+        IGNORED
+    }
+
+    public record Snapshot(State state, int bufferedCalls, int failureRate, int slowCallRate) {
+    }
+
+    private final ClaudeConfig.CircuitBreaker config;
+
+    private State state = State.CLOSED;
+    private CallResult[] window;
+    private int windowIndex;
+    private int windowCount;
+    private long openedAtNanos;
+    private int halfOpenInFlight;
+    private int halfOpenSuccesses;
+
+    public UpstreamCircuitBreaker(ClaudeConfig claudeConfig) {
+        this.config = claudeConfig.getCircuitBreaker();
+        this.window = new CallResult[config.getSlidingWindowSize()];
+    }
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        Gauge.builder("claude.circuit.state", this, b -> b.snapshot().state().ordinal())
+                .description("0 = closed, 1 = open, 2 = half-open")
+                .register(meterRegistry);
+    }
+
+    public <T> Mono<T> protect(Mono<T> call, boolean measureSlowCalls) {
+        return Mono.defer(() -> {
+            acquirePermission();
+            long start = System.nanoTime();
+            return call
+                    .doOnSuccess(value -> record(successResult(start, measureSlowCalls)))
+                    .doOnError(error -> record(isFailure(error) ? CallResult.FAILURE : CallResult.IGNORED))
+                    .doOnCancel(() -> record(CallResult.IGNORED));
+        });
+    }
+
+    public <T> Flux<T> protect(Flux<T> call) {
+        return Flux.defer(() -> {
+            acquirePermission();
+            return call
+                    .doOnComplete(() -> record(CallResult.SUCCESS))
+                    .doOnError(error -> record(isFailure(error) ? CallResult.FAILURE : CallResult.IGNORED))
+                    .doOnCancel(() -> record(CallResult.IGNORED));
+        });
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(currentState(), windowCount, rate(CallResult.FAILURE), rate(CallResult.SLOW_SUCCESS));
+    }
+
+    private synchronized void acquirePermission() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        switch (currentState()) {
+            case OPEN -> throw new CircuitOpenException(remainingOpenTime());
+            case HALF_OPEN -> {
+                if (halfOpenInFlight + halfOpenSuccesses >= config.getHalfOpenPermittedCalls()) {
+                    throw new CircuitOpenException(Duration.ofSeconds(1));
+                }
+                halfOpenInFlight++;
+            }
+            case CLOSED -> { }
+        }
+    }
+
+    private synchronized void record(CallResult result) {
+        if (!config.isEnabled()) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            halfOpenInFlight = Math.max(0, halfOpenInFlight - 1);
+            switch (result) {
+                case FAILURE -> transitionTo(State.OPEN);
+                case SUCCESS, SLOW_SUCCESS -> {
+                    if (++halfOpenSuccesses >= config.getHalfOpenPermittedCalls()) {
+                        transitionTo(State.CLOSED);
+                    }
+                }
+                case IGNORED -> { }
+            }
+            return;
+        }
+        if (state != State.CLOSED || result == CallResult.IGNORED) {
+            return;
+        }
+
+        window[windowIndex] = result;
+        windowIndex = (windowIndex + 1) % window.length;
+        windowCount = Math.min(window.length, windowCount + 1);
+
+        if (windowCount >= config.getMinimumCalls()
+                && (rate(CallResult.FAILURE) >= config.getFailureRateThreshold()
+                || rate(CallResult.SLOW_SUCCESS) >= config.getSlowCallRateThreshold())) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private State currentState() {
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= config.getOpenDuration().toNanos()) {
+            transitionTo(State.HALF_OPEN);
+        }
+        return state;
+    }
+
+    private void transitionTo(State newState) {
+        log.warn("Upstream circuit breaker {} -> {} (failure rate {}%, slow-call rate {}%)",
+                state, newState, rate(CallResult.FAILURE), rate(CallResult.SLOW_SUCCESS));
+        state = newState;
+        halfOpenInFlight = 0;
+        halfOpenSuccesses = 0;
+        if (newState == State.OPEN) {
+            openedAtNanos = System.nanoTime();
+        }
+        if (newState == State.CLOSED) {
+            window = new CallResult[config.getSlidingWindowSize()];
+            windowIndex = 0;
+            windowCount = 0;
+        }
+    }
+
+    private int rate(CallResult result) {
+        if (windowCount == 0) {
+            return 0;
+        }
+        int matches = 0;
+        for (int i = 0; i < windowCount; i++) {
+            if (window[i] == result) {
+                matches++;
+            }
+        }
+        return matches * 100 / windowCount;
+    }
+
+    private Duration remainingOpenTime() {
+        long remaining = config.getOpenDuration().toNanos() - (System.nanoTime() - openedAtNanos);
+        return Duration.ofNanos(Math.max(remaining, Duration.ofSeconds(1).toNanos()));
+    }
+
+    private CallResult successResult(long startNanos, boolean measureSlowCalls) {
+        boolean slow = measureSlowCalls && System.nanoTime() - startNanos > config.getSlowCallDuration().toNanos();
+        return slow ? CallResult.SLOW_SUCCESS : CallResult.SUCCESS;
+    }
+
+    private static boolean isFailure(Throwable error) {
+        if (error instanceof WebClientResponseException responseException) {
+            int status = responseException.getStatusCode().value();
+            return status == 429 || status >= 500;
+        }
+        return UpstreamRetryPolicy.isRetryable(error)
+                || error instanceof TimeoutException
+                || error.getCause() instanceof TimeoutException
+                || error.getCause() instanceof ReadTimeoutException;
+    }
+}
@@ -0,0 +1,129 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides when to hedge an upstream call. Calls are hedged per class, one fixed class per
+ * hedged endpoint (e.g. {@code ci-quick}), so latencies within a class are comparable; the
+ * time-to-first-byte of each hedged attempt goes into its class's ring buffer, and the
+ * class's hedge delay is the configured percentile of it, clamped to
+ * [{@code minDelay}, {@code maxDelay}]. Unhedged calls are left out: a non-streamed response
+ * starts arriving only once it is fully generated, so long rewrites would drag the
+ * percentile up to {@code maxDelay}. Hedges are paid for from a token bucket credited per
+ * hedgeable request, the same scheme as the retry budget.
+ */
+@Component
+public class UpstreamHedgePolicy {
+
+    private final ClaudeConfig.Hedge config;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Samples> samples = new TreeMap<>();
+    private final Counter hedgeCounter;
+    private final Counter hedgeWonCounter;
+    private final Counter budgetExhaustedCounter;
+
+    private double budget;
+
+    public UpstreamHedgePolicy(ClaudeConfig claudeConfig, MeterRegistry meterRegistry) {
+        this.config = claudeConfig.getHedge();
+        this.meterRegistry = meterRegistry;
+        this.budget = config.getBudgetCapacity();
+        this.hedgeCounter = meterRegistry.counter("claude.hedge.sent");
+        this.hedgeWonCounter = meterRegistry.counter("claude.hedge.won");
+        this.budgetExhaustedCounter = meterRegistry.counter("claude.hedge.budget.exhausted");
+    }
+
+    public record Snapshot(boolean enabled, Map<String, ClassSnapshot> classes, double budget) {
+    }
+
+    public record ClassSnapshot(long delayMillis, int samples) {
+    }
+
+    /**
+     * Time-to-first-byte ring buffer of one hedge class.
+     */
+    private static class Samples {
+        final long[] values;
+        int index;
+        int count;
+
+        Samples(int window) {
+            this.values = new long[window];
+        }
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * Credits the hedge budget for one hedgeable request.
+     */
+    public synchronized void recordRequest() {
+        budget = Math.min(config.getBudgetCapacity(), budget + config.getBudgetRatio());
+    }
+
+    public synchronized void recordFirstByte(String hedgeClass, long nanos) {
+        Samples window = samples.computeIfAbsent(hedgeClass, this::newSamples);
+        window.values[window.index] = nanos;
+        window.index = (window.index + 1) % window.values.length;
+        window.count = Math.min(window.values.length, window.count + 1);
+    }
+
+    public synchronized Duration hedgeDelay(String hedgeClass) {
+        Samples window = samples.get(hedgeClass);
+        if (window == null || window.count < config.getMinSamples()) {
+            return config.getMaxDelay();
+        }
+        long[] sorted = Arrays.copyOf(window.values, window.count);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(window.count - 1, Math.ceil(config.getPercentile() * window.count) - 1);
+        Duration delay = Duration.ofNanos(sorted[Math.max(0, index)]);
+        if (delay.compareTo(config.getMinDelay()) < 0) {
+            return config.getMinDelay();
+        }
+        return delay.compareTo(config.getMaxDelay()) > 0 ? config.getMaxDelay() : delay;
+    }
+
+    private Samples newSamples(String hedgeClass) {
+        Gauge.builder("claude.hedge.delay", this, p -> p.hedgeDelay(hedgeClass).toMillis())
+                .tag("class", hedgeClass)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        return new Samples(config.getSampleWindow());
+    }
+
+    /**
+     * Spends one budget token for a hedge; false means the hedge must not be sent.
+     */
+    public synchronized boolean tryHedge() {
+        if (budget < 1) {
+            budgetExhaustedCounter.increment();
+            return false;
+        }
+        budget -= 1;
+        hedgeCounter.increment();
+        return true;
+    }
+
+    public void recordHedgeWon() {
+        hedgeWonCounter.increment();
+    }
+
+    public synchronized Snapshot snapshot() {
+        Map<String, ClassSnapshot> classes = new LinkedHashMap<>();
+        samples.forEach((hedgeClass, window) ->
+                classes.put(hedgeClass, new ClassSnapshot(hedgeDelay(hedgeClass).toMillis(), window.count)));
+        return new Snapshot(config.isEnabled(), classes, budget);
+    }
+}
@@ -0,0 +1,144 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Shared retry policy for upstream calls: retries only idempotent failure classes
+ * (429, 5xx incl. 529, connection errors), honours {@code retry-after}, otherwise backs
+ * off exponentially with jitter. A token-bucket retry budget caps retries to a
+ * fraction of traffic so they can't amplify an outage.
+ */
+@Component
+@Slf4j
+public class UpstreamRetryPolicy {
+
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(30);
+
+    private final ClaudeConfig.Retry config;
+    private final Counter retryCounter;
+    private final Counter budgetExhaustedCounter;
+
+    private double budget;
+
+    public UpstreamRetryPolicy(ClaudeConfig claudeConfig, MeterRegistry meterRegistry) {
+        this.config = claudeConfig.getRetry();
+        this.budget = config.getBudgetCapacity();
+        this.retryCounter = meterRegistry.counter("claude.retry.attempts");
+        this.budgetExhaustedCounter = meterRegistry.counter("claude.retry.budget.exhausted");
+    }
+
+    /**
+     * Credits the retry budget for one logical request. Call once per request, not per attempt.
+     */
+    public synchronized void recordRequest() {
+        budget = Math.min(config.getBudgetCapacity(), budget + config.getBudgetRatio());
+    }
+
+    public Retry spec() {
+        return spec(() -> true);
+    }
+
+    /**
+     * @param canRetry extra guard evaluated per failure, e.g. "no stream data received yet"
+     */
+    public Retry spec(BooleanSupplier canRetry) {
+        return Retry.from(signals -> signals.concatMap(signal -> {
+            Throwable error = signal.failure();
+            long attempt = signal.totalRetries();
+
+            if (!config.isEnabled() || !isRetryable(error) || attempt >= config.getMaxRetries()
+                    || !canRetry.getAsBoolean()) {
+                return Mono.error(giveUp(error));
+            }
+            Duration retryAfter = retryAfter(error);
+            if (retryAfter != null && retryAfter.compareTo(config.getMaxRetryAfter()) > 0) {
+                return Mono.error(giveUp(error));
+            }
+            if (!tryWithdraw()) {
+                budgetExhaustedCounter.increment();
+                log.warn("Retry budget exhausted, not retrying: {}", error.getMessage());
+                return Mono.error(giveUp(error));
+            }
+
+            Duration delay = retryAfter != null ? retryAfter : jitteredBackoff(attempt);
+            retryCounter.increment();
+            log.info("Retrying upstream call (attempt {}) in {} ms after: {}",
+                    attempt + 1, delay.toMillis(), error.getMessage());
+            return Mono.delay(delay);
+        }));
+    }
+
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof WebClientResponseException responseException) {
+            int status = responseException.getStatusCode().value();
+            return status == 429 || status >= 500;
+        }
+        return error instanceof WebClientRequestException;
+    }
+
+    private synchronized boolean tryWithdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    private Duration jitteredBackoff(long attempt) {
+        long cap = Math.min(config.getMaxBackoff().toMillis(),
+                config.getInitialBackoff().toMillis() * (1L << Math.min(attempt, 20)));
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(cap / 2, cap + 1));
+    }
+
+    /**
+     * Once retries are exhausted, throttling/overload turns into a 503 for our caller
+     * (with the upstream's hint) instead of a failed analysis.
+     */
+    private Throwable giveUp(Throwable error) {
+        if (error instanceof WebClientResponseException responseException) {
+            int status = responseException.getStatusCode().value();
+            if (status == 429 || status == 503 || status == 529) {
+                Duration retryAfter = retryAfter(error);
+                return new UpstreamUnavailableException("Upstream API is overloaded (HTTP " + status + ")",
+                        retryAfter != null ? retryAfter : DEFAULT_RETRY_AFTER);
+            }
+        }
+        return error;
+    }
+
+    private static Duration retryAfter(Throwable error) {
+        if (!(error instanceof WebClientResponseException responseException)) {
+            return null;
+        }
+        String value = responseException.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Duration.ofMillis((long) (Double.parseDouble(value.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                Duration until = Duration.between(ZonedDateTime.now(),
+                        ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+                return until.isNegative() ? Duration.ZERO : until;
+            } catch (RuntimeException ignored) {
+                return null;
+            }
+        }
+    }
+}
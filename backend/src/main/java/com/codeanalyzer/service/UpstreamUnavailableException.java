@@ -0,0 +1,22 @@
+package com.codeanalyzer.service;
+
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * The upstream API can't take this request right now (overloaded, throttled, or
+ * shedding load locally). Surfaced to clients as 503 with a Retry-After hint.
+ */
+@Getter
+public class UpstreamUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public UpstreamUnavailableException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+}
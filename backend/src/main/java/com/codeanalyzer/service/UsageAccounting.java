@@ -0,0 +1,198 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.model.Language;
+import com.codeanalyzer.model.Persona;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.stereotype.Component;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Token and latency accounting for every upstream call.
+ * <p>
+ * Services tag their reactive chain with {@link #tag} (endpoint, persona, language); the tags
+ * travel in the Reactor context, so continuations and fan-out calls made inside the chain are
+ * attributed to the same caller. Each call is recorded as Micrometer meters
+ * ({@code claude.usage.tokens}, {@code claude.usage.latency}, {@code claude.usage.ttfb}),
+ * in running totals for {@code /api/admin/usage}, and in the {@link RequestUsage} of the
+ * HTTP request, if the controller attached one.
+ */
+@Component
+public class UsageAccounting {
+
+    private static final String UNKNOWN = "unknown";
+    private static final String OTHER = "other";
+    private static final String MIXED = "mixed";
+
+    public record CallTags(String endpoint, String persona, String language) {
+    }
+
+    public record Snapshot(String endpoint, String persona, String language, String model, long calls,
+                           long inputTokens, long outputTokens, long cacheReadInputTokens,
+                           long cacheCreationInputTokens, long avgLatencyMillis, long avgTtfbMillis,
+                           Map<String, Long> stopReasons) {
+    }
+
+    private record Key(String endpoint, String persona, String language, String model) {
+    }
+
+    private static class Totals {
+        final LongAdder calls = new LongAdder();
+        final LongAdder inputTokens = new LongAdder();
+        final LongAdder outputTokens = new LongAdder();
+        final LongAdder cacheReadInputTokens = new LongAdder();
+        final LongAdder cacheCreationInputTokens = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+        final LongAdder ttfbNanos = new LongAdder();
+        final Map<String, LongAdder> stopReasons = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * What the upstream calls of one HTTP request consumed; summed across retries, hedges and continuations.
+     */
+    public static class RequestUsage {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder inputTokens = new LongAdder();
+        private final LongAdder outputTokens = new LongAdder();
+        private final LongAdder cacheReadInputTokens = new LongAdder();
+        private final LongAdder cacheCreationInputTokens = new LongAdder();
+
+        public Context attach(Context context) {
+            return context.put(RequestUsage.class, this);
+        }
+
+        void add(ClaudeResponseReader.Usage usage) {
+            calls.increment();
+            inputTokens.add(usage.inputTokens());
+            outputTokens.add(usage.outputTokens());
+            cacheReadInputTokens.add(usage.cacheReadInputTokens());
+            cacheCreationInputTokens.add(usage.cacheCreationInputTokens());
+        }
+
+        /**
+         * E.g. {@code calls=1, input_tokens=812, output_tokens=1450, cache_read_input_tokens=1900, cache_creation_input_tokens=0};
+         * zero calls means the answer came from the result cache.
+         */
+        public String toHeaderValue() {
+            return "calls=" + calls.sum()
+                    + ", input_tokens=" + inputTokens.sum()
+                    + ", output_tokens=" + outputTokens.sum()
+                    + ", cache_read_input_tokens=" + cacheReadInputTokens.sum()
+                    + ", cache_creation_input_tokens=" + cacheCreationInputTokens.sum();
+        }
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final PromptCache promptCache;
+    private final TokenBudget tokenBudget;
+    private final Map<Key, Totals> totals = new ConcurrentHashMap<>();
+
+    public UsageAccounting(MeterRegistry meterRegistry, PromptCache promptCache, TokenBudget tokenBudget) {
+        this.meterRegistry = meterRegistry;
+        this.promptCache = promptCache;
+        this.tokenBudget = tokenBudget;
+    }
+
+    /**
+     * Tags the upstream calls of a chain: {@code .contextWrite(UsageAccounting.tag(ENDPOINT, persona, language))}.
+     * Persona and language may come straight from a request, so values other than the known
+     * {@link Persona}s and {@link Language}s (and "mixed") are tagged "other" to keep the meters bounded.
+     */
+    public static Function<Context, Context> tag(String endpoint, String persona, String language) {
+        CallTags callTags = new CallTags(endpoint, knownPersona(persona), knownLanguage(language));
+        return context -> context.put(CallTags.class, callTags);
+    }
+
+    private static String knownPersona(String persona) {
+        if (persona == null) {
+            return null;
+        }
+        return Arrays.stream(Persona.values())
+                .map(Persona::getValue)
+                .filter(persona::equalsIgnoreCase)
+                .findFirst()
+                .orElse(OTHER);
+    }
+
+    private static String knownLanguage(String language) {
+        if (language == null || MIXED.equals(language)) {
+            return language;
+        }
+        return Arrays.stream(Language.values())
+                .map(Language::getValue)
+                .filter(language::equalsIgnoreCase)
+                .findFirst()
+                .orElse(OTHER);
+    }
+
+    public void record(ContextView context, String model, ClaudeResponseReader.Usage usage, String stopReason,
+                       Duration latency, Duration ttfb) {
+        CallTags callTags = context.getOrDefault(CallTags.class, new CallTags(UNKNOWN, UNKNOWN, UNKNOWN));
+        Key key = new Key(orUnknown(callTags.endpoint()), orUnknown(callTags.persona()),
+                orUnknown(callTags.language()), orUnknown(model));
+        String stop = orUnknown(stopReason);
+
+        Tags tags = Tags.of("endpoint", key.endpoint(), "persona", key.persona(),
+                "language", key.language(), "model", key.model());
+        meterRegistry.counter("claude.usage.tokens", tags.and("type", "input")).increment(usage.inputTokens());
+        meterRegistry.counter("claude.usage.tokens", tags.and("type", "output")).increment(usage.outputTokens());
+        meterRegistry.counter("claude.usage.tokens", tags.and("type", "cache_read"))
+                .increment(usage.cacheReadInputTokens());
+        meterRegistry.counter("claude.usage.tokens", tags.and("type", "cache_write"))
+                .increment(usage.cacheCreationInputTokens());
+        meterRegistry.timer("claude.usage.latency", tags.and("stop_reason", stop)).record(latency);
+        meterRegistry.timer("claude.usage.ttfb", tags).record(ttfb);
+        promptCache.record(usage);
+
+        Totals total = totals.computeIfAbsent(key, k -> new Totals());
+        total.calls.increment();
+        total.inputTokens.add(usage.inputTokens());
+        total.outputTokens.add(usage.outputTokens());
+        total.cacheReadInputTokens.add(usage.cacheReadInputTokens());
+        total.cacheCreationInputTokens.add(usage.cacheCreationInputTokens());
+        total.latencyNanos.add(latency.toNanos());
+        total.ttfbNanos.add(ttfb.toNanos());
+        total.stopReasons.computeIfAbsent(stop, s -> new LongAdder()).increment();
+
+        context.<RequestUsage>getOrEmpty(RequestUsage.class).ifPresent(requestUsage -> requestUsage.add(usage));
+        context.<TokenBudget.Budget>getOrEmpty(TokenBudget.Budget.class)
+                .ifPresent(budget -> tokenBudget.observe(budget, usage, stopReason, latency));
+    }
+
+    /**
+     * Totals per endpoint, persona, language and model since startup, biggest output token spenders first.
+     */
+    public List<Snapshot> snapshot() {
+        return totals.entrySet().stream()
+                .map(entry -> {
+                    Key key = entry.getKey();
+                    Totals total = entry.getValue();
+                    long calls = Math.max(1, total.calls.sum());
+                    Map<String, Long> stopReasons = new TreeMap<>();
+                    total.stopReasons.forEach((reason, count) -> stopReasons.put(reason, count.sum()));
+                    return new Snapshot(key.endpoint(), key.persona(), key.language(), key.model(),
+                            total.calls.sum(), total.inputTokens.sum(), total.outputTokens.sum(),
+                            total.cacheReadInputTokens.sum(), total.cacheCreationInputTokens.sum(),
+                            Duration.ofNanos(total.latencyNanos.sum() / calls).toMillis(),
+                            Duration.ofNanos(total.ttfbNanos.sum() / calls).toMillis(),
+                            stopReasons);
+                })
+                .sorted(Comparator.comparingLong(Snapshot::outputTokens).reversed())
+                .toList();
+    }
+
+    private static String orUnknown(String value) {
+        return value == null || value.isBlank() ? UNKNOWN : value.toLowerCase();
+    }
+}
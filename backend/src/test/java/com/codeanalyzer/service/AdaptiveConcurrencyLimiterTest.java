@@ -0,0 +1,53 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    @ParameterizedTest
+    @EnumSource(AdaptiveConcurrencyLimiter.Outcome.class)
+    void disabledLimiterIgnoresReleases(AdaptiveConcurrencyLimiter.Outcome outcome) {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AdaptiveConcurrencyLimiter limiter = limiter(false, meterRegistry);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire().block().release(outcome, true);
+        }
+
+        assertThat(limiter.snapshot()).isEqualTo(new AdaptiveConcurrencyLimiter.Snapshot(20, 0, 0));
+        assertThat(meterRegistry.get("claude.limiter.inflight").gauge().value()).isZero();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 5})
+    void enabledLimiterCountsPermitsInFlight(int permits) {
+        AdaptiveConcurrencyLimiter limiter = limiter(true, new SimpleMeterRegistry());
+
+        AdaptiveConcurrencyLimiter.Permit[] granted = new AdaptiveConcurrencyLimiter.Permit[permits];
+        for (int i = 0; i < permits; i++) {
+            granted[i] = limiter.acquire().block();
+        }
+        assertThat(limiter.snapshot().inFlight()).isEqualTo(permits);
+
+        for (AdaptiveConcurrencyLimiter.Permit permit : granted) {
+            permit.release(AdaptiveConcurrencyLimiter.Outcome.IGNORED, false);
+            permit.release(AdaptiveConcurrencyLimiter.Outcome.IGNORED, false);
+        }
+        assertThat(limiter.snapshot().inFlight()).isZero();
+    }
+
+    private static AdaptiveConcurrencyLimiter limiter(boolean enabled, SimpleMeterRegistry meterRegistry) {
+        ClaudeConfig claudeConfig = new ClaudeConfig();
+        claudeConfig.getLimiter().setEnabled(enabled);
+        claudeConfig.getLimiter().setInitialLimit(20);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(claudeConfig, meterRegistry);
+        limiter.bindTo(meterRegistry);
+        return limiter;
+    }
+}
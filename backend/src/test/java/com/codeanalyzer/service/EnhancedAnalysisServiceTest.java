@@ -0,0 +1,81 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.ClaudeConfig;
+import com.codeanalyzer.config.FanOutConfig;
+import com.codeanalyzer.config.OutputModeConfig;
+import com.codeanalyzer.config.PromptCompressionConfig;
+import com.codeanalyzer.model.EnhancedSection;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.mockito.ArgumentCaptor;
+import reactor.core.publisher.Mono;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class EnhancedAnalysisServiceTest {
+
+    private static final String CODE = """
+            // Keeps the account balance
+            class Account {
+                int balance; /* cents */
+            }""";
+
+    static Stream<Arguments> sections() {
+        return Stream.of(
+                Arguments.of("analysis only", EnumSet.of(EnhancedSection.SHIP_IT), false),
+                Arguments.of("improved code", EnumSet.of(EnhancedSection.IMPROVED_CODE), true),
+                Arguments.of("improved code with other sections",
+                        EnumSet.of(EnhancedSection.SHIP_IT, EnhancedSection.IMPROVED_CODE), true)
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("sections")
+    @SuppressWarnings("unchecked")
+    void codeToRewriteIsSentUncompressed(String name, Set<EnhancedSection> sections, boolean sentAsSubmitted) {
+        ClaudeApiClient claudeApiClient = mock(ClaudeApiClient.class);
+        when(claudeApiClient.send(any(), any())).thenReturn(Mono.error(new IllegalStateException("offline")));
+        AnalysisCache analysisCache = mock(AnalysisCache.class);
+        when(analysisCache.getOrLoad(anyString(), any(), any()))
+                .thenAnswer(invocation -> ((Supplier<Mono<?>>) invocation.getArgument(1)).get());
+
+        ClaudeConfig claudeConfig = new ClaudeConfig();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PromptCompressionConfig compressionConfig = new PromptCompressionConfig();
+        compressionConfig.setEnabled(true);
+        FanOutConfig fanOutConfig = new FanOutConfig();
+        fanOutConfig.setEnabled(false);
+        EnhancedAnalysisService service = new EnhancedAnalysisService(claudeApiClient, claudeConfig,
+                new ClaudeResponseReader(new ObjectMapper()), mock(ModelOutputReader.class),
+                new StructuredOutput(new OutputModeConfig(), new ObjectMapper()), analysisCache,
+                mock(ImprovedCodeService.class), fanOutConfig, new PromptCache(claudeConfig, meterRegistry),
+                new TokenBudget(claudeConfig, meterRegistry), new PromptCompressor(compressionConfig, meterRegistry));
+
+        service.analyzeEnhanced(CODE, "java", null, "brutal", sections, null).block();
+
+        ArgumentCaptor<Map<String, Object>> request = ArgumentCaptor.forClass(Map.class);
+        verify(claudeApiClient).send(request.capture(), any());
+        List<Map<String, Object>> messages = (List<Map<String, Object>>) request.getValue().get("messages");
+        String userPrompt = (String) messages.get(0).get("content");
+        if (sentAsSubmitted) {
+            assertThat(userPrompt).contains(CODE).doesNotContain(PromptCompressor.NOTE);
+        } else {
+            assertThat(userPrompt).doesNotContain("Keeps the account balance", "cents").contains(PromptCompressor.NOTE);
+        }
+    }
+}
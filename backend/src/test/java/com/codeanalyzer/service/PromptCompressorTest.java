@@ -0,0 +1,120 @@
+package com.codeanalyzer.service;
+
+import com.codeanalyzer.config.PromptCompressionConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PromptCompressorTest {
+
+    private final PromptCompressor compressor = compressor(true);
+
+    static Stream<Arguments> sources() {
+        return Stream.of(
+                Arguments.of("line comment after a string containing //", "java",
+                        "String url = \"http://example.com\"; // fetch it",
+                        "String url = \"http://example.com\";", List.of(1)),
+                Arguments.of("block comment opener inside a string", "java",
+                        "String s = \"/* not a comment */\";",
+                        "String s = \"/* not a comment */\";", List.of(1)),
+                Arguments.of("escaped quote inside a string", "java",
+                        "String s = \"say \\\"//\\\"\"; // note\nchar c = '\"'; // quote",
+                        "String s = \"say \\\"//\\\"\";\nchar c = '\"';", List.of(1, 2)),
+                Arguments.of("text block keeps comment markers and indentation", "java", """
+                        String sql = \"""
+                            SELECT 1 -- // /* kept */
+                              FROM dual
+                            \""";""", """
+                        String sql = \"""
+                            SELECT 1 -- // /* kept */
+                              FROM dual
+                            \""";""", List.of(1, 2, 3, 4)),
+                Arguments.of("license header and multi-line block comment", "java", """
+                        /*
+                         * Copyright
+                         */
+                        package x;
+
+                        /**
+                         * Docs.
+                         */
+                        class A {
+                            int x; /* a */ int y;
+                        }""", "package x;\nclass A {\n int x;  int y;\n}", List.of(4, 9, 10, 11)),
+                Arguments.of("comment opener inside a block comment does not nest", "java",
+                        "/* see /* here */ int x = 1;\nint y = 2;",
+                        "int x = 1;\nint y = 2;", List.of(1, 2)),
+                Arguments.of("block comment spanning lines between tokens", "java",
+                        "int a = /* one\n two */ 2;",
+                        "int a =\n 2;", List.of(1, 2)),
+                Arguments.of("// inside strings and template literals", "javascript",
+                        "const s = 'a//b'; // c\nconst t = `# ${a} // b\n  // still string`;",
+                        "const s = 'a//b';\nconst t = `# ${a} // b\n  // still string`;", List.of(1, 2, 3)),
+                Arguments.of("// after a possible regex literal is kept", "typescript",
+                        "const re = /a\\/b/; // c",
+                        "const re = /a\\/b/; // c", List.of(1)),
+                Arguments.of("# inside strings", "python",
+                        "s = \"# not a comment\"  # real\nt = '#' + \"'\"  # also real",
+                        "s = \"# not a comment\"\nt = '#' + \"'\"", List.of(1, 2)),
+                Arguments.of("docstring is kept, comments are not", "python", """
+                        def f():
+                            \"""Doc # kept
+                                indented\"""
+                            # gone
+                            return 1""", """
+                        def f():
+                         \"""Doc # kept
+                                indented\"""
+                         return 1""", List.of(1, 2, 3, 5)),
+                Arguments.of("dedent by several levels", "python", """
+                        def f(x):
+                            if x:
+                                return 1
+
+                            # done
+                            return 2
+                        print(f(1))""", "def f(x):\n if x:\n  return 1\n return 2\nprint(f(1))", List.of(1, 2, 3, 6, 7)),
+                Arguments.of("irregular indent units", "python",
+                        "class A:\n  def f(self):\n        pass\n  x = 1",
+                        "class A:\n def f(self):\n  pass\n x = 1", List.of(1, 2, 3, 4)),
+                Arguments.of("tabs", "python",
+                        "if a:\n\tif b:\n\t\tc()\n\td()",
+                        "if a:\n if b:\n  c()\n d()", List.of(1, 2, 3, 4))
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("sources")
+    void stripsCommentsOnly(String name, String language, String code, String expected, List<Integer> lineMap) {
+        PromptCompressor.Compressed compressed = compressor.compress(code, language);
+
+        assertThat(compressed.code()).isEqualTo(expected);
+        List<Integer> mapped = new ArrayList<>();
+        for (int line = 1; line <= lineMap.size(); line++) {
+            mapped.add(compressed.lineMap().toOriginal(line));
+        }
+        assertThat(mapped).isEqualTo(lineMap);
+    }
+
+    @Test
+    void disabledOrUnsupportedLanguageLeavesCodeAlone() {
+        String code = "int x; // c";
+
+        assertThat(compressor(false).compress(code, "java").lineMap()).isSameAs(LineMap.IDENTITY);
+        assertThat(compressor.compress(code, "go")).isEqualTo(new PromptCompressor.Compressed(code, LineMap.IDENTITY));
+    }
+
+    private static PromptCompressor compressor(boolean enabled) {
+        PromptCompressionConfig config = new PromptCompressionConfig();
+        config.setEnabled(enabled);
+        return new PromptCompressor(config, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,177 @@
+package com.codeanalyzer.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UnifiedDiffTest {
+
+    private static final String FILE = "a\nb\nc\nd\ne\nf\ng\nh\ni\nj";
+
+    static Stream<Arguments> edits() {
+        return Stream.of(
+                Arguments.of("change in the middle", FILE, "a\nb\nc\nd\nE\nf\ng\nh\ni\nj", "@@ -2,7 +2,7 @@", 1, 1),
+                Arguments.of("insert at start", FILE, "x\ny\n" + FILE, "@@ -1,3 +1,5 @@", 2, 0),
+                Arguments.of("delete at start", FILE, "c\nd\ne\nf\ng\nh\ni\nj", "@@ -1,5 +1,3 @@", 0, 2),
+                Arguments.of("insert at end", FILE, FILE + "\nk\nl", "@@ -8,3 +8,5 @@", 2, 0),
+                Arguments.of("delete at end", FILE, "a\nb\nc\nd\ne\nf\ng\nh", "@@ -6,5 +6,3 @@", 0, 2),
+                Arguments.of("empty post-image", "a\nb\nc", "", "@@ -1,3 +0,0 @@", 0, 3),
+                Arguments.of("empty pre-image", "", "a\nb", "@@ -0,0 +1,2 @@", 2, 0),
+                Arguments.of("trailing newline added", "a\nb", "a\nb\n", "@@ -1,2 +1,3 @@", 1, 0),
+                Arguments.of("two hunks", FILE + "\nk\nl\nm\nn\no\np\nq\nr\ns\nt",
+                        "A\nb\nc\nd\ne\nf\ng\nh\ni\nj\nk\nl\nm\nn\no\np\nq\nr\ns\nT", "@@ -17,4 +17,4 @@", 2, 2),
+                Arguments.of("replace everything", "a\nb\nc", "x\ny", "@@ -1,3 +1,2 @@", 2, 3)
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("edits")
+    void diffRoundTripsThroughParse(String name, String original, String revised, String expectedHeader,
+                                    int added, int removed) {
+        UnifiedDiff.Result result = UnifiedDiff.diff(original, revised, "a/File.java", "b/File.java", false);
+
+        assertThat(result.text()).startsWith("--- a/File.java\n+++ b/File.java\n").contains(expectedHeader + "\n");
+        assertThat(result.linesAdded()).isEqualTo(added);
+        assertThat(result.linesRemoved()).isEqualTo(removed);
+
+        List<UnifiedDiff.FilePatch> patches = UnifiedDiff.parse(result.text());
+        assertThat(patches).hasSize(1);
+        assertThat(patches.get(0).oldPath()).isEqualTo("File.java");
+        assertThat(patches.get(0).newPath()).isEqualTo("File.java");
+        assertThat(apply(original, patches.get(0))).isEqualTo(lines(revised));
+    }
+
+    @Test
+    void identicalTextsHaveNoDiff() {
+        UnifiedDiff.Result result = UnifiedDiff.diff(FILE, FILE, "a/x", "b/x", false);
+
+        assertThat(result).isEqualTo(new UnifiedDiff.Result("", 0, 0));
+        assertThatThrownBy(() -> UnifiedDiff.parse(result.text()))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Not a unified diff: no hunks found");
+    }
+
+    @Test
+    void partialRevisionKeepsTheLinesAfterItsEnd() {
+        UnifiedDiff.Result result = UnifiedDiff.diff(FILE, "a\nB\nc", "a/x", "b/x", true);
+
+        assertThat(result.linesRemoved()).isEqualTo(1);
+        assertThat(result.linesAdded()).isEqualTo(1);
+        assertThat(result.text()).doesNotContain("-j");
+    }
+
+    static Stream<Arguments> postImageLines() {
+        return Stream.of(
+                Arguments.of("context, removal and addition", """
+                        --- a/src/App.java
+                        +++ b/src/App.java
+                        @@ -3,3 +3,3 @@ class App {
+                         int a;
+                        -int b;
+                        +long b;
+                         int c;
+                        """, "src/App.java", "src/App.java", List.of(" 3", "-4", "+4", " 5")),
+                Arguments.of("new file", """
+                        diff --git a/New.java b/New.java
+                        new file mode 100644
+                        index 0000000..e69de29
+                        --- /dev/null
+                        +++ b/New.java
+                        @@ -0,0 +1,2 @@
+                        +class New {
+                        +}
+                        """, null, "New.java", List.of("+1", "+2")),
+                Arguments.of("deleted file", """
+                        --- a/Old.java
+                        +++ /dev/null
+                        @@ -1,2 +0,0 @@
+                        -class Old {
+                        -}
+                        """, "Old.java", null, List.of("-1", "-1")),
+                Arguments.of("single-line counts omitted", """
+                        --- a/x.py\t2024-01-01 10:00:00
+                        +++ b/x.py\t2024-01-02 10:00:00
+                        @@ -1 +1 @@
+                        -print(1)
+                        +print(2)
+                        \\ No newline at end of file
+                        """, "x.py", "x.py", List.of("-1", "+1")),
+                Arguments.of("empty context line without its space", """
+                        --- a/y.js
+                        +++ b/y.js
+                        @@ -1,3 +1,3 @@
+                         a();
+
+                        -b();
+                        +c();
+                        """, "y.js", "y.js", List.of(" 1", " 2", "-3", "+3"))
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("postImageLines")
+    void parseNumbersPostImageLines(String name, String diff, String oldPath, String newPath, List<String> expected) {
+        List<UnifiedDiff.FilePatch> patches = UnifiedDiff.parse(diff);
+
+        assertThat(patches).hasSize(1);
+        assertThat(patches.get(0).oldPath()).isEqualTo(oldPath);
+        assertThat(patches.get(0).newPath()).isEqualTo(newPath);
+        assertThat(patches.get(0).hunks().get(0).lines())
+                .extracting(line -> String.valueOf(line.kind()) + line.newLine())
+                .isEqualTo(expected);
+    }
+
+    @Test
+    void parseSplitsFiles() {
+        String diff = UnifiedDiff.diff("a", "b", "a/One.java", "b/One.java", false).text()
+                + UnifiedDiff.diff("c", "d", "a/Two.java", "b/Two.java", false).text();
+
+        assertThat(UnifiedDiff.parse(diff)).extracting(UnifiedDiff.FilePatch::newPath)
+                .containsExactly("One.java", "Two.java");
+    }
+
+    @Test
+    void parseRejectsMalformedHunkHeader() {
+        assertThatThrownBy(() -> UnifiedDiff.parse("--- a/x\n+++ b/x\n@@ -a,b +c,d @@\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageStartingWith("Malformed hunk header");
+    }
+
+    /**
+     * Applies a parsed patch to the pre-image, checking that its context and removed lines match.
+     */
+    private static List<String> apply(String original, UnifiedDiff.FilePatch patch) {
+        List<String> source = lines(original);
+        List<String> out = new ArrayList<>();
+        int next = 0;
+        for (UnifiedDiff.Hunk hunk : patch.hunks()) {
+            int firstNewLine = hunk.lines().get(0).newLine();
+            while (out.size() < firstNewLine - 1) {
+                out.add(source.get(next++));
+            }
+            for (UnifiedDiff.HunkLine line : hunk.lines()) {
+                if (line.kind() != '+') {
+                    assertThat(source.get(next++)).isEqualTo(line.text());
+                }
+                if (line.kind() != '-') {
+                    out.add(line.text());
+                }
+            }
+        }
+        out.addAll(source.subList(next, source.size()));
+        return out;
+    }
+
+    private static List<String> lines(String text) {
+        return text.isEmpty() ? List.of() : Arrays.asList(text.split("\n", -1));
+    }
+}